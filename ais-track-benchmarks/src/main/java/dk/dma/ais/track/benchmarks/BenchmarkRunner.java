@@ -0,0 +1,43 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the JMH command line; results are written as JSON to jmh-result.json
+ * unless another result format or file is given with -rf and -rff.
+ *
+ * E.g. java -jar ais-track-benchmarks/target/benchmarks.jar Ingest -p fleetSize=100000
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf"))
+            arguments.addAll(Arrays.asList("-rf", "json"));
+        if (!arguments.contains("-rff"))
+            arguments.addAll(Arrays.asList("-rff", "jmh-result.json"));
+        Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+
+}
@@ -0,0 +1,145 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.track.LastReportFilter;
+import dk.dma.ais.track.index.ExpiryIndex;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Cost of the cleanup removing targets whose last report is older than the expiry duration; either
+ * by a full scan with LastReportFilter or by the ExpiryIndex AisTrackService maintains.
+ *
+ * The expiry duration is chosen to be two days longer than the age of the oldest packet, so
+ * recorded packets do not expire merely because they are old.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CleanupBenchmark {
+
+    /** The number of vessels in the synthetic fleet */
+    @Param({"10000", "100000", "1000000"})
+    public int fleetSize;
+
+    /** A file with recorded packets to replay instead of the synthetic fleet, e.g. testdata-00.ais */
+    @Param("")
+    public String testdata;
+
+    private List<AisPacket> packets;
+    private TargetTracker tracker;
+    private long oldest;
+    private Duration expire;
+    private LastReportFilter filter;
+    private ExpiryIndex expiryIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        packets = Fleet.packets(fleetSize, 1, testdata);
+        tracker = Fleet.tracker(packets);
+        oldest = packets.stream().filter(p -> p.getTimestamp() != null).mapToLong(p -> p.getTimestamp().getTime()).min().orElse(System.currentTimeMillis());
+        expire = Duration.ofSeconds((System.currentTimeMillis() - oldest) / 1000).plusDays(2);
+        filter = new LastReportFilter(expire);
+        expiryIndex = new ExpiryIndex(tracker, expire, Duration.ofSeconds(10));
+        expiryIndex.rebuild();
+    }
+
+    /** A cleanup which finds nothing to remove; i.e. the cost of scanning all targets */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public void scan() {
+        tracker.removeAll(filter);
+    }
+
+    /** A cleanup which removes half the targets */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void removeHalf(HalfExpired fleet) {
+        fleet.tracker.removeAll(filter);
+    }
+
+    /** An expiry with the index which finds nothing to remove */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 10)
+    public int indexedScan() {
+        return expiryIndex.expire().size();
+    }
+
+    /** An expiry with the index which removes half the targets */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public int indexedRemoveHalf(HalfExpired fleet) {
+        return fleet.expiryIndex.expire().size();
+    }
+
+    /** A tracker in which half the targets have expired; rebuilt for every cleanup */
+    @State(Scope.Benchmark)
+    public static class HalfExpired {
+
+        private List<AisPacket> packets;
+        private Duration expire;
+        TargetTracker tracker;
+        ExpiryIndex expiryIndex;
+
+        @Setup(Level.Trial)
+        public void setUpPackets(CleanupBenchmark benchmark) {
+            Date expired = new Date(benchmark.oldest - Duration.ofDays(3).toMillis());
+            expire = benchmark.expire;
+            packets = benchmark.packets.stream()
+                .filter(p -> p.tryGetAisMessage() != null)
+                .map(p -> {
+                    int mmsi = p.tryGetAisMessage().getUserId();
+                    return mmsi % 2 == 0 ? p : Fleet.positionReport(mmsi, 55.0, 11.0, expired, 2190047);
+                })
+                .collect(Collectors.toList());
+        }
+
+        @Setup(Level.Invocation)
+        public void setUpTracker() {
+            tracker = Fleet.tracker(packets);
+            expiryIndex = new ExpiryIndex(tracker, expire, Duration.ofSeconds(10));
+            expiryIndex.rebuild();
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.Country;
+import dk.dma.enav.model.geometry.Position;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Packets for the benchmarks; either a synthetic fleet or replayed from a file of recorded packets.
+ *
+ * The synthetic fleet consists of vessels spread uniformly over the North Sea and the Baltic, each
+ * reporting its position through one of a handful of Danish and Norwegian base stations.
+ */
+final class Fleet {
+
+    /** The base stations of the synthetic fleet */
+    private static final int[] BASE_STATIONS = {2190047, 2190048, 2190067, 2190077, 2570001, 2570002};
+
+    private Fleet() {
+    }
+
+    /**
+     * Return the packets of a fleet.
+     *
+     * @param size the number of vessels in a synthetic fleet
+     * @param reportsPerVessel the number of position reports per vessel in a synthetic fleet
+     * @param testdata a file with recorded packets, e.g. testdata-00.ais; blank for a synthetic fleet
+     */
+    static List<AisPacket> packets(int size, int reportsPerVessel, String testdata) {
+        if (testdata != null && !testdata.trim().isEmpty())
+            return read(testdata);
+
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        List<AisPacket> packets = new ArrayList<>(size * reportsPerVessel);
+        for (int report = 0; report < reportsPerVessel; report++) {
+            for (int i = 0; i < size; i++) {
+                int mmsi = 219000000 + i;
+                double lat = 50.0 + random.nextDouble() * 16.0;
+                double lon = -4.0 + random.nextDouble() * 34.0;
+                long timestamp = now - (reportsPerVessel - report) * 10000L;
+                packets.add(positionReport(mmsi, lat, lon, new Date(timestamp), BASE_STATIONS[mmsi % BASE_STATIONS.length]));
+            }
+        }
+        return packets;
+    }
+
+    /** Return a tracker holding the packets */
+    static TargetTracker tracker(List<AisPacket> packets) {
+        TargetTracker tracker = new TargetTracker();
+        packets.forEach(tracker::update);
+        return tracker;
+    }
+
+    /** Create a packet with a position report */
+    static AisPacket positionReport(int mmsi, double lat, double lon, Date timestamp, int baseStation) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(lat, lon)));
+        message.setSog(100);
+        message.setCog(1800);
+        message.setTrueHeading(180);
+        message.setUtcSec((int) (timestamp.getTime() / 1000 % 60));
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(timestamp);
+        tags.setSourceBs(baseStation);
+        tags.setSourceCountry(Country.getByCode(baseStation / 10000 == 219 ? "DK" : "NO"));
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<AisPacket> read(String file) {
+        List<AisPacket> packets = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            new AisPacketReader(in).forEachRemaining(packets::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return packets;
+    }
+
+}
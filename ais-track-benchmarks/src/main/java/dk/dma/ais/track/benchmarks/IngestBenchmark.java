@@ -0,0 +1,126 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.index.TargetGridIndex;
+import dk.dma.ais.track.ingest.IngestPipeline;
+import dk.dma.ais.track.ingest.OverloadPolicy;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of packets from their text form into the tracker and the spatial index; the path
+ * taken by AisTrackService for every packet received from the AisBus.
+ *
+ * Packets are parsed from text in each operation, so decoding is measured as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IngestBenchmark {
+
+    /** The number of vessels in the synthetic fleet */
+    @Param({"10000", "100000", "1000000"})
+    public int fleetSize;
+
+    /** A file with recorded packets to replay instead of the synthetic fleet, e.g. testdata-00.ais */
+    @Param("")
+    public String testdata;
+
+    private String[] packets;
+    private int next;
+
+    private TargetTracker tracker;
+    private TargetGridIndex index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<AisPacket> fleet = Fleet.packets(fleetSize, 2, testdata);
+        packets = fleet.stream().map(AisPacket::getStringMessage).toArray(String[]::new);
+        tracker = new TargetTracker();
+        index = new TargetGridIndex(tracker, 1.0);
+    }
+
+    /** Apply packet like AisTrackService does */
+    void update(AisPacket packet) {
+        tracker.update(packet);
+        AisMessage message = packet.tryGetAisMessage();
+        if (message instanceof IPositionMessage)
+            index.reindex(message.getUserId(), AisPacketSource.create(packet));
+    }
+
+    AisPacket nextPacket() {
+        String packet = packets[next];
+        next = next + 1 == packets.length ? 0 : next + 1;
+        return AisPacket.from(packet);
+    }
+
+    /** Parse, decode and apply one packet on the calling thread */
+    @Benchmark
+    public void update() {
+        update(nextPacket());
+    }
+
+    /** Parse one packet, and pass it through an ingest pipeline */
+    @Benchmark
+    public void pipeline(Pipeline pipeline) {
+        pipeline.pipeline.accept(nextPacket());
+    }
+
+    /** An ingest pipeline applying packets to the tracker of the benchmark */
+    @State(Scope.Benchmark)
+    public static class Pipeline {
+
+        /** The number of update workers */
+        @Param({"1", "2", "4", "8"})
+        public int workers;
+
+        IngestPipeline pipeline;
+
+        @Setup(Level.Trial)
+        public void setUp(IngestBenchmark benchmark) {
+            pipeline = new IngestPipeline(p -> true, benchmark::update, workers, 10000, OverloadPolicy.BLOCK, null);
+            pipeline.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            pipeline.stop(1, TimeUnit.MINUTES);
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import dk.dma.ais.track.rest.resource.serializers.Encoding;
+import dk.dma.ais.track.rest.resource.serializers.ProjectedTargetInfoSerializer;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serializing targets with CustomJacksonMapper and TargetInfoSerializer in each of the
+ * encodings, the way TrackResource writes the response of /tracks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SerializationBenchmark {
+
+    /** The number of vessels in the synthetic fleet */
+    @Param({"10000", "100000", "1000000"})
+    public int fleetSize;
+
+    /** A file with recorded packets to replay instead of the synthetic fleet, e.g. testdata-00.ais */
+    @Param("")
+    public String testdata;
+
+    /** The encoding selected by the Accept header */
+    @Param({"JSON", "COMPACT_JSON", "SMILE", "CBOR"})
+    public Encoding encoding;
+
+    private TargetInfo[] targets;
+    private ProjectedTargetInfoSerializer mapFields;
+    private byte[][] fragments;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        targets = Fleet.tracker(Fleet.packets(fleetSize, 1, testdata)).stream(src -> true).toArray(TargetInfo[]::new);
+        mapFields = ProjectedTargetInfoSerializer.of("mmsi,pos,sog,cog,heading,shipType");
+        fragments = new byte[targets.length][];
+        for (int i = 0; i < targets.length; i++) {
+            try {
+                fragments[i] = encoding.getMapper().writeValueAsBytes(targets[i]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** Serialize all targets as one array; returns the number of bytes written */
+    @Benchmark
+    public long all() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (JsonGenerator jg = encoding.createGenerator(out)) {
+            jg.writeStartArray();
+            for (TargetInfo target : targets)
+                jg.writeObject(target);
+            jg.writeEndArray();
+        }
+        return out.count;
+    }
+
+    /** Serialize the fields a map layer needs of all targets, as with fields=mmsi,pos,sog,cog,heading,shipType */
+    @Benchmark
+    public long allProjected() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (JsonGenerator jg = encoding.createGenerator(out)) {
+            jg.writeStartArray();
+            for (TargetInfo target : targets)
+                mapFields.serialize(target, jg, null);
+            jg.writeEndArray();
+        }
+        return out.count;
+    }
+
+    /** Write all targets as one array by copying their fragments, as with a warm fragment cache; not for SMILE */
+    @Benchmark
+    public long allFromFragments() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        if (encoding.canSplice())
+            encoding.writeArray(Arrays.asList(fragments).iterator(), out);
+        return out.count;
+    }
+
+    /** Serialize a single target */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] one() throws IOException {
+        return encoding.getMapper().writeValueAsBytes(targets[0]);
+    }
+
+    /** Discards what is written, but counts the bytes */
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+}
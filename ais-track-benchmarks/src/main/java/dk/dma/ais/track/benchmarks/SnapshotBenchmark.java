@@ -0,0 +1,90 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import dk.dma.ais.track.snapshot.TargetSnapshot;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a TargetSnapshot of the tracker, and of restoring it with a number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SnapshotBenchmark {
+
+    /** The number of vessels in the synthetic fleet */
+    @Param({"10000", "100000", "1000000"})
+    public int fleetSize;
+
+    /** A file with recorded packets to replay instead of the synthetic fleet, e.g. testdata-00.ais */
+    @Param("")
+    public String testdata;
+
+    /** The number of threads restoring the snapshot */
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private TargetTracker tracker;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tracker = Fleet.tracker(Fleet.packets(fleetSize, 1, testdata));
+        file = Files.createTempFile("benchmark", ".snapshot");
+        TargetSnapshot.write(tracker, file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /** Write a snapshot of the tracker */
+    @Benchmark
+    public int write() throws IOException {
+        return TargetSnapshot.write(tracker, file);
+    }
+
+    /** Restore the snapshot into an empty tracker */
+    @Benchmark
+    public TargetTracker restore() throws IOException {
+        TargetTracker restored = new TargetTracker();
+        TargetSnapshot.read(file, restored, parallelism);
+        return restored;
+    }
+
+}
@@ -0,0 +1,111 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketSourceFilters;
+import dk.dma.ais.track.index.TargetColumns;
+import dk.dma.ais.track.query.SourceFilterCache;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Cost of turning a sourceFilter expression into a predicate, as TrackResource.createSourceFilterPredicate
+ * does, and of scanning the tracker with it; or of finding the targets from matching sources in the
+ * source bitmaps of TargetColumns instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SourceFilterBenchmark {
+
+    /** The number of vessels in the synthetic fleet */
+    @Param({"10000", "100000", "1000000"})
+    public int fleetSize;
+
+    /** A file with recorded packets to replay instead of the synthetic fleet, e.g. testdata-00.ais */
+    @Param("")
+    public String testdata;
+
+    @Param({"s.country in (DK, NO)", "s.bs = 2190047", "s.country = DK & s.bs in (2190047, 2190048)"})
+    public String expression;
+
+    private TargetTracker tracker;
+    private SourceFilterCache cache;
+    private Predicate<AisPacketSource> parsed;
+    private Predicate<AisPacketSource> cached;
+    private TargetColumns columns;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tracker = Fleet.tracker(Fleet.packets(fleetSize, 1, testdata));
+        cache = new SourceFilterCache(100, 10000);
+        parsed = AisPacketSourceFilters.parseSourceFilter(expression);
+        cached = cache.get(expression);
+        columns = new TargetColumns(tracker);
+        columns.rebuild();
+    }
+
+    /** Parse the expression */
+    @Benchmark
+    public Predicate<AisPacketSource> parse() {
+        return AisPacketSourceFilters.parseSourceFilter(expression);
+    }
+
+    /** Look up the expression in the cache of compiled expressions */
+    @Benchmark
+    public Predicate<AisPacketSource> cachedParse() {
+        return cache.get(expression);
+    }
+
+    /** Count the targets matching the parsed expression */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long scan() {
+        return tracker.streamSequential(parsed).count();
+    }
+
+    /** Count the targets matching the cached expression, which remembers its result per source */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long cachedScan() {
+        return tracker.streamSequential(cached).count();
+    }
+
+    /** Count the targets found in the source bitmaps, and look them up with the cached expression */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long indexedLookup() {
+        return columns.select(columns.rowsFrom(cached), null).stream().filter(mmsi -> tracker.get(mmsi, cached) != null).count();
+    }
+
+}
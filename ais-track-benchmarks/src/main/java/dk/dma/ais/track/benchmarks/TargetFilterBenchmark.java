@@ -0,0 +1,124 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.benchmarks;
+
+import dk.dma.ais.track.index.TargetColumns;
+import dk.dma.ais.track.query.TargetQuery;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Cost of testing all targets against the predicate TrackResource creates out of the mmsi,
+ * baseArea and area parameters of /tracks; and of finding the targets inside the areas by
+ * scanning the TargetColumns instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TargetFilterBenchmark {
+
+    /** The number of vessels in the synthetic fleet */
+    @Param({"10000", "100000", "1000000"})
+    public int fleetSize;
+
+    /** A file with recorded packets to replay instead of the synthetic fleet, e.g. testdata-00.ais */
+    @Param("")
+    public String testdata;
+
+    /** The parameters of the query */
+    @Param({"mmsi", "box", "circle", "mmsi+box", "baseArea+box"})
+    public String filter;
+
+    private TargetInfo[] targets;
+    private Set<Integer> mmsis;
+    private Set<Area> baseAreas;
+    private Set<Area> areas;
+    private Predicate<TargetInfo> predicate;
+    private TargetColumns columns;
+    private TargetColumns.RowFilter rowFilter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TargetTracker tracker = Fleet.tracker(Fleet.packets(fleetSize, 1, testdata));
+        targets = tracker.stream(src -> true).toArray(TargetInfo[]::new);
+        columns = new TargetColumns(tracker);
+        columns.rebuild();
+
+        Set<Area> box = Collections.singleton(BoundingBox.create(Position.create(54.5, 10.0), Position.create(56.0, 13.0), CoordinateSystem.CARTESIAN));
+        Set<Area> circle = Collections.singleton(new Circle(Position.create(55.7, 12.6), 50000, CoordinateSystem.CARTESIAN));
+        Set<Area> baseArea = Collections.singleton(BoundingBox.create(Position.create(54.0, 8.0), Position.create(58.0, 16.0), CoordinateSystem.CARTESIAN));
+        Set<Integer> someMmsis = IntStream.range(0, 100).map(i -> 219000000 + i * 7).boxed().collect(Collectors.toCollection(HashSet::new));
+
+        mmsis = filter.contains("mmsi") ? someMmsis : null;
+        baseAreas = filter.contains("baseArea") ? baseArea : null;
+        areas = filter.contains("box") ? box : filter.contains("circle") ? circle : null;
+        predicate = TargetQuery.createTargetFilterPredicate(mmsis, baseAreas, areas);
+        TargetColumns.RowFilter inside = TargetColumns.inside(areas);
+        TargetColumns.RowFilter insideBase = TargetColumns.inside(baseAreas);
+        rowFilter = inside == null ? insideBase : insideBase == null ? inside : inside.and(insideBase);
+    }
+
+    /** Create the predicate */
+    @Benchmark
+    public Predicate<TargetInfo> create() {
+        return TargetQuery.createTargetFilterPredicate(mmsis, baseAreas, areas);
+    }
+
+    /** Test all targets against the predicate */
+    @Benchmark
+    public int filter() {
+        int matches = 0;
+        for (TargetInfo target : targets) {
+            if (predicate.test(target))
+                matches++;
+        }
+        return matches;
+    }
+
+    /** Find the MMSIs of the targets inside the areas by scanning the target columns; nothing for the mmsi filter */
+    @Benchmark
+    public int columnScan() {
+        return rowFilter == null ? 0 : columns.select(rowFilter).size();
+    }
+
+}
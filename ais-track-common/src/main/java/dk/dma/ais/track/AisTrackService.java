@@ -16,12 +16,43 @@ package dk.dma.ais.track;
 
 import dk.dma.ais.bus.AisBus;
 import dk.dma.ais.bus.consumer.DistributerConsumer;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.IPositionMessage;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.packet.AisPacketFilters;
 import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketSourceFilters;
+import dk.dma.ais.track.index.ExpiryIndex;
+import dk.dma.ais.track.index.TargetColumns;
+import dk.dma.ais.track.index.TargetGridIndex;
+import dk.dma.ais.track.ingest.IngestPipeline;
+import dk.dma.ais.track.ingest.OverloadPolicy;
+import dk.dma.ais.track.journal.PacketJournal;
+import dk.dma.ais.track.metrics.Histogram;
+import dk.dma.ais.track.metrics.Meter;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.ChangeLog;
+import dk.dma.ais.track.query.FragmentCache;
+import dk.dma.ais.track.query.NearestTargets;
+import dk.dma.ais.track.query.QueryEstimate;
+import dk.dma.ais.track.query.QueryPlan;
+import dk.dma.ais.track.query.QueryPlanner;
+import dk.dma.ais.track.query.TargetDelta;
+import dk.dma.ais.track.query.TargetDistance;
+import dk.dma.ais.track.query.TargetPage;
+import dk.dma.ais.track.query.TargetQuery;
+import dk.dma.ais.track.replication.ChangeStreamClient;
+import dk.dma.ais.track.replication.ChangeStreamServer;
+import dk.dma.ais.track.snapshot.TargetSnapshotService;
+import dk.dma.ais.track.subscription.Subscription;
+import dk.dma.ais.track.subscription.SubscriptionRegistry;
+import dk.dma.ais.track.subscription.SubscriptionSink;
 import dk.dma.ais.tracker.targetTracker.TargetInfo;
 import dk.dma.ais.tracker.targetTracker.TargetTracker;
-import dk.dma.ais.tracker.targetTracker.TargetTrackerFileBackupService;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -29,19 +60,31 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.concurrent.ThreadSafe;
 import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.function.BiPredicate;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.lang.System.exit;
-import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -59,8 +102,8 @@ public class AisTrackService {
     /** Number of secs between status outputs */
     private final int secsBetweenStatus = 60;
 
-    /** Number of minutes between cleanup */
-    private final int minutesBetweenCleanup = 5;
+    /** Minimum number of targets to visit before a query is worth splitting over the query pool */
+    private int minTargetsForParallelQuery = 10000;
 
     @Inject
     private AisBus aisBus;
@@ -69,15 +112,112 @@ public class AisTrackService {
     private TargetTracker tracker;
 
     @Inject
-    private TargetTrackerFileBackupService backupService;
+    private TargetSnapshotService backupService;
+
+    @Inject
+    private Metrics metrics;
 
     @Value("${dk.dma.ais.track.AisTrackService.targetExpire}")
     private String targetExpire;
 
+    /** Interval between removals of expired targets; targets are removed at most this long after they expired */
+    @Value("${dk.dma.ais.track.AisTrackService.expiryResolution:PT10S}")
+    private String expiryResolution = "PT10S";
+
+    /** Size in degrees of the cells in the spatial index */
+    @Value("${dk.dma.ais.track.AisTrackService.indexCellSize:1.0}")
+    private double indexCellSize = 1.0;
+
+    /** Number of threads executing queries; 1 for sequential execution on the calling thread, 0 for one per core */
+    @Value("${dk.dma.ais.track.AisTrackService.queryParallelism:1}")
+    private int queryParallelism = 1;
+
+    /** Number of threads applying packets to the tracker; 0 for one per core */
+    @Value("${dk.dma.ais.track.AisTrackService.ingestThreads:1}")
+    private int ingestThreads = 1;
+
+    /** Maximum number of packets waiting for each ingest thread */
+    @Value("${dk.dma.ais.track.AisTrackService.ingestQueueDepth:10000}")
+    private int ingestQueueDepth = 10000;
+
+    /** What to do with received packets when an ingest thread falls behind; one of BLOCK, DROP_OLDEST, COALESCE, SHED */
+    @Value("${dk.dma.ais.track.AisTrackService.ingestOverloadPolicy:BLOCK}")
+    private String ingestOverloadPolicy = "BLOCK";
+
+    /** Source filter expression selecting the low priority sources discarded first with overload policy SHED */
+    @Value("${dk.dma.ais.track.AisTrackService.ingestShedSourceFilter:}")
+    private String ingestShedSourceFilter;
+
+    /** Number of changes kept for answering delta queries */
+    @Value("${dk.dma.ais.track.AisTrackService.changeLogSize:1048576}")
+    private int changeLogSize = 1048576;
+
+    /** Interval between updates sent to subscribers; changes to a target within an interval are sent once */
+    @Value("${dk.dma.ais.track.AisTrackService.subscriptionInterval:PT1S}")
+    private String subscriptionInterval = "PT1S";
+
+    /** Maximum number of changed targets waiting for a subscriber; it is disconnected if exceeded */
+    @Value("${dk.dma.ais.track.AisTrackService.subscriptionBufferSize:100000}")
+    private int subscriptionBufferSize = 100000;
+
+    /** Number of threads sending updates to subscribers */
+    @Value("${dk.dma.ais.track.AisTrackService.subscriptionThreads:2}")
+    private int subscriptionThreads = 2;
+
+    /** The partition of the MMSI space tracked by this node, as index/count; empty to track all MMSIs */
+    @Value("${dk.dma.ais.track.AisTrackService.shard:}")
+    private String shard;
+
+    /** Port to serve the change stream to replicas on; 0 to serve none */
+    @Value("${dk.dma.ais.track.AisTrackService.replicationPort:0}")
+    private int replicationPort;
+
+    /** Maximum number of batches of changes waiting for a replica; it is disconnected if exceeded */
+    @Value("${dk.dma.ais.track.AisTrackService.replicationBufferSize:1000}")
+    private int replicationBufferSize = 1000;
+
+    /** The change stream to replicate, as host:port; empty to track the packets from the AisBus */
+    @Value("${dk.dma.ais.track.AisTrackService.replicaOf:}")
+    private String replicaOf;
+
+    /** Whether to keep the hot attributes of targets in primitive columns, scanned instead of the tracker for large area queries */
+    @Value("${dk.dma.ais.track.AisTrackService.targetColumns:true}")
+    private boolean targetColumns = true;
+
+    /** Maximum bytes of serialized targets kept for writing unchanged targets; 0 disables the cache */
+    @Value("${dk.dma.ais.track.AisTrackService.fragmentCacheSize:0}")
+    private long fragmentCacheSize;
+
+    /**
+     * Incremented whenever a target is updated or removed; the value is the update sequence number of the change.
+     * Starts at the time of creation in microseconds, so sequence numbers are not reused after a restart.
+     */
+    private final AtomicLong updateEpoch = new AtomicLong(MILLISECONDS.toMicros(System.currentTimeMillis()));
+
+    private volatile TargetGridIndex targetIndex;
+    private volatile TargetColumns columns;
+    private volatile ExpiryIndex expiryIndex;
+    private volatile PacketJournal journal;
+    private volatile QueryPlanner queryPlanner;
+    private volatile ChangeLog changeLog;
+    private volatile SubscriptionRegistry subscriptions;
+    private volatile FragmentCache fragmentCache;
+    private volatile ChangeStreamServer changeStream;
+    private volatile ChangeStreamClient replication;
+
+    /** The update sequence number up to which changes have been dispatched to subscribers; only accessed by the publish executor */
+    private long published;
+
     private final Predicate<AisPacket> trackerInputPacketFilter;
     private final ScheduledExecutorService cleanupExecutor = Executors.newSingleThreadScheduledExecutor();
     private final ScheduledExecutorService statusExecutor = Executors.newSingleThreadScheduledExecutor();
     private final ExecutorService serviceExecutor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService publishExecutor = Executors.newSingleThreadScheduledExecutor();
+    private volatile ExecutorService subscriptionPool;
+    private volatile ForkJoinPool queryPool;
+    private volatile IngestPipeline ingestPipeline;
+
+    private Histogram updateLatency;
 
     /** Create a TrackService with no input filter */
     public AisTrackService() {
@@ -92,58 +232,560 @@ public class AisTrackService {
         this.trackerInputPacketFilter = trackerInputPacketFilter;
     }
 
+    /**
+     * Return the update epoch; a counter which moves on whenever a target is updated or removed.
+     * A query result computed in one epoch is still valid while the epoch is unchanged; and the
+     * epoch is the high-water mark to ask for the changes to the result since.
+     */
+    public long getUpdateEpoch() {
+        return updateEpoch.get();
+    }
+
     public int numberOfTargets() {
         return tracker.size();
     }
 
     public int numberOfTargets(Predicate<? super AisPacketSource> packetSourceFilter) {
-        return targets(packetSourceFilter, ti->true).size();
+        if (runInParallel(tracker.size())) {
+            return inQueryPool(() -> (int) tracker.stream(packetSourceFilter).count());
+        }
+        return (int) tracker.streamSequential(packetSourceFilter).count();
     }
 
     public Set<TargetInfo> targets() {
-        return tracker
-            .streamSequential()
-            .collect(Collectors.toSet());
+        return targets(src -> true, ti -> true);
     }
 
     public Set<TargetInfo> targets(Predicate<? super AisPacketSource> packetSourceFilter, Predicate<? super TargetInfo> targetInfoFilter) {
+        if (runInParallel(tracker.size())) {
+            // Each worker collects its share of the key space into its own set; the sets are merged when all are done
+            return inQueryPool(() -> tracker
+                .stream(packetSourceFilter, targetInfoFilter)
+                .collect(Collectors.toSet()));
+        }
+
         return tracker
             .streamSequential(packetSourceFilter, targetInfoFilter)
             .collect(Collectors.toSet());
     }
 
+    /**
+     * Return the targets matching query. The candidate targets are found as planned by the
+     * QueryPlanner, and then tested against the query's source and target filters.
+     */
+    public Set<TargetInfo> targets(TargetQuery query) {
+        QueryPlan plan = explain(query);
+        LOG.debug("Executing {} for {}", plan, query);
+
+        Set<Integer> candidates = plan.getCandidates();
+        if (candidates == null) {
+            return targets(query.getSourceFilter(), query.getTargetFilter());
+        }
+
+        if (runInParallel(candidates.size())) {
+            return inQueryPool(() -> lookup(candidates.parallelStream(), query).collect(Collectors.toSet()));
+        }
+        return lookup(candidates.stream(), query).collect(Collectors.toSet());
+    }
+
+    /** Look up the candidates in the tracker, and keep those matching query */
+    private Stream<TargetInfo> lookup(Stream<Integer> candidates, TargetQuery query) {
+        return candidates
+            .map(mmsi -> tracker.get(mmsi, query.getSourceFilter()))
+            .filter(Objects::nonNull)
+            .filter(query.getTargetFilter());
+    }
+
+    /**
+     * Return a sequential stream of the targets matching query, as planned by the QueryPlanner. Targets
+     * are looked up in the tracker as the stream is consumed, so the result is never held in memory.
+     */
+    public Stream<TargetInfo> stream(TargetQuery query) {
+        QueryPlan plan = explain(query);
+        LOG.debug("Streaming {} for {}", plan, query);
+
+        Set<Integer> candidates = plan.getCandidates();
+        if (candidates == null) {
+            return tracker.streamSequential(query.getSourceFilter(), query.getTargetFilter());
+        }
+        return lookup(candidates.stream(), query);
+    }
+
+    /**
+     * Return a page of the targets matching query in MMSI order.
+     * @param cursor only targets with an MMSI number above cursor are included; null for the first page
+     * @param limit the maximum number of targets in the page
+     */
+    public TargetPage page(TargetQuery query, Integer cursor, int limit) {
+        return TargetPage.of(stream(query), cursor, limit);
+    }
+
+    /** @return true if delta(query, since) will most likely return the changes since, rather than reset to the whole result */
+    public boolean isDeltaAvailable(long since) {
+        ChangeLog log = changeLog;
+        return log != null && log.covers(since, updateEpoch.get());
+    }
+
+    /**
+     * Return the changes to the result of query since the update sequence number since; i.e. the targets
+     * matching query which were updated since, and the MMSIs of those removed or no longer matching.
+     * If the changes since are no longer kept in the change log, the whole result is returned as a reset.
+     *
+     * A changed target not matching query is only reported as removed if it may have matched before: if it
+     * was asked for by MMSI, a report of it was removed, or it was in a cell of the spatial index covering
+     * the areas of query before the change. Other targets can only leave the result by losing a report.
+     */
+    public TargetDelta delta(TargetQuery query, long since) {
+        long current = updateEpoch.get();
+        ChangeLog log = changeLog;
+        ChangeLog.Changes changes = log == null ? null : log.since(since, current);
+        if (changes == null) {
+            return TargetDelta.reset(since, current, targets(query));
+        }
+
+        // Targets not matched by MMSI were inside both a base area and an area, so the cells of either will do; null if unknown
+        Set<Integer> areaCells = !query.hasAreaRestriction() ? Collections.emptySet()
+            : targetIndex.cells(query.getAreas().isEmpty() ? query.getBaseAreas() : query.getAreas());
+        List<TargetInfo> changed = new ArrayList<>();
+        Set<Integer> removed = new HashSet<>();
+        for (Integer mmsi : changes.getMmsis()) {
+            TargetInfo target = tracker.get(mmsi, query.getSourceFilter());
+            if (target != null && query.getTargetFilter().test(target)) {
+                changed.add(target);
+            } else if (query.getMmsis().contains(mmsi) || changes.isRemoved(mmsi) || areaCells == null || changes.wasInAnyOf(mmsi, areaCells)) {
+                removed.add(mmsi);
+            }
+        }
+        return new TargetDelta(since, changes.getHighWaterMark(), false, changed, removed);
+    }
+
+    /**
+     * Subscribe to the targets matching query. The sink is sent the matching targets at once, and then
+     * the changes to them at the configured subscription interval until either side unsubscribes.
+     */
+    public Subscription subscribe(TargetQuery query, SubscriptionSink sink) {
+        SubscriptionRegistry registry = subscriptions;
+        if (registry == null)
+            throw new IllegalStateException("AisTrackService not started");
+
+        // Register before taking the snapshot, so no change made after the snapshot is missed
+        Subscription subscription = registry.subscribe(query, sink);
+        registry.start(subscription, targets(query));
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.unsubscribe(subscription);
+    }
+
+    /** @return true if a query visiting numberOfTargets targets should be split over the query pool */
+    private boolean runInParallel(int numberOfTargets) {
+        return queryPool != null && numberOfTargets >= minTargetsForParallelQuery;
+    }
+
+    /** Run query in the query pool; parallel streams created by query are split over the pool's workers */
+    private <T> T inQueryPool(Supplier<T> query) {
+        return queryPool.submit(() -> query.get()).join();
+    }
+
+    /** @return the plan for executing query */
+    public QueryPlan explain(TargetQuery query) {
+        QueryPlanner planner = queryPlanner;
+        if (planner == null) {
+            return QueryPlan.fullScan(query, tracker.size(), "Spatial index not built yet");
+        }
+        return planner.plan(query);
+    }
+
+    /** @return the estimated cost of query, without planning it; see QueryPlanner.estimate */
+    public QueryEstimate estimate(TargetQuery query) {
+        QueryPlanner planner = queryPlanner;
+        if (planner == null) {
+            return QueryEstimate.fullScan(tracker.size());
+        }
+        return planner.estimate(query);
+    }
+
+    /**
+     * @return the estimated cost of a search for the targets nearest to position within maxDistance metres; the
+     *         targets in the cells of the spatial index it may visit, or all targets if maxDistance does not bound it
+     */
+    public QueryEstimate estimateNearest(Position position, double maxDistance) {
+        TargetGridIndex index = targetIndex;
+        int trackerSize = tracker.size();
+        if (index == null || Double.isInfinite(maxDistance))
+            return QueryEstimate.fullScan(trackerSize);
+
+        int estimate = index.estimate(Collections.singleton(new Circle(position, maxDistance, CoordinateSystem.CARTESIAN)));
+        return estimate < 0 ? QueryEstimate.fullScan(trackerSize) : new QueryEstimate(Math.min(estimate, trackerSize), false);
+    }
+
     public TargetInfo target(int mmsi, Predicate<? super AisPacketSource> packetSourceFilter) {
         return tracker.get(mmsi, packetSourceFilter);
     }
 
+    /**
+     * Return the k positioned targets nearest to position and within maxDistance metres, nearest first.
+     * The cells of the spatial index are searched best-first, so only the cells nearer than the k'th
+     * target found are looked at; until the index is built, all targets are scanned.
+     */
+    public List<TargetDistance> nearest(Position position, int k, double maxDistance, Predicate<? super AisPacketSource> packetSourceFilter) {
+        NearestTargets nearest = new NearestTargets(position, k, maxDistance);
+        nearest(nearest, packetSourceFilter);
+        return nearest.toList();
+    }
+
+    /**
+     * Offer nearest the targets with reports from sources matching packetSourceFilter which may be among
+     * the nearest; see nearest(Position, int, double, Predicate).
+     *
+     * @return the number of targets visited; e.g. to charge for a search which a selective packetSourceFilter
+     *         makes visit many more targets than it returns
+     */
+    public long nearest(NearestTargets nearest, Predicate<? super AisPacketSource> packetSourceFilter) {
+        TargetGridIndex index = targetIndex;
+        if (index == null) {
+            tracker.streamSequential(packetSourceFilter).forEach(nearest::offer);
+            return tracker.size();
+        }
+
+        Position position = nearest.getFrom();
+        Set<Integer> seen = new HashSet<>();
+        index.visitByDistance(position.getLatitude(), position.getLongitude(), nearest.getMaxDistance(), (minDistance, mmsis) -> {
+            if (minDistance > nearest.getBound())
+                return false;
+            for (Integer mmsi : mmsis) {
+                if (seen.add(mmsi)) {
+                    TargetInfo target = tracker.get(mmsi, packetSourceFilter);
+                    if (target != null)
+                        nearest.offer(target);
+                }
+            }
+            return true;
+        });
+        return seen.size();
+    }
+
     public void start() {
         LOG.info("Starting AisTrackService");
         Objects.requireNonNull(aisBus);
+        long startupStart = System.nanoTime();
+        long phaseStart = startupStart;
+        changeLog = new ChangeLog(updateEpoch.get(), changeLogSize);
+        if (fragmentCacheSize > 0) {
+            fragmentCache = new FragmentCache(fragmentCacheSize);
+            LOG.info("Caching up to {} bytes of serialized targets", fragmentCacheSize);
+        }
 
-        if(backupService != null){
-            LOG.info("Starting {}", TargetTrackerFileBackupService.class.getSimpleName());
+        boolean replica = !StringUtils.isBlank(replicaOf);
+        if (replica) {
+            LOG.info("Replica of {}; the tracker is caught up from its snapshot instead of restored", replicaOf);
+        } else if(backupService != null){
+            LOG.info("Starting {}", TargetSnapshotService.class.getSimpleName());
             backupService.startAsync();
             backupService.awaitRunning();
+            PacketJournal packetJournal = backupService.getJournal();
+            journal = packetJournal != null && packetJournal.isOpen() ? packetJournal : null;
         } else {
-            LOG.info("{} not available", TargetTrackerFileBackupService.class.getSimpleName());
+            LOG.info("{} not available", TargetSnapshotService.class.getSimpleName());
         }
+        phaseStart = startupPhase("restore", phaseStart);
 
-        if(cleanup()){
-            Duration duration = Duration.parse(targetExpire);
-            BiPredicate<AisPacketSource, TargetInfo> predicate = new LastReportFilter(duration);
-            cleanupExecutor.scheduleAtFixedRate(() -> tracker.removeAll(predicate), minutesBetweenCleanup, minutesBetweenCleanup, MINUTES);
-            LOG.info("Configured cleanup of targets older than {}", targetExpire);
+        if (queryParallelism != 1) {
+            setQueryParallelism(queryParallelism, minTargetsForParallelQuery);
+        }
+
+        TargetGridIndex index = new TargetGridIndex(tracker, indexCellSize);
+        index.rebuild();
+        targetIndex = index;
+        LOG.info("Spatial index with {} degree cells built for {} targets", indexCellSize, index.size());
+        phaseStart = startupPhase("spatialIndex", phaseStart);
+
+        if (targetColumns) {
+            TargetColumns targetColumns = new TargetColumns(tracker);
+            targetColumns.rebuild();
+            columns = targetColumns;
+            LOG.info("Target columns built with {} rows", targetColumns.size());
+            phaseStart = startupPhase("targetColumns", phaseStart);
+        }
+        queryPlanner = new QueryPlanner(tracker, index, columns);
+
+        SubscriptionRegistry registry = new SubscriptionRegistry(index, tracker::get, subscriptionBufferSize);
+        published = updateEpoch.get();
+        subscriptions = registry;
+        subscriptionPool = Executors.newFixedThreadPool(Math.max(1, subscriptionThreads));
+        long publishMillis = Duration.parse(subscriptionInterval).toMillis();
+        publishExecutor.scheduleWithFixedDelay(this::publish, publishMillis, publishMillis, MILLISECONDS);
+
+        if(replica){
+            LOG.info("Targets are removed when the tracker replicated removes them. Cleanup not configured.");
+        }else if(cleanup()){
+            Duration resolution = Duration.parse(expiryResolution);
+            ExpiryIndex expiry = new ExpiryIndex(tracker, Duration.parse(targetExpire), resolution);
+            expiry.rebuild();
+            expiryIndex = expiry;
+            cleanupExecutor.scheduleAtFixedRate(this::expire, resolution.toMillis(), resolution.toMillis(), MILLISECONDS);
+            LOG.info("Configured cleanup of targets older than {} every {}", targetExpire, expiryResolution);
         }else{
             LOG.info("AisTrackService.targetExpire not configured. Cleanup not configured.");
         }
+        phaseStart = startupPhase("expiryIndex", phaseStart);
+
+        updateLatency = metrics.histogram("tracker.update.latencyNanos");
+        if (replica) {
+            startReplication();
+            phaseStart = startupPhase("replication", phaseStart);
+        } else {
+            ingestPipeline = startIngest();
+            phaseStart = startupPhase("ingest", phaseStart);
+        }
+        if (replicationPort > 0) {
+            startChangeStream();
+            startupPhase("changeStream", phaseStart);
+        }
+        startupPhase("total", startupStart);
+
+        metrics.gauge("tracker.targets", tracker::size);
+        metrics.gauge("tracker.updateEpoch", this::getUpdateEpoch);
+        if (expiryIndex != null)
+            metrics.gauge("cleanup.scheduledTargets", expiryIndex::size);
+        if (columns != null) {
+            metrics.gauge("tracker.columnRows", columns::size);
+            metrics.gauge("tracker.sources", columns::numberOfSources);
+        }
+        metrics.gauge("subscriptions.active", registry::size);
+        metrics.gauge("subscriptions.disconnected", registry::disconnectedCount);
+        if (journal != null) {
+            metrics.gauge("journal.appended", journal::appendedCount);
+            metrics.gauge("journal.queued", journal::queued);
+            metrics.gauge("journal.batches", journal::batchCount);
+            metrics.gauge("journal.fsyncs", journal::fsyncCount);
+        }
+        FragmentCache fragments = fragmentCache;
+        if (fragments != null) {
+            metrics.gauge("fragmentCache.targets", fragments::size);
+            metrics.gauge("fragmentCache.bytes", fragments::sizeInBytes);
+            metrics.gauge("fragmentCache.hits", fragments::hitCount);
+            metrics.gauge("fragmentCache.misses", fragments::missCount);
+            metrics.gauge("fragmentCache.evicted", fragments::evictedCount);
+        }
+    }
+
+    /** Start the pipeline applying the packets from the AisBus to the tracker */
+    private IngestPipeline startIngest() {
+        Meter received = metrics.meter("ingest.received");
+        Meter accepted = metrics.meter("ingest.accepted");
+        Predicate<AisPacket> packetFilter = inputPacketFilter();
+        Predicate<AisPacket> inputFilter = packet -> {
+            received.mark();
+            boolean accept = packetFilter.test(packet);
+            if (accept)
+                accepted.mark();
+            return accept;
+        };
+
+        int workers = ingestThreads <= 0 ? Runtime.getRuntime().availableProcessors() : ingestThreads;
+        OverloadPolicy overloadPolicy = OverloadPolicy.valueOf(ingestOverloadPolicy.trim().toUpperCase());
+        Predicate<AisPacketSource> shedSourceFilter = StringUtils.isBlank(ingestShedSourceFilter) ? null : AisPacketSourceFilters.parseSourceFilter(ingestShedSourceFilter);
+        IngestPipeline pipeline = new IngestPipeline(inputFilter, this::update, workers, ingestQueueDepth, overloadPolicy, shedSourceFilter);
+        pipeline.start();
+
+        metrics.gauge("ingest.queued", pipeline::queued);
+        metrics.gauge("ingest.updated", pipeline::updatedCount);
+        metrics.gauge("ingest.failed", pipeline::failedCount);
+        metrics.gauge("ingest.blocked", pipeline::blockedCount);
+        metrics.gauge("ingest.dropped", pipeline::droppedCount);
+        metrics.gauge("ingest.coalesced", pipeline::coalescedCount);
+        metrics.gauge("ingest.shed", pipeline::shedCount);
+
+        statusExecutor.scheduleAtFixedRate(() -> LOG.debug("Now tracking " + tracker.size() + " targets; "
+            + pipeline.updatedCount() + " packets applied, " + pipeline.queued() + " queued, "
+            + pipeline.droppedCount() + " dropped, " + pipeline.coalescedCount() + " coalesced, " + pipeline.shedCount() + " shed."), secsBetweenStatus, secsBetweenStatus, SECONDS);
+        serviceExecutor.submit(() -> startAisBus(pipeline));
+        return pipeline;
+    }
+
+    /** Start following the change stream of the tracker replicated, instead of the AisBus */
+    private void startReplication() {
+        ChangeStreamClient client = ChangeStreamClient.of(replicaOf, tracker, Duration.ofSeconds(5), this::replicated);
+        client.start();
+        replication = client;
+
+        metrics.gauge("replication.lagMillis", client::getLagMillis);
+        metrics.gauge("replication.leaderHighWaterMark", client::getLeaderHighWaterMark);
+        metrics.gauge("replication.synced", client::isSynced);
+        metrics.gauge("replication.applied", client::appliedCount);
+        metrics.gauge("replication.resyncs", client::resyncCount);
+        statusExecutor.scheduleAtFixedRate(() -> LOG.debug("Now tracking " + tracker.size() + " targets; "
+            + client.appliedCount() + " changes replicated from " + replicaOf + ", lagging " + client.getLagMillis() + " ms."), secsBetweenStatus, secsBetweenStatus, SECONDS);
+    }
+
+    /** Serve the changes to the tracker to replicas; they are published along with the updates to subscribers */
+    private void startChangeStream() {
+        try {
+            ChangeStreamServer server = new ChangeStreamServer(tracker, replicationPort, replicationBufferSize, updateEpoch::get);
+            server.start();
+            changeStream = server;
+            metrics.gauge("replication.replicas", server::size);
+            metrics.gauge("replication.disconnected", server::disconnectedCount);
+            metrics.gauge("replication.published", server::publishedCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot serve the change stream on port " + replicationPort, e);
+        }
+    }
+
+    /** @return trackerInputPacketFilter; also rejecting packets for MMSIs outside the shard if one is configured */
+    private Predicate<AisPacket> inputPacketFilter() {
+        if (StringUtils.isBlank(shard))
+            return trackerInputPacketFilter;
+
+        // Packets for MMSIs owned by other nodes are dropped like any other packet rejected by the input filter
+        MmsiPartition partition = MmsiPartition.parse(shard);
+        LOG.info("Tracking MMSI partition {}", partition);
+        return trackerInputPacketFilter.and(partition);
+    }
+
+    /** Record the duration of a phase of start() as a gauge; returns the start time of the next phase */
+    private long startupPhase(String phase, long start) {
+        long millis = NANOSECONDS.toMillis(System.nanoTime() - start);
+        metrics.gauge("startup." + phase + "Millis", () -> millis);
+        LOG.info("Startup phase {} took {} ms", phase, millis);
+        return System.nanoTime();
+    }
+
+    /** @return the cache of serialized targets; null if disabled or before start */
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    /** @return the pipeline applying packets from the AisBus to the tracker; null before start and on replicas */
+    public IngestPipeline getIngestPipeline() {
+        return ingestPipeline;
+    }
+
+    /** @return the client following the change stream of the tracker replicated; null unless this is a replica */
+    public ChangeStreamClient getReplication() {
+        return replication;
+    }
+
+    /** @return the server of the change stream to replicas; null if none is served */
+    public ChangeStreamServer getChangeStream() {
+        return changeStream;
+    }
+
+    /**
+     * Update the tracker, the spatial index, the target columns and the expiry index with packet, and journal it.
+     * Called concurrently by the ingest workers; but never concurrently for the same MMSI.
+     *
+     * Packets are journaled after they are applied, so every packet in a journal segment closed
+     * before a snapshot is taken is included in that snapshot.
+     */
+    private void update(AisPacket packet) {
+        long start = System.nanoTime();
+        tracker.update(packet);
+        updateLatency.update(System.nanoTime() - start);
+
+        AisMessage message = packet.tryGetAisMessage();
+        if (message == null) {
+            return; // Not applied by the tracker
+        }
+        AisPacketSource source = AisPacketSource.create(packet);
+        // A report without position may still replace the position of the target, if it is from another source
+        Set<Integer> cellsBefore = message instanceof IPositionMessage
+            ? targetIndex.reindex(message.getUserId(), source) : targetIndex.cellsOf(message.getUserId());
+        changeLog.record(updateEpoch.incrementAndGet(), message.getUserId(), cellsBefore);
+        FragmentCache fragments = fragmentCache;
+        if (fragments != null) {
+            fragments.invalidate(message.getUserId());
+        }
 
-        statusExecutor.scheduleAtFixedRate(() -> LOG.debug("Now tracking " + tracker.size() + " targets."), secsBetweenStatus, secsBetweenStatus, SECONDS);
-        serviceExecutor.submit(() -> {
-            startAisBus(packet -> {
-                if (trackerInputPacketFilter.test(packet))
-                    tracker.update(packet);
+        TargetColumns targetColumns = columns;
+        if (targetColumns != null) {
+            targetColumns.update(message.getUserId(), source);
+        }
+        ExpiryIndex expiry = expiryIndex;
+        if (expiry != null) {
+            expiry.touch(message.getUserId(), source);
+        }
+        PacketJournal packetJournal = journal;
+        if (packetJournal != null) {
+            packetJournal.append(packet);
+        }
+    }
+
+    /**
+     * Update the spatial index, the target columns and the fragment cache with a target replaced or
+     * removed by the change stream, and record the change. Called by the replication thread only.
+     */
+    private void replicated(int mmsi, Collection<AisPacketSource> sources) {
+        Set<Integer> cellsBefore = targetIndex.cellsOf(mmsi);
+        boolean removed = false;
+        TargetColumns targetColumns = columns;
+        for (AisPacketSource source : sources) {
+            targetIndex.reindex(mmsi, source);
+            if (targetColumns != null) {
+                targetColumns.update(mmsi, source);
+            }
+            removed |= tracker.get(mmsi, source::equals) == null;
+        }
+        if (removed) {
+            changeLog.recordRemoval(updateEpoch.incrementAndGet(), mmsi);
+        } else {
+            changeLog.record(updateEpoch.incrementAndGet(), mmsi, cellsBefore);
+        }
+        FragmentCache fragments = fragmentCache;
+        if (fragments != null) {
+            fragments.invalidate(mmsi);
+        }
+    }
+
+    /** Remove the reports which have expired according to the expiry index from the tracker, the indexes and the fragment cache */
+    private void expire() {
+        try {
+            long start = System.nanoTime();
+            FragmentCache fragments = fragmentCache;
+            TargetColumns targetColumns = columns;
+            List<Map.Entry<Integer, AisPacketSource>> removed = expiryIndex.expire();
+            removed.forEach(entry -> {
+                targetIndex.reindex(entry.getKey(), entry.getValue());
+                if (targetColumns != null)
+                    targetColumns.update(entry.getKey(), entry.getValue());
+                changeLog.recordRemoval(updateEpoch.incrementAndGet(), entry.getKey());
+                if (fragments != null)
+                    fragments.invalidate(entry.getKey());
             });
-        });
+
+            long micros = NANOSECONDS.toMicros(System.nanoTime() - start);
+            metrics.histogram("cleanup.durationMicros").update(micros);
+            metrics.histogram("cleanup.removed").update(removed.size());
+            LOG.debug("Cleanup removed {} reports in {} us", removed.size(), micros);
+        } catch (RuntimeException e) {
+            // An exception would cancel all future runs of the scheduled cleanup
+            LOG.error("Cleanup failed", e);
+        }
+    }
+
+    /** Dispatch the changes recorded since the last run to the subscriptions, and flush those with changes; and send them to replicas */
+    private void publish() {
+        try {
+            long current = updateEpoch.get();
+            ChangeLog.Changes changes = changeLog.since(published, current);
+            if (changes == null) {
+                // The change log has wrapped around since the last run; subscribers must start over with a new snapshot
+                subscriptions.closeAll("Too many changes to follow");
+                if (changeStream != null)
+                    changeStream.closeAll("Too many changes to follow");
+                published = current;
+                return;
+            }
+            published = changes.getHighWaterMark();
+            subscriptions.dispatch(changes.getMmsis()).forEach(subscription -> subscriptionPool.execute(() -> subscriptions.flush(subscription)));
+            if (changeStream != null)
+                changeStream.publish(changes.getMmsis(), published);
+        } catch (RuntimeException e) {
+            // An exception would cancel all future runs of the scheduled publish
+            LOG.error("Publishing changes to subscribers failed", e);
+        }
     }
 
     private void startAisBus(Consumer<AisPacket> packetConsumer) {
@@ -172,6 +814,31 @@ public class AisTrackService {
         serviceExecutor.shutdownNow();
         statusExecutor.shutdown();
 
+        if (replication != null) {
+            replication.close();
+        }
+        if (changeStream != null) {
+            changeStream.close();
+        }
+
+        publishExecutor.shutdownNow();
+        if (subscriptions != null) {
+            subscriptions.closeAll("Tracker stopped");
+            subscriptionPool.shutdown();
+        }
+
+        if (ingestPipeline != null) {
+            try {
+                ingestPipeline.stop(5, SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (queryPool != null) {
+            queryPool.shutdown();
+        }
+
         if(cleanup()){
             cleanupExecutor.shutdownNow();
         }
@@ -202,10 +869,22 @@ public class AisTrackService {
         this.tracker = targetTracker;
     }
 
-    void setTargetTrackerFileBackupService(TargetTrackerFileBackupService backupService) {
+    void setTargetSnapshotService(TargetSnapshotService backupService) {
         this.backupService = backupService;
     }
 
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Execute queries visiting at least minTargets targets in parallel on parallelism threads; 0 for one per core */
+    void setQueryParallelism(int parallelism, int minTargets) {
+        int threads = parallelism <= 0 ? Runtime.getRuntime().availableProcessors() : parallelism;
+        queryPool = new ForkJoinPool(threads);
+        minTargetsForParallelQuery = minTargets;
+        LOG.info("Executing queries visiting at least {} targets in parallel on {} threads", minTargets, threads);
+    }
+
     void setAisBus(AisBus aisBus) {
         this.aisBus = aisBus;
     }
@@ -16,8 +16,13 @@ package dk.dma.ais.track;
 
 import dk.dma.ais.bus.AisBus;
 import dk.dma.ais.configuration.bus.AisBusConfiguration;
+import dk.dma.ais.track.journal.FsyncPolicy;
+import dk.dma.ais.track.journal.PacketJournal;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.ResultCache;
+import dk.dma.ais.track.query.SourceFilterCache;
+import dk.dma.ais.track.snapshot.TargetSnapshotService;
 import dk.dma.ais.tracker.targetTracker.TargetTracker;
-import dk.dma.ais.tracker.targetTracker.TargetTrackerFileBackupService;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +35,8 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.exit;
 
@@ -43,6 +50,38 @@ public class AisTrackServiceConfiguration {
 
     {  LOG.info("AisTrackServiceConfiguration created."); }
 
+    /** Maximum number of compiled source filter expressions to cache */
+    @Value("${dk.dma.ais.track.AisTrackService.sourceFilterCacheSize:100}")
+    private int sourceFilterCacheSize;
+
+    /** Maximum total size in bytes of cached /tracks results */
+    @Value("${dk.dma.ais.track.AisTrackService.resultCacheSize:67108864}")
+    private long resultCacheSize;
+
+    /** How long a cached /tracks result may be served after targets have changed */
+    @Value("${dk.dma.ais.track.AisTrackService.resultCacheStaleness:PT2S}")
+    private String resultCacheStaleness;
+
+    /** Time between snapshots of the tracker */
+    @Value("${dk.dma.ais.track.AisTrackService.snapshotInterval:PT1M}")
+    private String snapshotInterval;
+
+    /** Number of threads restoring the snapshot at startup; 0 for one per core */
+    @Value("${dk.dma.ais.track.AisTrackService.restoreThreads:0}")
+    private int restoreThreads;
+
+    /** Journal the packets applied since the last snapshot, so they are replayed after a crash */
+    @Value("${dk.dma.ais.track.AisTrackService.journal:false}")
+    private boolean journal;
+
+    /** When to force journaled packets to disk; one of NEVER, INTERVAL, BATCH */
+    @Value("${dk.dma.ais.track.AisTrackService.journalFsyncPolicy:INTERVAL}")
+    private String journalFsyncPolicy;
+
+    /** Time between forcing journaled packets to disk with fsync policy INTERVAL */
+    @Value("${dk.dma.ais.track.AisTrackService.journalFsyncInterval:PT1S}")
+    private String journalFsyncInterval;
+
     /** Location of aisbus.xml file */
     @Value("${dk.dma.ais.track.AisTrackService.aisbusxml}")
     private String aisBusXmlFileName;
@@ -66,9 +105,26 @@ public class AisTrackServiceConfiguration {
     }
 
     @Bean
-    public TargetTrackerFileBackupService provideFileBackupService(TargetTracker targetTracker){
+    public SourceFilterCache provideSourceFilterCache() {
+        LOG.info("Caching up to {} compiled source filter expressions.", sourceFilterCacheSize);
+        return new SourceFilterCache(sourceFilterCacheSize, 10000);
+    }
+
+    @Bean
+    public ResultCache provideResultCache() {
+        LOG.info("Caching up to {} bytes of query results; up to {} stale.", resultCacheSize, resultCacheStaleness);
+        return new ResultCache(resultCacheSize, Duration.parse(resultCacheStaleness));
+    }
+
+    @Bean
+    public Metrics provideMetrics() {
+        return new Metrics();
+    }
+
+    @Bean
+    public TargetSnapshotService provideSnapshotService(TargetTracker targetTracker, Metrics metrics){
         if(backupPath == null || backupPath.trim().length() == 0){
-            LOG.info("dk.dma.ais.track.AisTrackService.backup not available. Can not configure {}", TargetTrackerFileBackupService.class.getSimpleName());
+            LOG.info("dk.dma.ais.track.AisTrackService.backup not available. Can not configure {}", TargetSnapshotService.class.getSimpleName());
             return null;
         }
 
@@ -77,12 +133,28 @@ public class AisTrackServiceConfiguration {
             path.toFile().mkdirs();
         }
 
-        TargetTrackerFileBackupService backupService = new TargetTrackerFileBackupService(targetTracker, path);
-        LOG.info("{} configured with path {}.", TargetTrackerFileBackupService.class.getSimpleName(), backupPath);
+        PacketJournal packetJournal = null;
+        if (journal) {
+            FsyncPolicy fsyncPolicy = FsyncPolicy.valueOf(journalFsyncPolicy.trim().toUpperCase());
+            packetJournal = new PacketJournal(path.resolve("journal"), fsyncPolicy, Duration.parse(journalFsyncInterval), 100000);
+            LOG.info("Journaling packets between snapshots; fsync policy {}.", fsyncPolicy);
+        }
 
-        return backupService;
-    }
+        int parallelism = restoreThreads <= 0 ? Runtime.getRuntime().availableProcessors() : restoreThreads;
+        TargetSnapshotService snapshotService = new TargetSnapshotService(targetTracker, path, Duration.parse(snapshotInterval), parallelism, packetJournal) {
+            @Override
+            protected void runOneIteration() throws Exception {
+                long start = System.nanoTime();
+                super.runOneIteration();
+                metrics.histogram("backup.durationMillis").update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (Files.exists(getSnapshotFile()))
+                    metrics.histogram("backup.sizeBytes").update(Files.size(getSnapshotFile()));
+            }
+        };
+        LOG.info("{} configured with path {}; snapshot every {}.", TargetSnapshotService.class.getSimpleName(), backupPath, snapshotInterval);
 
+        return snapshotService;
+    }
 
     private InputStream aisBusConfiguration() throws IOException {
         InputStream is = null;
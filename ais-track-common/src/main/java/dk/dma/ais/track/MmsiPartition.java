@@ -0,0 +1,83 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.packet.AisPacket;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.function.Predicate;
+
+/**
+ * One of a number of equally sized partitions of the MMSI space, owned by a tracker node in a
+ * sharded deployment. Partition i of n owns the MMSIs m for which m mod n = i; so consecutive
+ * MMSI numbers - e.g. those allocated to one country - are spread over all partitions.
+ */
+@Immutable
+public final class MmsiPartition implements Predicate<AisPacket> {
+
+    private final int index;
+    private final int count;
+
+    public MmsiPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Partition must be i/n with 0 <= i < n, not " + index + "/" + count);
+        this.index = index;
+        this.count = count;
+    }
+
+    /** Parse a partition written as index/count, e.g. 0/3 */
+    public static MmsiPartition parse(String partition) {
+        String[] parts = partition.trim().split("/");
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Partition must be written as index/count, not " + partition);
+        try {
+            return new MmsiPartition(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Partition must be written as index/count, not " + partition, e);
+        }
+    }
+
+    /** @return the index of the partition owning mmsi among count partitions */
+    public static int indexOf(int mmsi, int count) {
+        return Math.floorMod(mmsi, count);
+    }
+
+    /** @return true if this partition owns mmsi */
+    public boolean owns(int mmsi) {
+        return indexOf(mmsi, count) == index;
+    }
+
+    /** @return true if packet carries a message from an MMSI this partition owns */
+    @Override
+    public boolean test(AisPacket packet) {
+        AisMessage message = packet.tryGetAisMessage();
+        return message != null && owns(message.getUserId());
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+
+}
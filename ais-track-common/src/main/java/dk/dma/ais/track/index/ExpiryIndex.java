@@ -0,0 +1,264 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import dk.dma.ais.data.AisTarget;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.LastReportFilter;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerAccess;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A timing wheel of the reports held by a TargetTracker, ordered by the time they expire.
+ *
+ * Time is divided into slots of a fixed resolution, and every (MMSI, source) pair is kept in the
+ * slot in which its last report becomes older than the expiry duration. Expiring targets then
+ * only visits the slots which have passed, instead of the whole fleet. Each report found there is
+ * tested with LastReportFilter before it is removed, so reports dated in the future are treated
+ * just as by the full scan: they are removed at once if more than the expiry duration ahead, and
+ * otherwise when they are the expiry duration old.
+ */
+@ThreadSafe
+public class ExpiryIndex {
+
+    private final TargetTracker tracker;
+    private final LastReportFilter filter;
+    private final long expireMillis;
+    private final long resolutionMillis;
+
+    /** The reports due to expire in each slot; slot n covers the times [n * resolution; (n + 1) * resolution[ */
+    private final ConcurrentSkipListMap<Long, Slot> slots = new ConcurrentSkipListMap<>();
+
+    /** The slot of each source's report for a given MMSI */
+    private final ConcurrentHashMap<Integer, Map<AisPacketSource, Long>> slotsByMmsi = new ConcurrentHashMap<>();
+
+    /**
+     * Create an expiry index of the targets in tracker.
+     * @param tracker the tracker holding the indexed targets
+     * @param expire the age at which a report expires
+     * @param resolution the width of each slot; reports are removed at most this long after they expired
+     */
+    public ExpiryIndex(TargetTracker tracker, Duration expire, Duration resolution) {
+        if (expire.isNegative() || expire.isZero())
+            throw new IllegalArgumentException("Expiry duration must be positive, not " + expire);
+        if (resolution.isNegative() || resolution.isZero())
+            throw new IllegalArgumentException("Expiry resolution must be positive, not " + resolution);
+
+        this.tracker = tracker;
+        this.filter = new LastReportFilter(expire);
+        this.expireMillis = expire.getSeconds() * 1000;
+        this.resolutionMillis = resolution.toMillis();
+    }
+
+    /**
+     * Reschedule the report of mmsi from source as it is now held by the tracker. Must be called
+     * after every update the tracker makes to that pair.
+     */
+    public void touch(int mmsi, AisPacketSource source) {
+        slotsByMmsi.compute(mmsi, (key, slotBySource) -> {
+            // Read the tracker while holding the per-MMSI lock, so the last touch always sees the latest state
+            TargetInfo targetInfo = tracker.get(mmsi, source::equals);
+            Long slot = targetInfo == null ? null : slotOf(expiresAt(lastReport(targetInfo), System.currentTimeMillis()));
+            return move(mmsi, source, slotBySource, slot);
+        });
+    }
+
+    /** Schedule every source of every target in the tracker; e.g. after it was restored from backup */
+    public void rebuild() {
+        tracker.streamSequential().forEach(targetInfo -> {
+            int mmsi = targetInfo.getMmsi();
+            tracker.getPacketSourcesForMMSI(mmsi).forEach(source -> touch(mmsi, source));
+        });
+    }
+
+    /**
+     * Remove the reports of all passed slots which have expired from the tracker. Reports which
+     * were updated since they were scheduled are moved to the slot of their new expiry time.
+     *
+     * @return the MMSI and source of each removed report
+     */
+    public List<Map.Entry<Integer, AisPacketSource>> expire() {
+        long now = System.currentTimeMillis();
+        long current = now / resolutionMillis;
+        List<Map.Entry<Integer, AisPacketSource>> removed = new ArrayList<>();
+
+        Map.Entry<Long, Slot> passed;
+        while ((passed = slots.firstEntry()) != null && passed.getKey() < current) {
+            slots.remove(passed.getKey(), passed.getValue());
+            for (Key key : passed.getValue().close())
+                expire(key, passed.getKey(), now, removed);
+        }
+        return removed;
+    }
+
+    private void expire(Key key, long slot, long now, List<Map.Entry<Integer, AisPacketSource>> removed) {
+        slotsByMmsi.computeIfPresent(key.mmsi, (mmsi, slotBySource) -> {
+            if (!Objects.equals(slotBySource.get(key.source), slot))
+                return slotBySource; // Touched since it was put in this slot
+
+            TargetInfo targetInfo = tracker.get(mmsi, key.source::equals);
+            Long next = null;
+            if (targetInfo != null) {
+                if (filter.test(key.source, targetInfo)) {
+                    if (TargetTrackerAccess.remove(tracker, mmsi, key.source, targetInfo))
+                        removed.add(new AbstractMap.SimpleImmutableEntry<>(mmsi, key.source));
+                } else {
+                    // The filter decides by the last report of the AisTarget; schedule by that, but never in a passed slot
+                    AisTarget aisTarget = targetInfo.getAisTarget();
+                    long lastReport = aisTarget == null || aisTarget.getLastReport() == null ? Long.MAX_VALUE : aisTarget.getLastReport().getTime();
+                    Long expiresIn = slotOf(expiresAt(lastReport, now));
+                    next = expiresIn == null ? null : Math.max(expiresIn, now / resolutionMillis);
+                }
+            }
+            return move(mmsi, key.source, slotBySource, next);
+        });
+    }
+
+    /** Move the report of mmsi from source to slot - or out of the index if slot is null */
+    private Map<AisPacketSource, Long> move(int mmsi, AisPacketSource source, Map<AisPacketSource, Long> slotBySource, Long slot) {
+        Long previous = null;
+        if (slot == null) {
+            if (slotBySource != null)
+                previous = slotBySource.remove(source);
+        } else {
+            if (slotBySource == null)
+                slotBySource = new HashMap<>(2);
+            previous = slotBySource.put(source, slot);
+        }
+
+        if (!Objects.equals(previous, slot)) {
+            Key key = new Key(mmsi, source);
+            if (previous != null) {
+                Slot from = slots.get(previous);
+                if (from != null)
+                    from.remove(key);
+            }
+            if (slot != null)
+                addToSlot(slot, key);
+        }
+
+        return slotBySource == null || slotBySource.isEmpty() ? null : slotBySource;
+    }
+
+    private void addToSlot(long slot, Key key) {
+        for (;;) {
+            Slot to = slots.computeIfAbsent(slot, s -> new Slot());
+            if (to.add(key))
+                return;
+            slots.remove(slot, to); // Closed by a concurrent expire; open the slot again
+        }
+    }
+
+    /**
+     * The last report of targetInfo without generating its AisTarget, which requires decoding its packets.
+     * Equals the AisTarget's last report when the packets carry a timestamp.
+     */
+    private static long lastReport(TargetInfo targetInfo) {
+        long lastReport = Math.max(targetInfo.getPositionTimestamp(), targetInfo.getStaticTimestamp());
+        if (lastReport > 0)
+            return lastReport;
+        AisTarget aisTarget = targetInfo.getAisTarget();
+        return aisTarget == null || aisTarget.getLastReport() == null ? Long.MAX_VALUE : aisTarget.getLastReport().getTime();
+    }
+
+    /**
+     * The time at which LastReportFilter considers a report made at lastReport expired.
+     * The filter compares ages in whole seconds; hence the extra second.
+     */
+    private long expiresAt(long lastReport, long now) {
+        if (lastReport == Long.MAX_VALUE)
+            return Long.MAX_VALUE; // Never expires
+        if (lastReport - now >= expireMillis + 1000)
+            return 0; // More than the expiry duration into the future; due at once
+        return lastReport + expireMillis + 1000;
+    }
+
+    private Long slotOf(long time) {
+        return time == Long.MAX_VALUE ? null : time / resolutionMillis;
+    }
+
+    /** @return the number of MMSIs in the index */
+    public int size() {
+        return slotsByMmsi.size();
+    }
+
+    /** @return the number of reports in the index */
+    public int numberOfReports() {
+        return slotsByMmsi.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /** The reports due to expire in one slot; closed when the slot is expired */
+    private static final class Slot {
+        private final Set<Key> keys = new HashSet<>();
+        private boolean closed;
+
+        synchronized boolean add(Key key) {
+            if (closed)
+                return false;
+            keys.add(key);
+            return true;
+        }
+
+        synchronized void remove(Key key) {
+            if (!closed)
+                keys.remove(key); // The keys of a closed slot are being expired
+        }
+
+        synchronized Set<Key> close() {
+            closed = true;
+            return keys;
+        }
+    }
+
+    private static final class Key {
+        final int mmsi;
+        final AisPacketSource source;
+
+        Key(int mmsi, AisPacketSource source) {
+            this.mmsi = mmsi;
+            this.source = source;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return mmsi == key.mmsi && source.equals(key.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mmsi + source.hashCode();
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of rows. The rows are split into blocks of 65536 by their upper 16 bits; a block
+ * holding few rows is kept as a sorted array of their lower 16 bits - 2 bytes per row - and a block
+ * holding many as a bitmap of 8 KB. Blocks without rows are not kept at all. So the rows of a rare
+ * dimension value take little more space than their number, and those of a common value no more
+ * than a BitSet.
+ *
+ * The results of and and or are new bitmaps, sharing no state with the operands.
+ */
+@NotThreadSafe
+public final class RowBitmap {
+
+    /** The most rows kept in an array block; above this a bitmap block is smaller */
+    static final int MAX_ARRAY_ROWS = 4096;
+
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_WORDS = (1 << BLOCK_BITS) / 64;
+
+    /** The upper 16 bits of the rows of each block, ascending */
+    private int[] keys;
+    private Block[] blocks;
+    private int size;
+
+    public RowBitmap() {
+        this(4);
+    }
+
+    private RowBitmap(int capacity) {
+        keys = new int[capacity];
+        blocks = new Block[capacity];
+    }
+
+    public void add(int row) {
+        int key = row >>> BLOCK_BITS;
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, key, new ArrayBlock(new char[4], 0));
+        }
+        blocks[i] = blocks[i].add((char) row);
+    }
+
+    public void remove(int row) {
+        int i = Arrays.binarySearch(keys, 0, size, row >>> BLOCK_BITS);
+        if (i < 0)
+            return;
+
+        Block block = blocks[i].remove((char) row);
+        if (block.cardinality() > 0) {
+            blocks[i] = block;
+        } else {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(blocks, i + 1, blocks, i, size - i - 1);
+            blocks[--size] = null;
+        }
+    }
+
+    public boolean contains(int row) {
+        int i = Arrays.binarySearch(keys, 0, size, row >>> BLOCK_BITS);
+        return i >= 0 && blocks[i].contains((char) row);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return the number of rows */
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++)
+            cardinality += blocks[i].cardinality();
+        return cardinality;
+    }
+
+    /** @return the rows in both this and other */
+    public RowBitmap and(RowBitmap other) {
+        RowBitmap result = new RowBitmap(Math.max(1, Math.min(size, other.size)));
+        int i = 0, j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Block block = blocks[i++].and(other.blocks[j++]);
+                if (block.cardinality() > 0)
+                    result.insert(result.size, keys[i - 1], block);
+            }
+        }
+        return result;
+    }
+
+    /** @return the rows in this, other or both */
+    public RowBitmap or(RowBitmap other) {
+        RowBitmap result = new RowBitmap(Math.max(1, size + other.size));
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || i < size && keys[i] < other.keys[j])
+                result.insert(result.size, keys[i], blocks[i++].copy());
+            else if (i == size || keys[i] > other.keys[j])
+                result.insert(result.size, other.keys[j], other.blocks[j++].copy());
+            else
+                result.insert(result.size, keys[i], blocks[i++].or(other.blocks[j++]));
+        }
+        return result;
+    }
+
+    /** Pass each row to action, ascending */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++)
+            blocks[i].forEach(keys[i] << BLOCK_BITS, action);
+    }
+
+    private void insert(int i, int key, Block block) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            blocks = Arrays.copyOf(blocks, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(blocks, i, blocks, i + 1, size - i);
+        keys[i] = key;
+        blocks[i] = block;
+        size++;
+    }
+
+    /** The rows of a block, by their lower 16 bits. Updates return the block to use from then on */
+    private abstract static class Block {
+        abstract int cardinality();
+
+        abstract boolean contains(char row);
+
+        abstract Block add(char row);
+
+        abstract Block remove(char row);
+
+        abstract Block and(Block other);
+
+        abstract Block or(Block other);
+
+        abstract Block copy();
+
+        abstract void forEach(int base, IntConsumer action);
+    }
+
+    /** A block of at most MAX_ARRAY_ROWS rows, kept sorted */
+    private static final class ArrayBlock extends Block {
+        private char[] rows;
+        private int n;
+
+        ArrayBlock(char[] rows, int n) {
+            this.rows = rows;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        boolean contains(char row) {
+            return Arrays.binarySearch(rows, 0, n, row) >= 0;
+        }
+
+        @Override
+        Block add(char row) {
+            int i = Arrays.binarySearch(rows, 0, n, row);
+            if (i >= 0)
+                return this;
+            if (n == MAX_ARRAY_ROWS)
+                return toBitmap().add(row);
+
+            i = -i - 1;
+            if (n == rows.length)
+                rows = Arrays.copyOf(rows, Math.min(MAX_ARRAY_ROWS, Math.max(4, n * 2)));
+            System.arraycopy(rows, i, rows, i + 1, n - i);
+            rows[i] = row;
+            n++;
+            return this;
+        }
+
+        @Override
+        Block remove(char row) {
+            int i = Arrays.binarySearch(rows, 0, n, row);
+            if (i >= 0) {
+                System.arraycopy(rows, i + 1, rows, i, n - i - 1);
+                n--;
+            }
+            return this;
+        }
+
+        @Override
+        Block and(Block other) {
+            char[] result = new char[n];
+            int count = 0;
+            if (other instanceof ArrayBlock) {
+                ArrayBlock array = (ArrayBlock) other;
+                int i = 0, j = 0;
+                while (i < n && j < array.n) {
+                    if (rows[i] < array.rows[j]) {
+                        i++;
+                    } else if (rows[i] > array.rows[j]) {
+                        j++;
+                    } else {
+                        result[count++] = rows[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    if (other.contains(rows[i]))
+                        result[count++] = rows[i];
+                }
+            }
+            return new ArrayBlock(result, count);
+        }
+
+        @Override
+        Block or(Block other) {
+            if (other instanceof BitmapBlock)
+                return other.or(this);
+
+            ArrayBlock array = (ArrayBlock) other;
+            char[] result = new char[n + array.n];
+            int count = 0, i = 0, j = 0;
+            while (i < n || j < array.n) {
+                if (j == array.n || i < n && rows[i] < array.rows[j]) {
+                    result[count++] = rows[i++];
+                } else if (i == n || rows[i] > array.rows[j]) {
+                    result[count++] = array.rows[j++];
+                } else {
+                    result[count++] = rows[i++];
+                    j++;
+                }
+            }
+            ArrayBlock merged = new ArrayBlock(result, count);
+            return count > MAX_ARRAY_ROWS ? merged.toBitmap() : merged;
+        }
+
+        @Override
+        Block copy() {
+            return new ArrayBlock(Arrays.copyOf(rows, n), n);
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < n; i++)
+                action.accept(base | rows[i]);
+        }
+
+        BitmapBlock toBitmap() {
+            long[] words = new long[BLOCK_WORDS];
+            for (int i = 0; i < n; i++)
+                words[rows[i] >>> 6] |= 1L << rows[i];
+            return new BitmapBlock(words, n);
+        }
+    }
+
+    /** A block of more rows, kept as a bitmap; turned back into an array block when half of MAX_ARRAY_ROWS are left */
+    private static final class BitmapBlock extends Block {
+        private final long[] words;
+        private int n;
+
+        BitmapBlock(long[] words, int n) {
+            this.words = words;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        boolean contains(char row) {
+            return (words[row >>> 6] & 1L << row) != 0;
+        }
+
+        @Override
+        Block add(char row) {
+            if (!contains(row)) {
+                words[row >>> 6] |= 1L << row;
+                n++;
+            }
+            return this;
+        }
+
+        @Override
+        Block remove(char row) {
+            if (contains(row)) {
+                words[row >>> 6] &= ~(1L << row);
+                n--;
+            }
+            return n <= MAX_ARRAY_ROWS / 2 ? toArray(words, n) : this;
+        }
+
+        @Override
+        Block and(Block other) {
+            if (other instanceof ArrayBlock)
+                return other.and(this);
+
+            long[] result = new long[BLOCK_WORDS];
+            long[] otherWords = ((BitmapBlock) other).words;
+            int count = 0;
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                result[w] = words[w] & otherWords[w];
+                count += Long.bitCount(result[w]);
+            }
+            return count > MAX_ARRAY_ROWS ? new BitmapBlock(result, count) : toArray(result, count);
+        }
+
+        @Override
+        Block or(Block other) {
+            long[] result = words.clone();
+            int count;
+            if (other instanceof ArrayBlock) {
+                ArrayBlock array = (ArrayBlock) other;
+                count = n;
+                for (int i = 0; i < array.n; i++) {
+                    char row = array.rows[i];
+                    if ((result[row >>> 6] & 1L << row) == 0) {
+                        result[row >>> 6] |= 1L << row;
+                        count++;
+                    }
+                }
+            } else {
+                long[] otherWords = ((BitmapBlock) other).words;
+                count = 0;
+                for (int w = 0; w < BLOCK_WORDS; w++) {
+                    result[w] |= otherWords[w];
+                    count += Long.bitCount(result[w]);
+                }
+            }
+            return new BitmapBlock(result, count);
+        }
+
+        @Override
+        Block copy() {
+            return new BitmapBlock(words.clone(), n);
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1)
+                    action.accept(base | w << 6 | Long.numberOfTrailingZeros(word));
+            }
+        }
+
+        private static ArrayBlock toArray(long[] words, int n) {
+            char[] rows = new char[Math.max(4, n)];
+            int i = 0;
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1)
+                    rows[i++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+            }
+            return new ArrayBlock(rows, n);
+        }
+    }
+
+}
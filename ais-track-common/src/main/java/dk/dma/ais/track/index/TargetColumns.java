@@ -0,0 +1,394 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Position;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The hot attributes of the reports held by a TargetTracker, kept in primitive arrays: position,
+ * speed and course over ground, time of the last report and ship type.
+ *
+ * Every (MMSI, source) pair has a row, so the MMSIs of the rows matching a filter are a superset
+ * of the targets matching it - whatever source filter is applied afterwards. Scanning the rows
+ * touches a few arrays instead of a TargetInfo and Position object per target; only the matches
+ * need to be looked up in the tracker, where callers must still test the exact predicate.
+ *
+ * Rows are stored in fixed-size chunks which never move, so rows can be updated while the store
+ * grows. A scan running concurrently with an update may see a row partly updated, just as it may
+ * see the target before or after the update.
+ *
+ * The rows of each value of each source dimension - country, type, base station, id and region -
+ * are also kept in a compressed bitmap. A source filter is evaluated once per distinct source, which
+ * gives the values of each dimension it accepts; the rows it accepts are then found by AND of the
+ * dimensions of OR of the bitmaps of their values. That is exact for a conjunction of conditions on
+ * single dimensions, e.g. s.country in (DK, NO) & s.region = 806, and a superset otherwise; which is
+ * left to the exact test of the predicate, like for the other filters.
+ *
+ * The bitmaps are updated under a write lock and combined under a read lock, so queries combining
+ * them do not hold up each other, and hold up the ingest only while they combine bitmaps.
+ */
+@ThreadSafe
+public class TargetColumns {
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /** Marks a row which is not in use */
+    private static final int FREE = -1;
+
+    /** Radius used to convert metres to degrees; deliberately smaller than the earth radius to over-cover circles */
+    private static final double CONSERVATIVE_EARTH_RADIUS_METRES = 6_300_000.0;
+
+    private final TargetTracker tracker;
+
+    /** The row of each source's report for a given MMSI */
+    private final ConcurrentHashMap<Integer, Map<AisPacketSource, Integer>> rowsByMmsi = new ConcurrentHashMap<>();
+
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    /** The number of rows handed out; rows below it are either in use or free */
+    private volatile int rows;
+
+    /** Guards the free rows, sources and bitmaps */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Rows freed by removed reports, reused before new rows are handed out */
+    private int[] freeRows = new int[16];
+    private int freeCount;
+
+    /** The number of rows in use of each distinct source */
+    private final Map<AisPacketSource, Integer> sources = new HashMap<>();
+
+    /** The rows in use of each value of each dimension */
+    private final Map<Dimension, Map<Object, RowBitmap>> rowsByValue = new EnumMap<>(Dimension.class);
+
+    public TargetColumns(TargetTracker tracker) {
+        this.tracker = tracker;
+        for (Dimension dimension : Dimension.values())
+            rowsByValue.put(dimension, new HashMap<>());
+    }
+
+    /**
+     * Bring the row of mmsi and source in line with the tracker. Must be called after every change
+     * the tracker makes to that pair - also removals.
+     */
+    public void update(int mmsi, AisPacketSource source) {
+        rowsByMmsi.compute(mmsi, (key, rowBySource) -> {
+            // Read the tracker while holding the per-MMSI lock, so the last update always sees the latest state
+            TargetInfo target = tracker.get(mmsi, source::equals);
+            if (target == null) {
+                Integer row = rowBySource == null ? null : rowBySource.remove(source);
+                if (row != null)
+                    free(row, source);
+                return rowBySource == null || rowBySource.isEmpty() ? null : rowBySource;
+            }
+
+            if (rowBySource == null)
+                rowBySource = new HashMap<>(2);
+            Integer row = rowBySource.get(source);
+            if (row == null) {
+                row = allocate(source);
+                rowBySource.put(source, row);
+            }
+            write(row, mmsi, target);
+            return rowBySource;
+        });
+    }
+
+    /** Update the rows of every source of every target in the tracker; e.g. after it was restored from backup */
+    public void rebuild() {
+        tracker.streamSequential().forEach(target -> {
+            int mmsi = target.getMmsi();
+            tracker.getPacketSourcesForMMSI(mmsi).forEach(source -> update(mmsi, source));
+        });
+    }
+
+    /** @return the MMSIs with at least one row matching filter */
+    public Set<Integer> select(RowFilter filter) {
+        Set<Integer> mmsis = new HashSet<>();
+        Chunk[] chunks = this.chunks;
+        int rows = Math.min(this.rows, chunks.length << CHUNK_BITS);
+        for (int c = 0; c << CHUNK_BITS < rows; c++) {
+            Chunk chunk = chunks[c];
+            int end = Math.min(CHUNK_SIZE, rows - (c << CHUNK_BITS));
+            for (int i = 0; i < end; i++) {
+                int mmsi = chunk.mmsi[i];
+                if (mmsi != FREE && filter.test(chunk.lat[i], chunk.lon[i], chunk.sog[i], chunk.cog[i], chunk.lastReport[i], chunk.shipType[i]))
+                    mmsis.add(mmsi);
+            }
+        }
+        return mmsis;
+    }
+
+    /**
+     * Find the MMSIs with at least one of rows matching filter.
+     * @param rows the rows to test, e.g. as returned by rowsFrom
+     * @param filter the filter to test them with; null to accept all of rows
+     */
+    public Set<Integer> select(RowBitmap rows, RowFilter filter) {
+        Set<Integer> mmsis = new HashSet<>();
+        Chunk[] chunks = this.chunks;
+        int end = chunks.length << CHUNK_BITS;
+        rows.forEach(row -> {
+            if (row >= end)
+                return;
+            Chunk chunk = chunks[row >>> CHUNK_BITS];
+            int i = row & CHUNK_MASK;
+            int mmsi = chunk.mmsi[i];
+            if (mmsi != FREE && (filter == null || filter.test(chunk.lat[i], chunk.lon[i], chunk.sog[i], chunk.cog[i], chunk.lastReport[i], chunk.shipType[i])))
+                mmsis.add(mmsi);
+        });
+        return mmsis;
+    }
+
+    /**
+     * Find the rows of the reports from sources accepted by sourceFilter; a superset of them unless
+     * sourceFilter is a conjunction of conditions on single dimensions. sourceFilter is tested once
+     * per distinct source.
+     * @return a bitmap of the rows, owned by the caller
+     */
+    public RowBitmap rowsFrom(Predicate<? super AisPacketSource> sourceFilter) {
+        lock.readLock().lock();
+        try {
+            Map<Dimension, Set<Object>> accepted = new EnumMap<>(Dimension.class);
+            for (AisPacketSource source : sources.keySet()) {
+                if (sourceFilter.test(source)) {
+                    for (Dimension dimension : Dimension.values())
+                        accepted.computeIfAbsent(dimension, key -> new HashSet<>()).add(dimension.of(source));
+                }
+            }
+            if (accepted.isEmpty())
+                return new RowBitmap();
+
+            RowBitmap rows = null;
+            for (Dimension dimension : Dimension.values()) {
+                Map<Object, RowBitmap> rowsOfValues = rowsByValue.get(dimension);
+                Set<Object> values = accepted.get(dimension);
+                // A dimension with all its values accepted does not restrict the rows
+                if (values.size() < rowsOfValues.size()) {
+                    RowBitmap rowsOfDimension = union(rowsOfValues, values);
+                    rows = rows == null ? rowsOfDimension : rows.and(rowsOfDimension);
+                }
+            }
+            // All rows in use, if no dimension restricts them
+            return rows != null ? rows : union(rowsByValue.get(Dimension.COUNTRY), rowsByValue.get(Dimension.COUNTRY).keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return the number of distinct sources with rows */
+    public int numberOfSources() {
+        lock.readLock().lock();
+        try {
+            return sources.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return the number of rows in use */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rows - freeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Create a filter accepting the rows positioned inside any of areas. Circles are tested against
+     * a conservative radius, so the filter may accept rows just outside them.
+     * @return the filter, or null if areas is empty or contains an area which is not supported
+     */
+    public static RowFilter inside(Collection<? extends Area> areas) {
+        if (!TargetGridIndex.supports(areas))
+            return null;
+
+        RowFilter filter = null;
+        for (Area area : areas) {
+            RowFilter inside = inside(area);
+            filter = filter == null ? inside : filter.or(inside);
+        }
+        return filter;
+    }
+
+    private static RowFilter inside(Area area) {
+        if (area instanceof BoundingBox) {
+            BoundingBox box = (BoundingBox) area;
+            double minLat = box.getMinLat(), maxLat = box.getMaxLat(), minLon = box.getMinLon(), maxLon = box.getMaxLon();
+            return (lat, lon, sog, cog, lastReport, shipType) -> lat >= minLat && lon >= minLon && lat <= maxLat && lon <= maxLon;
+        }
+
+        Circle circle = (Circle) area;
+        double centerLat = Math.toRadians(circle.getCenter().getLatitude());
+        double centerLon = Math.toRadians(circle.getCenter().getLongitude());
+        double cosCenterLat = Math.cos(centerLat);
+        double radians = circle.getRadius() / CONSERVATIVE_EARTH_RADIUS_METRES;
+        // Haversine of the largest central angle accepted
+        double maxHaversine = radians >= Math.PI ? 1.0 : Math.pow(Math.sin(radians / 2), 2);
+        return (lat, lon, sog, cog, lastReport, shipType) -> {
+            double sinLat = Math.sin((Math.toRadians(lat) - centerLat) / 2);
+            double sinLon = Math.sin((Math.toRadians(lon) - centerLon) / 2);
+            return sinLat * sinLat + cosCenterLat * Math.cos(Math.toRadians(lat)) * sinLon * sinLon <= maxHaversine;
+        };
+    }
+
+    /** Create a filter accepting the rows whose last report is no older than epochMillis */
+    public static RowFilter reportedSince(long epochMillis) {
+        return (lat, lon, sog, cog, lastReport, shipType) -> lastReport >= epochMillis;
+    }
+
+    private void write(int row, int mmsi, TargetInfo target) {
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        int i = row & CHUNK_MASK;
+        Position position = target.getPosition();
+        chunk.lat[i] = position == null ? Double.NaN : position.getLatitude();
+        chunk.lon[i] = position == null ? Double.NaN : position.getLongitude();
+        chunk.sog[i] = target.getSog();
+        chunk.cog[i] = target.getCog();
+        chunk.lastReport[i] = Math.max(target.getPositionTimestamp(), target.getStaticTimestamp());
+        chunk.shipType[i] = target.getStaticShipType();
+        chunk.mmsi[i] = mmsi;
+    }
+
+    private static RowBitmap union(Map<Object, RowBitmap> rowsOfValues, Set<Object> values) {
+        RowBitmap rows = new RowBitmap();
+        for (Object value : values)
+            rows = rows.or(rowsOfValues.get(value));
+        return rows;
+    }
+
+    private int allocate(AisPacketSource source) {
+        lock.writeLock().lock();
+        try {
+            int row;
+            if (freeCount > 0) {
+                row = freeRows[--freeCount];
+            } else {
+                row = rows;
+                if (row >>> CHUNK_BITS == chunks.length) {
+                    Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+                    grown[chunks.length] = new Chunk();
+                    chunks = grown;
+                }
+                rows = row + 1;
+            }
+
+            sources.merge(source, 1, Integer::sum);
+            for (Dimension dimension : Dimension.values())
+                rowsByValue.get(dimension).computeIfAbsent(dimension.of(source), key -> new RowBitmap()).add(row);
+            return row;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void free(int row, AisPacketSource source) {
+        lock.writeLock().lock();
+        try {
+            chunks[row >>> CHUNK_BITS].mmsi[row & CHUNK_MASK] = FREE;
+            if (freeCount == freeRows.length)
+                freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+            freeRows[freeCount++] = row;
+
+            sources.computeIfPresent(source, (key, count) -> count == 1 ? null : count - 1);
+            for (Dimension dimension : Dimension.values()) {
+                Map<Object, RowBitmap> rowsOfValues = rowsByValue.get(dimension);
+                Object value = dimension.of(source);
+                RowBitmap rowsOfValue = rowsOfValues.get(value);
+                rowsOfValue.remove(row);
+                if (rowsOfValue.isEmpty())
+                    rowsOfValues.remove(value);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** A test of the attributes of a row; lat and lon are NaN if no position has been reported */
+    @FunctionalInterface
+    public interface RowFilter {
+        boolean test(double lat, double lon, float sog, float cog, long lastReport, int shipType);
+
+        default RowFilter and(RowFilter other) {
+            return (lat, lon, sog, cog, lastReport, shipType) ->
+                test(lat, lon, sog, cog, lastReport, shipType) && other.test(lat, lon, sog, cog, lastReport, shipType);
+        }
+
+        default RowFilter or(RowFilter other) {
+            return (lat, lon, sog, cog, lastReport, shipType) ->
+                test(lat, lon, sog, cog, lastReport, shipType) || other.test(lat, lon, sog, cog, lastReport, shipType);
+        }
+    }
+
+    /** The dimensions of a source which source filters test */
+    private enum Dimension {
+        COUNTRY(AisPacketSource::getSourceCountry),
+        TYPE(AisPacketSource::getSourceType),
+        BASE_STATION(AisPacketSource::getSourceBaseStation),
+        ID(AisPacketSource::getSourceId),
+        REGION(AisPacketSource::getSourceRegion);
+
+        private final Function<AisPacketSource, Object> value;
+
+        Dimension(Function<AisPacketSource, Object> value) {
+            this.value = value;
+        }
+
+        /** @return the value of this dimension of source; may be null */
+        Object of(AisPacketSource source) {
+            return value.apply(source);
+        }
+    }
+
+    /** The columns of CHUNK_SIZE rows */
+    private static final class Chunk {
+        final int[] mmsi = new int[CHUNK_SIZE];
+        final double[] lat = new double[CHUNK_SIZE];
+        final double[] lon = new double[CHUNK_SIZE];
+        final float[] sog = new float[CHUNK_SIZE];
+        final float[] cog = new float[CHUNK_SIZE];
+        final long[] lastReport = new long[CHUNK_SIZE];
+        final int[] shipType = new int[CHUNK_SIZE];
+
+        Chunk() {
+            Arrays.fill(mmsi, FREE);
+        }
+    }
+
+}
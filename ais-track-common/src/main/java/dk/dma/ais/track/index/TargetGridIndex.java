@@ -0,0 +1,386 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.Position;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A fixed-degree grid index of the positions held by a TargetTracker.
+ *
+ * The tracker keeps one TargetInfo per MMSI and source, and a query with a source filter
+ * may pick any of them. The index therefore records the cell of every (MMSI, source) pair,
+ * so the MMSIs found in a set of cells is a superset of the targets positioned inside those
+ * cells - whatever source filter is applied afterwards.
+ *
+ * The index is only a candidate generator: callers must still test the exact area predicate
+ * on the TargetInfo's they fetch from the tracker.
+ */
+@ThreadSafe
+public class TargetGridIndex {
+
+    /** Radius used to convert metres to degrees; deliberately smaller than the earth radius to over-cover circles */
+    private static final double CONSERVATIVE_EARTH_RADIUS_METRES = 6_300_000.0;
+
+    private final TargetTracker tracker;
+    private final double cellSize;
+    private final int latCells;
+    private final int lonCells;
+
+    /** The MMSIs with at least one source positioned in a given cell */
+    private final ConcurrentHashMap<Integer, Set<Integer>> mmsisByCell = new ConcurrentHashMap<>();
+
+    /** The cell of each source's position for a given MMSI */
+    private final ConcurrentHashMap<Integer, Map<AisPacketSource, Integer>> cellsByMmsi = new ConcurrentHashMap<>();
+
+    /**
+     * Create an index of the targets in tracker.
+     * @param tracker the tracker holding the indexed targets
+     * @param cellSize the width and height of each grid cell in degrees
+     */
+    public TargetGridIndex(TargetTracker tracker, double cellSize) {
+        if (cellSize <= 0.0 || cellSize > 180.0)
+            throw new IllegalArgumentException("Grid cell size must be in ]0;180] degrees, not " + cellSize);
+
+        this.tracker = tracker;
+        this.cellSize = cellSize;
+        this.latCells = (int) Math.ceil(180.0 / cellSize);
+        this.lonCells = (int) Math.ceil(360.0 / cellSize);
+    }
+
+    /**
+     * Bring the entry for mmsi and source in line with the tracker. Must be called
+     * after every change the tracker makes to that pair - also removals.
+     * @return the cells of the positions reported for mmsi by any source before; empty if none were indexed
+     */
+    public Set<Integer> reindex(int mmsi, AisPacketSource source) {
+        Set<Integer> before = new HashSet<>(2);
+        cellsByMmsi.compute(mmsi, (key, cellBySource) -> {
+            if (cellBySource != null)
+                before.addAll(cellBySource.values());
+
+            // Read the tracker while holding the per-MMSI lock, so the last reindex always sees the latest state
+            TargetInfo targetInfo = tracker.get(mmsi, source::equals);
+            Position position = targetInfo == null ? null : targetInfo.getPosition();
+            Integer cell = position == null ? null : cellOf(position.getLatitude(), position.getLongitude());
+
+            Integer previous = null;
+            if (cell == null) {
+                if (cellBySource != null)
+                    previous = cellBySource.remove(source);
+            } else {
+                if (cellBySource == null)
+                    cellBySource = new HashMap<>(2);
+                previous = cellBySource.put(source, cell);
+                if (!cell.equals(previous))
+                    addToCell(cell, mmsi);
+            }
+
+            if (previous != null && !previous.equals(cell) && !cellBySource.containsValue(previous))
+                removeFromCell(previous, mmsi);
+
+            return cellBySource == null || cellBySource.isEmpty() ? null : cellBySource;
+        });
+        return before;
+    }
+
+    /** Re-index every source of every target in the tracker; e.g. after it was restored from backup */
+    public void rebuild() {
+        tracker.streamSequential().forEach(targetInfo -> {
+            int mmsi = targetInfo.getMmsi();
+            tracker.getPacketSourcesForMMSI(mmsi).forEach(source -> reindex(mmsi, source));
+        });
+    }
+
+    /** @return true if the index can compute the cells covering area */
+    public static boolean supports(Area area) {
+        return area instanceof BoundingBox || area instanceof Circle;
+    }
+
+    /** @return true if the index can compute the cells covering all of areas */
+    public static boolean supports(Collection<? extends Area> areas) {
+        return areas != null && !areas.isEmpty() && areas.stream().allMatch(TargetGridIndex::supports);
+    }
+
+    /**
+     * Find the MMSIs having a position reported in a cell overlapping any of areas.
+     * @return the candidate MMSIs, or null if the index does not support one of the areas.
+     */
+    public Set<Integer> candidates(Collection<? extends Area> areas) {
+        Set<Integer> cells = cells(areas);
+        if (cells == null)
+            return null;
+
+        Set<Integer> mmsis = new HashSet<>();
+        forEachNonEmptyCell(cells, mmsis::addAll);
+        return mmsis;
+    }
+
+    /**
+     * Estimate the number of candidates which would be returned for areas, without collecting them.
+     * The estimate may exceed the actual number if targets have several sources or areas overlap.
+     * @return the estimate, or -1 if the index does not support one of the areas.
+     */
+    public int estimate(Collection<? extends Area> areas) {
+        Set<Integer> cells = cells(areas);
+        if (cells == null)
+            return -1;
+
+        int[] estimate = {0};
+        forEachNonEmptyCell(cells, mmsisInCell -> estimate[0] += mmsisInCell.size());
+        return estimate[0];
+    }
+
+    /**
+     * Find the cells overlapping any of areas.
+     * @return the cells, or null if the index does not support one of the areas.
+     */
+    public Set<Integer> cells(Collection<? extends Area> areas) {
+        if (!supports(areas))
+            return null;
+
+        Set<Integer> cells = new HashSet<>();
+        areas.forEach(area -> addCells(area, cells));
+        return cells;
+    }
+
+    /** @return the cells of the positions reported for mmsi by any source; empty if none are indexed */
+    public Set<Integer> cellsOf(int mmsi) {
+        Set<Integer> cells = new HashSet<>(2);
+        // Read the cells while holding the per-MMSI lock, as reindex changes them in place
+        cellsByMmsi.computeIfPresent(mmsi, (key, cellBySource) -> {
+            cells.addAll(cellBySource.values());
+            return cellBySource;
+        });
+        return cells;
+    }
+
+    /**
+     * Visit the non-empty cells in order of the least distance from (lat, lon) to any position inside
+     * them, until visitor returns false or no cells nearer than maxDistance metres are left.
+     *
+     * The search is best-first: it starts at the cell of (lat, lon) and expands to the neighbours of
+     * each cell visited, nearest first; so only the cells nearer than where it stops are looked at.
+     * The cells around a pole are reached through their row, as they all touch the pole.
+     * Distances are lower bounds on a sphere smaller than the earth, so cells are not necessarily visited
+     * in increasing order of distance; but no position in a cell not yet visited is nearer than the
+     * least distance of the cell visited. A search for the nearest targets can therefore stop at the
+     * first cell whose least distance exceeds the distance of the targets found.
+     */
+    public void visitByDistance(double lat, double lon, double maxDistance, CellVisitor visitor) {
+        Integer start = cellOf(lat, lon);
+        if (start == null)
+            throw new IllegalArgumentException("Invalid position " + lat + ", " + lon);
+
+        PriorityQueue<CellDistance> queue = new PriorityQueue<>();
+        Set<Integer> seen = new HashSet<>();
+        queue.add(new CellDistance(start, 0.0));
+        seen.add(start);
+        int nonEmptyCellsLeft = mmsisByCell.size();
+
+        while (!queue.isEmpty() && nonEmptyCellsLeft > 0) {
+            CellDistance next = queue.poll();
+            if (next.distance > maxDistance)
+                return;
+
+            Set<Integer> mmsisInCell = mmsisByCell.get(next.cell);
+            if (mmsisInCell != null) {
+                nonEmptyCellsLeft--;
+                if (!visitor.visit(next.distance, mmsisInCell))
+                    return;
+            }
+
+            int latIdx = next.cell / lonCells, lonIdx = next.cell % lonCells;
+            for (int dLat = -1; dLat <= 1; dLat++) {
+                int neighbourLatIdx = latIdx + dLat;
+                if (neighbourLatIdx < 0 || neighbourLatIdx >= latCells)
+                    continue;
+                for (int dLon = -1; dLon <= 1; dLon++) {
+                    int neighbour = neighbourLatIdx * lonCells + Math.floorMod(lonIdx + dLon, lonCells);
+                    if (seen.add(neighbour))
+                        queue.add(new CellDistance(neighbour, minDistance(lat, lon, neighbour)));
+                }
+            }
+        }
+    }
+
+    /** @return a lower bound of the distance in metres from (lat, lon) to any position inside cell */
+    private double minDistance(double lat, double lon, int cell) {
+        double minLat = (cell / lonCells) * cellSize - 90.0, maxLat = minLat + cellSize;
+        double minLon = (cell % lonCells) * cellSize - 180.0, maxLon = minLon + cellSize;
+
+        // No position inside is nearer than the nearest parallel bounding the cell ...
+        double latGap = lat < minLat ? minLat - lat : lat > maxLat ? lat - maxLat : 0.0;
+
+        // ... nor than the nearest of the great circles through the meridians bounding it
+        double meridianGap = 0.0;
+        if (!containsLongitude(minLon, maxLon, lon) && !containsLongitude(minLon, maxLon, lon + 180.0)) {
+            double sin = Math.min(Math.abs(Math.sin(Math.toRadians(minLon - lon))), Math.abs(Math.sin(Math.toRadians(maxLon - lon))));
+            meridianGap = Math.toDegrees(Math.asin(sin * Math.cos(Math.toRadians(lat))));
+        }
+
+        return Math.toRadians(Math.max(latGap, meridianGap)) * CONSERVATIVE_EARTH_RADIUS_METRES;
+    }
+
+    private static boolean containsLongitude(double minLon, double maxLon, double lon) {
+        return ((lon - minLon) % 360.0 + 360.0) % 360.0 <= maxLon - minLon;
+    }
+
+    /** Visitor of the cells found by visitByDistance */
+    @FunctionalInterface
+    public interface CellVisitor {
+        /**
+         * @param minDistance the least distance in metres from the position searched from to any position in the cell
+         * @param mmsis the MMSIs with a source positioned in the cell; must not be modified
+         * @return true to continue the search, false to stop it
+         */
+        boolean visit(double minDistance, Set<Integer> mmsis);
+    }
+
+    private static final class CellDistance implements Comparable<CellDistance> {
+        final int cell;
+        final double distance;
+
+        CellDistance(int cell, double distance) {
+            this.cell = cell;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(CellDistance other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    /** @return the number of indexed MMSIs */
+    public int size() {
+        return cellsByMmsi.size();
+    }
+
+    /** @return the number of non-empty cells */
+    public int numberOfCells() {
+        return mmsisByCell.size();
+    }
+
+    /** Visit the MMSIs of those of cells which are not empty; walking whichever is smaller of cells and the index */
+    private void forEachNonEmptyCell(Set<Integer> cells, Consumer<Set<Integer>> action) {
+        if (cells.size() > mmsisByCell.size()) {
+            mmsisByCell.forEach((cell, mmsisInCell) -> {
+                if (cells.contains(cell))
+                    action.accept(mmsisInCell);
+            });
+        } else {
+            cells.forEach(cell -> {
+                Set<Integer> mmsisInCell = mmsisByCell.get(cell);
+                if (mmsisInCell != null)
+                    action.accept(mmsisInCell);
+            });
+        }
+    }
+
+    private void addCells(Area area, Set<Integer> cells) {
+        double minLat, maxLat, minLon, maxLon;
+
+        if (area instanceof BoundingBox) {
+            BoundingBox box = (BoundingBox) area;
+            minLat = box.getMinLat();
+            maxLat = box.getMaxLat();
+            minLon = box.getMinLon();
+            maxLon = box.getMaxLon();
+        } else {
+            Circle circle = (Circle) area;
+            double lat = circle.getCenter().getLatitude();
+            double lon = circle.getCenter().getLongitude();
+            double radians = circle.getRadius() / CONSERVATIVE_EARTH_RADIUS_METRES;
+            double dLat = Math.toDegrees(radians);
+            minLat = lat - dLat;
+            maxLat = lat + dLat;
+            if (minLat <= -90.0 || maxLat >= 90.0 || radians >= Math.PI / 2) {
+                // Circle covers a pole - any longitude may be inside
+                minLon = -180.0;
+                maxLon = 180.0;
+            } else {
+                double dLon = Math.toDegrees(Math.asin(Math.min(1.0, Math.sin(radians) / Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat)))))));
+                minLon = lon - dLon;
+                maxLon = lon + dLon;
+            }
+        }
+
+        if (maxLon - minLon >= 360.0) {
+            addCells(minLat, maxLat, -180.0, 180.0, cells);
+        } else if (minLon < -180.0) {
+            addCells(minLat, maxLat, minLon + 360.0, 180.0, cells);
+            addCells(minLat, maxLat, -180.0, maxLon, cells);
+        } else if (maxLon > 180.0) {
+            addCells(minLat, maxLat, minLon, 180.0, cells);
+            addCells(minLat, maxLat, -180.0, maxLon - 360.0, cells);
+        } else {
+            addCells(minLat, maxLat, minLon, maxLon, cells);
+        }
+    }
+
+    private void addCells(double minLat, double maxLat, double minLon, double maxLon, Set<Integer> cells) {
+        int maxLatIdx = latIndex(maxLat), minLonIdx = lonIndex(minLon), maxLonIdx = lonIndex(maxLon);
+        for (int latIdx = latIndex(minLat); latIdx <= maxLatIdx; latIdx++)
+            for (int lonIdx = minLonIdx; lonIdx <= maxLonIdx; lonIdx++)
+                cells.add(latIdx * lonCells + lonIdx);
+    }
+
+    private Integer cellOf(double lat, double lon) {
+        if (!Position.isValid(lat, lon))
+            return null;
+        return latIndex(lat) * lonCells + lonIndex(lon);
+    }
+
+    private int latIndex(double lat) {
+        return Math.max(0, Math.min(latCells - 1, (int) Math.floor((lat + 90.0) / cellSize)));
+    }
+
+    private int lonIndex(double lon) {
+        return Math.max(0, Math.min(lonCells - 1, (int) Math.floor((lon + 180.0) / cellSize)));
+    }
+
+    private void addToCell(int cell, int mmsi) {
+        mmsisByCell.compute(cell, (key, mmsis) -> {
+            if (mmsis == null)
+                mmsis = ConcurrentHashMap.newKeySet();
+            mmsis.add(mmsi);
+            return mmsis;
+        });
+    }
+
+    private void removeFromCell(int cell, int mmsi) {
+        mmsisByCell.computeIfPresent(cell, (key, mmsis) -> {
+            mmsis.remove(mmsi);
+            return mmsis.isEmpty() ? null : mmsis;
+        });
+    }
+
+}
@@ -0,0 +1,310 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.ingest;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.IPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A staged pipeline feeding packets to the tracker.
+ *
+ * The thread calling accept filters and decodes each packet, and hands it to one of a number of
+ * update workers chosen by the MMSI of the packet. Packets for the same vessel are therefore applied
+ * in the order received, while packets for different vessels are applied in parallel.
+ *
+ * Each worker has a bounded queue. What happens to packets when a worker falls behind is decided
+ * by the OverloadPolicy of the pipeline.
+ */
+@ThreadSafe
+public class IngestPipeline implements Consumer<AisPacket> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private final Predicate<AisPacket> filter;
+    private final Consumer<AisPacket> updater;
+    private final OverloadPolicy policy;
+    private final Predicate<? super AisPacketSource> shedSourceFilter;
+    private final int shedThreshold;
+    private final BlockingQueue<AisPacket>[] queues;
+    private final ConcurrentHashMap<PendingKey, AisPacket> pendingPositions = new ConcurrentHashMap<>();
+    private final Thread[] workers;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder undecodable = new LongAdder();
+    private final LongAdder updated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+
+    private volatile boolean running;
+
+    /**
+     * Create a pipeline which blocks when a worker falls behind.
+     * @param filter packets not matching filter are discarded
+     * @param updater applies a packet to the tracker; called concurrently for packets of different vessels
+     * @param numberOfWorkers the number of update workers
+     * @param queueDepth the maximum number of packets waiting for each worker
+     */
+    public IngestPipeline(Predicate<AisPacket> filter, Consumer<AisPacket> updater, int numberOfWorkers, int queueDepth) {
+        this(filter, updater, numberOfWorkers, queueDepth, OverloadPolicy.BLOCK, null);
+    }
+
+    /**
+     * @param filter packets not matching filter are discarded
+     * @param updater applies a packet to the tracker; called concurrently for packets of different vessels
+     * @param numberOfWorkers the number of update workers
+     * @param queueDepth the maximum number of packets waiting for each worker
+     * @param policy what to do with packets when a worker falls behind
+     * @param shedSourceFilter the sources whose packets may be shed; only used with OverloadPolicy.SHED
+     */
+    @SuppressWarnings("unchecked")
+    public IngestPipeline(Predicate<AisPacket> filter, Consumer<AisPacket> updater, int numberOfWorkers, int queueDepth,
+                          OverloadPolicy policy, Predicate<? super AisPacketSource> shedSourceFilter) {
+        if (numberOfWorkers <= 0)
+            throw new IllegalArgumentException("Number of workers must be positive, not " + numberOfWorkers);
+        if (queueDepth <= 0)
+            throw new IllegalArgumentException("Queue depth must be positive, not " + queueDepth);
+
+        this.filter = filter;
+        this.updater = updater;
+        this.policy = Objects.requireNonNull(policy);
+        this.shedSourceFilter = shedSourceFilter == null ? src -> false : shedSourceFilter;
+        this.shedThreshold = queueDepth - queueDepth / 4;
+        this.queues = (BlockingQueue<AisPacket>[]) new BlockingQueue<?>[numberOfWorkers];
+        this.workers = new Thread[numberOfWorkers];
+        for (int i = 0; i < numberOfWorkers; i++) {
+            BlockingQueue<AisPacket> queue = new ArrayBlockingQueue<>(queueDepth);
+            queues[i] = queue;
+            workers[i] = new Thread(() -> work(queue), "ingest-worker-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    /** Start the update workers */
+    public void start() {
+        running = true;
+        for (Thread worker : workers)
+            worker.start();
+        LOG.info("Ingest pipeline started with {} update workers; overload policy {}", workers.length, policy);
+    }
+
+    /**
+     * Stop the update workers. Packets still queued are applied before the workers stop, unless
+     * they have not finished within timeout.
+     */
+    public void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (worker.isAlive())
+                worker.interrupt();
+        }
+        LOG.info("Ingest pipeline stopped; {} packets not applied", queued());
+    }
+
+    /** Filter and decode packet, and queue it for the update worker of its vessel */
+    @Override
+    public void accept(AisPacket packet) {
+        received.increment();
+        if (!filter.test(packet)) {
+            filtered.increment();
+            return;
+        }
+
+        // Decoded messages are kept by the packet, so the worker does not decode again
+        AisMessage message = packet.tryGetAisMessage();
+        if (message == null) {
+            undecodable.increment();
+            return;
+        }
+
+        BlockingQueue<AisPacket> queue = queues[partition(message.getUserId())];
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(packet)) {
+                    if (queue.poll() != null)
+                        dropped.increment();
+                }
+                break;
+            case COALESCE:
+                if (message instanceof IPositionMessage && pendingPositions.put(new PendingKey(message.getUserId(), packet), packet) != null) {
+                    // The worker applies the newest pending position report when it reaches the one already queued
+                    coalesced.increment();
+                    return;
+                }
+                put(queue, packet);
+                break;
+            case SHED:
+                if (queue.size() >= shedThreshold && shedSourceFilter.test(AisPacketSource.create(packet))) {
+                    shed.increment();
+                    return;
+                }
+                put(queue, packet);
+                break;
+            default:
+                put(queue, packet);
+        }
+    }
+
+    /** Put packet in queue; waiting for room if the queue is full */
+    private void put(BlockingQueue<AisPacket> queue, AisPacket packet) {
+        if (queue.offer(packet))
+            return;
+        blocked.increment();
+        try {
+            queue.put(packet);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return the index of the worker applying packets for mmsi */
+    int partition(int mmsi) {
+        int hash = mmsi * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), workers.length);
+    }
+
+    private void work(BlockingQueue<AisPacket> queue) {
+        while (running || !queue.isEmpty()) {
+            AisPacket packet;
+            try {
+                packet = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (packet == null)
+                continue;
+            if (policy == OverloadPolicy.COALESCE && packet.tryGetAisMessage() instanceof IPositionMessage) {
+                AisPacket newest = pendingPositions.remove(new PendingKey(packet.tryGetAisMessage().getUserId(), packet));
+                if (newest != null)
+                    packet = newest;
+            }
+
+            try {
+                updater.accept(packet);
+                updated.increment();
+            } catch (RuntimeException e) {
+                failed.increment();
+                LOG.warn("Failed to apply packet: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /** @return the number of update workers */
+    public int numberOfWorkers() {
+        return workers.length;
+    }
+
+    /** @return the number of packets received */
+    public long receivedCount() {
+        return received.sum();
+    }
+
+    /** @return the number of packets discarded by the filter */
+    public long filteredCount() {
+        return filtered.sum();
+    }
+
+    /** @return the number of packets discarded because they could not be decoded */
+    public long undecodableCount() {
+        return undecodable.sum();
+    }
+
+    /** @return the number of packets applied to the tracker */
+    public long updatedCount() {
+        return updated.sum();
+    }
+
+    /** @return the number of packets which failed to be applied to the tracker */
+    public long failedCount() {
+        return failed.sum();
+    }
+
+    /** @return the policy applied when a worker falls behind */
+    public OverloadPolicy getOverloadPolicy() {
+        return policy;
+    }
+
+    /** @return the number of packets for which the receiving thread had to wait for room in a queue */
+    public long blockedCount() {
+        return blocked.sum();
+    }
+
+    /** @return the number of queued packets dropped to make room for newer ones */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /** @return the number of position reports replaced by a newer report before being applied */
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** @return the number of packets from low priority sources discarded because a queue was nearly full */
+    public long shedCount() {
+        return shed.sum();
+    }
+
+    /** @return the number of packets waiting for the update workers */
+    public int queued() {
+        int queued = 0;
+        for (BlockingQueue<AisPacket> queue : queues)
+            queued += queue.size();
+        return queued;
+    }
+
+    /** Identifies the position reports for one vessel from one source */
+    private static final class PendingKey {
+        private final int mmsi;
+        private final AisPacketSource source;
+
+        PendingKey(int mmsi, AisPacket packet) {
+            this.mmsi = mmsi;
+            this.source = AisPacketSource.create(packet);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PendingKey)) return false;
+            PendingKey that = (PendingKey) o;
+            return mmsi == that.mmsi && source.equals(that.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mmsi + source.hashCode();
+        }
+    }
+
+}
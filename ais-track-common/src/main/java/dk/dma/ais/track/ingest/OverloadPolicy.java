@@ -0,0 +1,40 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.ingest;
+
+/**
+ * What the IngestPipeline does with received packets when an update worker falls behind.
+ */
+public enum OverloadPolicy {
+
+    /** Wait for room in the worker's queue; the AisBus consumer queues up packets meanwhile */
+    BLOCK,
+
+    /** Drop the oldest queued packet to make room for the new one */
+    DROP_OLDEST,
+
+    /**
+     * Replace a queued position report with a newer report for the same vessel from the same source;
+     * otherwise wait for room
+     */
+    COALESCE,
+
+    /**
+     * Discard packets from low priority sources while the worker's queue is more than three quarters
+     * full; otherwise wait for room
+     */
+    SHED
+
+}
@@ -0,0 +1,32 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.journal;
+
+/**
+ * When the PacketJournal forces written packets to disk. Written packets survive a crash of
+ * the JVM in any case; forcing them makes them survive a crash of the operating system.
+ */
+public enum FsyncPolicy {
+
+    /** Leave it to the operating system */
+    NEVER,
+
+    /** At most once per fsync interval */
+    INTERVAL,
+
+    /** After every batch of packets written */
+    BATCH
+
+}
@@ -0,0 +1,334 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.journal;
+
+import dk.dma.ais.packet.AisPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append-only journal of the packets applied to the tracker since the last snapshot.
+ *
+ * Appending only queues a packet; a writer thread drains the queue and writes the packets in
+ * batches (group commit), forcing them to disk as decided by the FsyncPolicy. The journal is split
+ * into numbered segment files. A snapshot rotates the journal to a new segment before it starts,
+ * and deletes the segments up to and including the rotated one when it is complete - as every
+ * packet in them was applied before the snapshot visited the tracker.
+ *
+ * Each record holds the length of its payload, the CRC32 of the payload, and the payload: the raw
+ * packet. A record torn by a crash ends the replay of its segment.
+ */
+@ThreadSafe
+public class PacketJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PacketJournal.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d{10})\\.log");
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_BATCH = 4096;
+
+    private final Path folder;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final BlockingQueue<Object> queue;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+
+    private volatile Thread writer;
+    private volatile boolean running;
+
+    /** Only accessed by the writer thread, once opened */
+    private FileChannel channel;
+    private long segment;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private boolean dirty;
+    private long lastFsync;
+
+    /**
+     * @param folder the folder holding the segment files
+     * @param fsyncPolicy when to force written packets to disk
+     * @param fsyncInterval the interval between forces with FsyncPolicy.INTERVAL
+     * @param capacity the maximum number of packets waiting to be written; appending blocks when exceeded
+     */
+    public PacketJournal(Path folder, FsyncPolicy fsyncPolicy, Duration fsyncInterval, int capacity) {
+        this.folder = Objects.requireNonNull(folder);
+        this.fsyncPolicy = Objects.requireNonNull(fsyncPolicy);
+        this.fsyncIntervalNanos = fsyncInterval.toNanos();
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Replay the packets of all segments in order. Must be called before the journal is opened.
+     * @return the number of packets replayed
+     */
+    public long replay(Consumer<AisPacket> consumer) throws IOException {
+        if (running)
+            throw new IllegalStateException("Cannot replay an open journal");
+
+        long replayed = 0;
+        for (long s : segments()) {
+            Path file = segmentFile(s);
+            try (FileChannel in = FileChannel.open(file, READ)) {
+                ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                CRC32 crc = new CRC32();
+                while (data.remaining() >= RECORD_HEADER_SIZE) {
+                    int length = data.getInt();
+                    int checksum = data.getInt();
+                    if (length <= 0 || length > data.remaining()) {
+                        LOG.warn("Torn record at offset {} of {}; ignoring the rest of it", data.position() - RECORD_HEADER_SIZE, file);
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    data.get(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        LOG.warn("Corrupt record at offset {} of {}; ignoring the rest of it", data.position() - length - RECORD_HEADER_SIZE, file);
+                        break;
+                    }
+                    consumer.accept(AisPacket.fromByteArray(payload));
+                    replayed++;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /** Open a new segment after the existing ones, and start writing appended packets to it */
+    public synchronized void open() throws IOException {
+        if (running)
+            return;
+        Files.createDirectories(folder);
+        List<Long> existing = segments();
+        segment = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        channel = FileChannel.open(segmentFile(segment), CREATE_NEW, WRITE);
+        lastFsync = System.nanoTime();
+        running = true;
+
+        Thread thread = new Thread(this::write, "packet-journal");
+        thread.setDaemon(true);
+        thread.start();
+        writer = thread;
+        LOG.info("Journaling packets to {}; fsync policy {}", segmentFile(segment), fsyncPolicy);
+    }
+
+    /** Queue packet for writing; blocks only if the writer has fallen more than capacity packets behind */
+    public void append(AisPacket packet) {
+        if (!running)
+            return;
+        try {
+            queue.put(packet);
+            appended.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Close the current segment after all packets appended so far, and continue in a new one.
+     * @return the number of the closed segment
+     */
+    public long rotate() throws IOException, InterruptedException {
+        if (!running)
+            throw new IllegalStateException("Journal is not open");
+        Rotation rotation = new Rotation();
+        queue.put(rotation);
+        try {
+            return rotation.done.get(1, TimeUnit.MINUTES);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out rotating the packet journal", e);
+        }
+    }
+
+    /** Delete the segments numbered up to and including segment */
+    public void deleteUpTo(long segment) throws IOException {
+        for (long s : segments()) {
+            if (s <= segment)
+                Files.deleteIfExists(segmentFile(s));
+        }
+    }
+
+    /** Write all appended packets, force them to disk, and stop writing */
+    public synchronized void close() throws InterruptedException {
+        if (!running)
+            return;
+        running = false;
+        writer.join();
+        LOG.info("Packet journal closed; {} packets appended", appended.sum());
+    }
+
+    /** The writer thread */
+    private void write() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (running || !queue.isEmpty()) {
+                Object first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                    batch.clear();
+                }
+                if (dirty && fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastFsync >= fsyncIntervalNanos)
+                    fsync();
+            }
+            if (dirty && fsyncPolicy != FsyncPolicy.NEVER)
+                fsync();
+            channel.close();
+        } catch (IOException | UncheckedIOException e) {
+            LOG.error("Packet journal failed; packets are no longer journaled", e);
+            running = false;
+            failRotations(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private void writeBatch(List<Object> batch) throws IOException {
+        CRC32 crc = new CRC32();
+        for (Object o : batch) {
+            if (o instanceof Rotation) {
+                flush();
+                if (fsyncPolicy != FsyncPolicy.NEVER)
+                    fsync();
+                channel.close();
+                long closed = segment++;
+                channel = FileChannel.open(segmentFile(segment), CREATE_NEW, WRITE);
+                ((Rotation) o).done.complete(closed);
+                continue;
+            }
+
+            byte[] payload = ((AisPacket) o).toByteArray();
+            if (buffer.remaining() < RECORD_HEADER_SIZE + payload.length) {
+                flush();
+                if (buffer.capacity() < RECORD_HEADER_SIZE + payload.length)
+                    buffer = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE + payload.length);
+            }
+            crc.reset();
+            crc.update(payload);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        }
+        flush();
+        batches.increment();
+        if (fsyncPolicy == FsyncPolicy.BATCH)
+            fsync();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        dirty = true;
+    }
+
+    private void fsync() throws IOException {
+        channel.force(false);
+        fsyncs.increment();
+        lastFsync = System.nanoTime();
+        dirty = false;
+    }
+
+    private void failRotations(Exception e) {
+        for (Object o : queue) {
+            if (o instanceof Rotation)
+                ((Rotation) o).done.completeExceptionally(e);
+        }
+        queue.clear();
+    }
+
+    /** @return the numbers of the existing segments in ascending order */
+    List<Long> segments() throws IOException {
+        if (!Files.isDirectory(folder))
+            return new ArrayList<>();
+        try (Stream<Path> files = Files.list(folder)) {
+            return files
+                .map(f -> SEGMENT_NAME.matcher(f.getFileName().toString()))
+                .filter(Matcher::matches)
+                .map(m -> Long.parseLong(m.group(1)))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentFile(long segment) {
+        return folder.resolve(String.format("journal-%010d.log", segment));
+    }
+
+    /** @return true if packets are being journaled */
+    public boolean isOpen() {
+        return running;
+    }
+
+    /** @return the number of packets appended */
+    public long appendedCount() {
+        return appended.sum();
+    }
+
+    /** @return the number of batches written */
+    public long batchCount() {
+        return batches.sum();
+    }
+
+    /** @return the number of times written packets were forced to disk */
+    public long fsyncCount() {
+        return fsyncs.sum();
+    }
+
+    /** @return the number of packets waiting to be written */
+    public int queued() {
+        return queue.size();
+    }
+
+    /** Completed with the number of the closed segment by the writer thread */
+    private static final class Rotation {
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+    }
+
+}
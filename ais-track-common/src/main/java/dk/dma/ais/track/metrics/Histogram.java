@@ -0,0 +1,107 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values, e.g. latencies or result sizes.
+ *
+ * Values are counted in buckets whose upper bounds are powers of two, so recording a value is a
+ * couple of increments, and percentiles are reported with a precision of a factor two.
+ */
+@ThreadSafe
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    /** Record value; negative values are recorded as 0 */
+    public void update(long value) {
+        long v = Math.max(0, value);
+        buckets[bucket(v)].increment();
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /** @return the index of the bucket holding values up to 2^index */
+    static int bucket(long value) {
+        return value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param quantile the quantile; between 0 and 1
+     * @return an upper bound for the value at quantile; at most twice the actual value
+     */
+    public long getQuantile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(i == 63 ? Long.MAX_VALUE : 1L << i, getMax());
+        }
+        return getMax();
+    }
+
+    /** @return count, mean, max and selected percentiles; suitable for serialization */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", getCount());
+        snapshot.put("mean", getMean());
+        snapshot.put("p50", getQuantile(0.50));
+        snapshot.put("p90", getQuantile(0.90));
+        snapshot.put("p99", getQuantile(0.99));
+        snapshot.put("max", getMax());
+        return snapshot;
+    }
+
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counts events, and their rate per second over the last minute.
+ *
+ * Events are counted in one slot per second of a ring covering the last minute; a slot is
+ * cleared when it is reused for a new second.
+ */
+@ThreadSafe
+public class Meter {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder[] slots = new LongAdder[WINDOW_SECONDS];
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(WINDOW_SECONDS);
+    private final LongSupplier clock;
+
+    public Meter() {
+        this(System::currentTimeMillis);
+    }
+
+    Meter(LongSupplier clock) {
+        this.clock = clock;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            slots[i] = new LongAdder();
+            slotSeconds.set(i, -1);
+        }
+    }
+
+    /** Count one event */
+    public void mark() {
+        mark(1);
+    }
+
+    /** Count n events */
+    public void mark(long n) {
+        count.add(n);
+        long second = clock.getAsLong() / 1000;
+        int slot = (int) (second % WINDOW_SECONDS);
+        long slotSecond = slotSeconds.get(slot);
+        if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second))
+            slots[slot].reset();
+        slots[slot].add(n);
+    }
+
+    /** @return the total number of events */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return the average number of events per second over the last minute; the current second excluded */
+    public double getRate() {
+        long now = clock.getAsLong() / 1000;
+        long events = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            long second = slotSeconds.get(i);
+            if (second < now && second >= now - (WINDOW_SECONDS - 1))
+                events += slots[i].sum();
+        }
+        return (double) events / (WINDOW_SECONDS - 1);
+    }
+
+    /** @return count and rate; suitable for serialization */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", getCount());
+        snapshot.put("ratePerSecond", getRate());
+        return snapshot;
+    }
+
+}
@@ -0,0 +1,61 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named meters, histograms and gauges.
+ *
+ * Names are dot separated, e.g. "ingest.received" or "query.tracks.latencyMicros". Meters and
+ * histograms are created on first use, so callers simply look them up by name; hot paths should
+ * keep a reference to the instance instead.
+ */
+@ThreadSafe
+public class Metrics {
+
+    private final ConcurrentHashMap<String, Meter> meters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    /** @return the meter named name */
+    public Meter meter(String name) {
+        return meters.computeIfAbsent(name, n -> new Meter());
+    }
+
+    /** @return the histogram named name */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /** Register a gauge; a value read when metrics are reported. Replaces any gauge with the same name */
+    public void gauge(String name, Supplier<?> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /** @return the current value of all metrics by name, in name order; suitable for serialization */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        meters.forEach((name, meter) -> snapshot.put(name, meter.snapshot()));
+        histograms.forEach((name, histogram) -> snapshot.put(name, histogram.snapshot()));
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.get()));
+        return snapshot;
+    }
+
+}
@@ -0,0 +1,34 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+/**
+ * What QueryBudget does with a query costing more than its client has left of its budget.
+ */
+public enum BudgetPolicy {
+
+    /** Reject the query; the client is told when its budget allows it */
+    REJECT,
+
+    /** Delay the query until the budget allows it, if that is within the maximum delay; otherwise reject it */
+    DELAY,
+
+    /**
+     * Limit the result of a query for all matching targets to the first page the budget allows; the
+     * client continues with the cursor of the next page. Otherwise reject it
+     */
+    PAGINATE
+
+}
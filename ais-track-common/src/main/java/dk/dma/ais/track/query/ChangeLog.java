@@ -0,0 +1,182 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded log of the MMSIs changed by each update sequence number; i.e. by each update or
+ * removal of a target. Used to answer which targets changed since a given sequence number without
+ * comparing all targets. Each change also holds the cells of the spatial index the target was in
+ * before, or a tombstone if a report of the target was removed; so a delta can tell which changed
+ * targets may have left the result of a query.
+ *
+ * The log is a ring buffer indexed by sequence number, so only the most recent capacity changes are
+ * kept. Changes are recorded concurrently and not necessarily in sequence order; a change which has
+ * been assigned a sequence number, but not recorded yet, ends the changes returned by since.
+ */
+@ThreadSafe
+public class ChangeLog {
+
+    private final int mask;
+
+    /** The sequence number changes are recorded after; what came before is unknown */
+    private final long origin;
+
+    /** The sequence number of the change in each slot; 0 while the slot is being written */
+    private final AtomicLongArray sequences;
+
+    /** The MMSI changed in each slot */
+    private final AtomicIntegerArray mmsis;
+
+    /** The cells of the spatial index the target changed in each slot was in before; REMOVED if a report was removed, null if unknown */
+    private final AtomicReferenceArray<int[]> cellsBefore;
+
+    private static final int[] REMOVED = new int[0];
+
+    /**
+     * @param origin the sequence number changes are recorded after
+     * @param capacity the number of changes to keep; rounded up to a power of two
+     */
+    public ChangeLog(long origin, int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Change log capacity must be in ]0;2^30], not " + capacity);
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.origin = origin;
+        this.sequences = new AtomicLongArray(size);
+        this.mmsis = new AtomicIntegerArray(size);
+        this.cellsBefore = new AtomicReferenceArray<>(size);
+    }
+
+    /** Record that the change with sequence number sequence changed the target mmsi, from unknown cells of the spatial index */
+    public void record(long sequence, int mmsi) {
+        record(sequence, mmsi, (int[]) null);
+    }
+
+    /** Record that the change with sequence number sequence changed the target mmsi, which was in cellsBefore of the spatial index */
+    public void record(long sequence, int mmsi, Collection<Integer> cellsBefore) {
+        record(sequence, mmsi, cellsBefore.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /** Record that the change with sequence number sequence removed a report of the target mmsi; a tombstone */
+    public void recordRemoval(long sequence, int mmsi) {
+        record(sequence, mmsi, REMOVED);
+    }
+
+    private void record(long sequence, int mmsi, int[] cells) {
+        int slot = (int) (sequence & mask);
+        sequences.set(slot, 0);
+        mmsis.set(slot, mmsi);
+        cellsBefore.set(slot, cells);
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Return the MMSIs changed after since.
+     * @param since the sequence number the caller is up to date with
+     * @param current the last sequence number assigned
+     * @return the changes, or null if the changes following since are not known - e.g. because since was
+     *         handed out before a restart
+     */
+    public Changes since(long since, long current) {
+        if (!covers(since, current))
+            return null;
+
+        Set<Integer> changed = new HashSet<>();
+        Set<Integer> removed = new HashSet<>();
+        SetMultimap<Integer, Integer> cells = HashMultimap.create();
+        long highWaterMark = since;
+        for (long sequence = since + 1; sequence <= current; sequence++) {
+            int slot = (int) (sequence & mask);
+            long before = sequences.get(slot);
+            int mmsi = mmsis.get(slot);
+            int[] previous = cellsBefore.get(slot);
+            long after = sequences.get(slot);
+            if (before != sequence || after != sequence) {
+                if (before > sequence || (before == sequence && after != sequence))
+                    return null; // Overwritten by a later change
+                break; // Not recorded yet
+            }
+            changed.add(mmsi);
+            if (previous == null || previous == REMOVED) {
+                removed.add(mmsi);
+            } else {
+                for (int cell : previous)
+                    cells.put(mmsi, cell);
+            }
+            highWaterMark = sequence;
+        }
+        return new Changes(changed, removed, cells, highWaterMark);
+    }
+
+    /** @return true if the changes after since may still be kept, so since will most likely not return null */
+    public boolean covers(long since, long current) {
+        return since >= origin && since <= current && current - since <= capacity();
+    }
+
+    /** @return the number of changes kept */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** The MMSIs changed up to and including a high-water mark, with the reports removed and the cells they were in before */
+    @Immutable
+    public static final class Changes {
+        private final Set<Integer> mmsis;
+        private final Set<Integer> removed;
+        private final SetMultimap<Integer, Integer> cellsBefore;
+        private final long highWaterMark;
+
+        Changes(Set<Integer> mmsis, Set<Integer> removed, SetMultimap<Integer, Integer> cellsBefore, long highWaterMark) {
+            this.mmsis = Collections.unmodifiableSet(mmsis);
+            this.removed = removed;
+            this.cellsBefore = cellsBefore;
+            this.highWaterMark = highWaterMark;
+        }
+
+        /** @return the changed MMSIs */
+        public Set<Integer> getMmsis() {
+            return mmsis;
+        }
+
+        /** @return true if a report of the target mmsi was removed, or the cells it was in before a change are unknown */
+        public boolean isRemoved(int mmsi) {
+            return removed.contains(mmsi);
+        }
+
+        /** @return true if the target mmsi was in any of cells of the spatial index before one of the changes */
+        public boolean wasInAnyOf(int mmsi, Set<Integer> cells) {
+            return !Collections.disjoint(cellsBefore.get(mmsi), cells);
+        }
+
+        /** @return the sequence number of the last change included */
+        public long getHighWaterMark() {
+            return highWaterMark;
+        }
+    }
+
+}
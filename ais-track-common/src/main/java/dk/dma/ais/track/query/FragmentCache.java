@@ -0,0 +1,156 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of targets in serialized form, so results can be written by copying the bytes of the
+ * targets which have not changed since they were last serialized.
+ *
+ * Fragments are kept per MMSI and format (e.g. encoding and selected fields), and are removed
+ * when the target is updated or removed. As the tracker merges the position and static reports
+ * of different sources into a new TargetInfo, a fragment is only served for a target with the same
+ * report timestamps and source as the one it was serialized from. When the cache holds more than
+ * the maximum number of bytes, the fragments of the targets least recently written are evicted.
+ */
+@ThreadSafe
+public class FragmentCache {
+
+    /** Estimated size of the map entries holding a fragment */
+    private static final int OVERHEAD = 64;
+
+    /** The fragments of each target by format; weighed together, so all formats of a target are invalidated at once */
+    private final Cache<Integer, Map<String, Fragment>> fragments;
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /** @param maxBytes the maximum total size of the cached fragments */
+    public FragmentCache(long maxBytes) {
+        this.fragments = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((Integer mmsi, Map<String, Fragment> formats) -> (int) Math.min(Integer.MAX_VALUE, cost(formats)))
+            .removalListener(this::removed)
+            .build();
+    }
+
+    private void removed(RemovalNotification<Integer, Map<String, Fragment>> removal) {
+        bytes.addAndGet(-cost(removal.getValue()));
+        if (removal.wasEvicted())
+            evicted.increment();
+    }
+
+    private static long cost(Map<String, Fragment> formats) {
+        return formats.values().stream().mapToLong(Fragment::cost).sum();
+    }
+
+    /** @return the fragment of target in format; null if it is not cached or target has changed since */
+    public byte[] get(TargetInfo target, String format) {
+        Map<String, Fragment> formats = fragments.getIfPresent(target.getMmsi());
+        Fragment fragment = formats == null ? null : formats.get(format);
+        if (fragment != null && fragment.isOf(target)) {
+            hits.increment();
+            return fragment.bytes;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /** Cache the fragment of target in format, evicting others if the cache is full; fragment must not be modified afterwards */
+    public void put(TargetInfo target, String format, byte[] fragment) {
+        Fragment added = new Fragment(target, fragment);
+        // Concurrent puts for the same target may drop one of the formats; it is then serialized again next time
+        Map<String, Fragment> formats = fragments.getIfPresent(target.getMmsi());
+        Map<String, Fragment> updated;
+        if (formats == null) {
+            updated = Collections.singletonMap(format, added);
+        } else {
+            updated = new HashMap<>(formats);
+            updated.put(format, added);
+        }
+        bytes.addAndGet(cost(updated));
+        fragments.put(target.getMmsi(), updated); // The fragments replaced are subtracted by removed
+    }
+
+    /** Remove the fragments of the target with mmsi; called when it is updated or removed */
+    public void invalidate(int mmsi) {
+        fragments.invalidate(mmsi);
+    }
+
+    /** @return the number of targets with cached fragments */
+    public int size() {
+        return (int) fragments.size();
+    }
+
+    /** @return the estimated size of the cached fragments in bytes */
+    public long sizeInBytes() {
+        return bytes.get();
+    }
+
+    /** @return the number of targets written from a cached fragment */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /** @return the number of targets serialized as no valid fragment was cached */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /** @return the number of targets whose fragments were evicted as the cache was full */
+    public long evictedCount() {
+        return evicted.sum();
+    }
+
+    /** A serialized target, and what identifies the TargetInfo it was serialized from */
+    private static final class Fragment {
+        final byte[] bytes;
+        final long positionTimestamp;
+        final long staticTimestamp;
+        final AisPacketSource source;
+
+        Fragment(TargetInfo target, byte[] bytes) {
+            this.bytes = bytes;
+            this.positionTimestamp = target.getPositionTimestamp();
+            this.staticTimestamp = target.getStaticTimestamp();
+            this.source = target.getPacketSource();
+        }
+
+        boolean isOf(TargetInfo target) {
+            return positionTimestamp == target.getPositionTimestamp() && staticTimestamp == target.getStaticTimestamp()
+                && Objects.equals(source, target.getPacketSource());
+        }
+
+        long cost() {
+            return bytes.length + OVERHEAD;
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the k targets nearest to a position among the targets offered to it.
+ *
+ * Only the k nearest targets seen so far are kept, farthest first, so the distance a target must
+ * be within to be kept - the bound - is known at any time; a search can stop once it only has
+ * targets farther away than that left.
+ */
+@NotThreadSafe
+public final class NearestTargets {
+
+    private final Position from;
+    private final int k;
+    private final double maxDistance;
+    private final PriorityQueue<TargetDistance> nearest;
+
+    /**
+     * @param from the position to measure distances from
+     * @param k the number of targets to collect
+     * @param maxDistance the distance in metres targets must be within
+     */
+    public NearestTargets(Position from, int k, double maxDistance) {
+        if (k <= 0)
+            throw new IllegalArgumentException("Number of targets must be positive, not " + k);
+        this.from = from;
+        this.k = k;
+        this.maxDistance = maxDistance;
+        this.nearest = new PriorityQueue<>(k + 1, Comparator.comparingDouble(TargetDistance::getDistance).reversed());
+    }
+
+    /** Offer target; it is kept if it is positioned and among the k nearest so far */
+    public void offer(TargetInfo target) {
+        Position position = target.getPosition();
+        if (position == null)
+            return;
+
+        double distance = CoordinateSystem.CARTESIAN.distanceBetween(from, position);
+        if (distance > getBound())
+            return;
+
+        nearest.add(new TargetDistance(target, distance));
+        if (nearest.size() > k)
+            nearest.poll();
+    }
+
+    /** @return the position distances are measured from */
+    public Position getFrom() {
+        return from;
+    }
+
+    /** @return the distance in metres targets must be within */
+    public double getMaxDistance() {
+        return maxDistance;
+    }
+
+    /** @return the distance in metres beyond which offered targets are not kept */
+    public double getBound() {
+        return nearest.size() < k ? maxDistance : Math.min(maxDistance, nearest.peek().getDistance());
+    }
+
+    /** @return the targets kept, nearest first */
+    public List<TargetDistance> toList() {
+        List<TargetDistance> targets = new ArrayList<>(nearest);
+        targets.sort(Comparator.comparingDouble(TargetDistance::getDistance));
+        return targets;
+    }
+
+}
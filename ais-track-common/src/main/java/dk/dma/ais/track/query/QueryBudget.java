@@ -0,0 +1,324 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The cost budgets of the clients of the tracker.
+ *
+ * Each client has a token bucket, refilled at a number of cost units per second up to a burst size.
+ * A query is admitted if its estimated cost - see QueryEstimate.estimateCost - can be taken from the
+ * bucket; otherwise the BudgetPolicy decides whether it is rejected, delayed until the bucket has
+ * been refilled, or limited to the page of the result the client can afford. A query costing more
+ * than the burst is charged the burst, so that it is admitted whenever the bucket is full.
+ *
+ * Clients are e.g. the names of API keys or the addresses of anonymous clients. All clients share
+ * the same default limits, unless limits are set for them. Clients which have not sent a query for
+ * ten minutes, and whose buckets have been refilled, are forgotten.
+ */
+@ThreadSafe
+public class QueryBudget {
+
+    /** The minimum time a client is remembered after its last query */
+    private static final long IDLE_SECONDS = 600;
+
+    private final BudgetPolicy policy;
+    private final long costPerSecond;
+    private final long burst;
+    private final long maxDelayNanos;
+    private final int minPage;
+    private final LongSupplier nanoClock;
+
+    private final Map<String, long[]> limits = new ConcurrentHashMap<>();
+    private final Cache<String, Account> accounts;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder paginated = new LongAdder();
+
+    /**
+     * @param policy what to do with queries over budget
+     * @param costPerSecond the rate at which the budget of a client is refilled
+     * @param burst the maximum budget of a client
+     * @param maxDelay the longest a query is delayed with policy DELAY
+     * @param minPage the smallest page a result is limited to with policy PAGINATE
+     * @param maxClients the maximum number of clients to keep budgets for
+     */
+    public QueryBudget(BudgetPolicy policy, long costPerSecond, long burst, Duration maxDelay, int minPage, int maxClients) {
+        this(policy, costPerSecond, burst, maxDelay, minPage, maxClients, System::nanoTime);
+    }
+
+    QueryBudget(BudgetPolicy policy, long costPerSecond, long burst, Duration maxDelay, int minPage, int maxClients, LongSupplier nanoClock) {
+        if (costPerSecond <= 0 || burst <= 0)
+            throw new IllegalArgumentException("Cost per second and burst must be positive, not " + costPerSecond + " and " + burst);
+        this.policy = policy;
+        this.costPerSecond = costPerSecond;
+        this.burst = burst;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.minPage = minPage;
+        this.nanoClock = nanoClock;
+        this.accounts = CacheBuilder.newBuilder()
+            .maximumSize(maxClients)
+            .expireAfterAccess(Math.max(IDLE_SECONDS, burst / costPerSecond), TimeUnit.SECONDS)
+            .build();
+    }
+
+    /** Set the limits of client, instead of the default limits */
+    public void setLimits(String client, long costPerSecond, long burst) {
+        if (costPerSecond <= 0 || burst <= 0)
+            throw new IllegalArgumentException("Cost per second and burst must be positive, not " + costPerSecond + " and " + burst);
+        limits.put(client, new long[] {costPerSecond, burst});
+        accounts.invalidate(client);
+    }
+
+    /**
+     * Admit a query of client estimated as estimate.
+     *
+     * @param limit the maximum number of targets the client asked for; null for all
+     * @param pageable true if the result may be limited to a page with policy PAGINATE
+     */
+    public Admission admit(String client, QueryEstimate estimate, Integer limit, boolean pageable) {
+        Account account = account(client);
+        long cost = account.capped(estimate.estimateCost(limit));
+        if (account.tryCharge(cost))
+            return Admission.admitted(cost, 0, limit);
+
+        if (policy == BudgetPolicy.PAGINATE && pageable && limit == null) {
+            long page = account.available() - estimate.getVisits() / QueryPlan.VISITS_PER_COST_UNIT;
+            if (page >= minPage) {
+                int pageLimit = (int) Math.min(page, Integer.MAX_VALUE);
+                long pageCost = account.capped(estimate.estimateCost(pageLimit));
+                if (account.tryCharge(pageCost)) {
+                    paginated.increment();
+                    return Admission.admitted(pageCost, 0, pageLimit);
+                }
+            }
+        }
+        return delayOrReject(account, cost, limit);
+    }
+
+    /** Admit a query of client with a known cost, e.g. the lookup of a single target */
+    public Admission admit(String client, long cost) {
+        Account account = account(client);
+        long capped = account.capped(cost);
+        if (account.tryCharge(capped))
+            return Admission.admitted(capped, 0, null);
+        return delayOrReject(account, capped, null);
+    }
+
+    private Admission delayOrReject(Account account, long cost, Integer limit) {
+        if (policy == BudgetPolicy.DELAY) {
+            long delay = account.reserve(cost, maxDelayNanos);
+            if (delay >= 0) {
+                delayed.increment();
+                return Admission.admitted(cost, delay, limit);
+            }
+        }
+        rejected.increment();
+        account.rejected.increment();
+        return Admission.rejected(cost, limit, account.nanosUntilAvailable(cost));
+    }
+
+    /** Charge client for cost which could not be estimated before the query was executed; e.g. the changes returned by a delta */
+    public void charge(String client, long cost) {
+        account(client).charge(cost);
+    }
+
+    private Account account(String client) {
+        try {
+            return accounts.get(client, () -> {
+                long[] clientLimits = limits.get(client);
+                return clientLimits == null ? new Account(costPerSecond, burst) : new Account(clientLimits[0], clientLimits[1]);
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return the number of queries rejected */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /** @return the number of queries delayed */
+    public long delayedCount() {
+        return delayed.sum();
+    }
+
+    /** @return the number of queries limited to a page */
+    public long paginatedCount() {
+        return paginated.sum();
+    }
+
+    /** @return the cost charged, budget left and queries rejected per client; suitable for serialization */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        accounts.asMap().forEach((client, account) -> {
+            Map<String, Object> accountSnapshot = new LinkedHashMap<>();
+            accountSnapshot.put("queries", account.queries.sum());
+            accountSnapshot.put("cost", account.charged.sum());
+            accountSnapshot.put("available", account.available());
+            accountSnapshot.put("rejected", account.rejected.sum());
+            snapshot.put(client, accountSnapshot);
+        });
+        return snapshot;
+    }
+
+    /** The token bucket of a client */
+    @ThreadSafe
+    private final class Account {
+        private final double costPerNano;
+        private final long burst;
+
+        @GuardedBy("this")
+        private double tokens;
+        @GuardedBy("this")
+        private long refilled;
+
+        final LongAdder queries = new LongAdder();
+        final LongAdder charged = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        Account(long costPerSecond, long burst) {
+            this.costPerNano = costPerSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilled = nanoClock.getAsLong();
+        }
+
+        @GuardedBy("this")
+        private void refill() {
+            long now = nanoClock.getAsLong();
+            tokens = Math.min(burst, tokens + (now - refilled) * costPerNano);
+            refilled = now;
+        }
+
+        /** @return cost, or the burst if cost exceeds it */
+        long capped(long cost) {
+            return Math.min(cost, burst);
+        }
+
+        synchronized boolean tryCharge(long cost) {
+            refill();
+            if (tokens < cost)
+                return false;
+            tokens -= cost;
+            queries.increment();
+            charged.add(cost);
+            return true;
+        }
+
+        /** @return the nanoseconds to wait before the query costing cost may run; -1 if longer than maxDelayNanos */
+        synchronized long reserve(long cost, long maxDelayNanos) {
+            refill();
+            long delay = (long) Math.ceil((cost - tokens) / costPerNano);
+            if (delay > maxDelayNanos)
+                return -1;
+            tokens -= cost;
+            queries.increment();
+            charged.add(cost);
+            return Math.max(0, delay);
+        }
+
+        synchronized void charge(long cost) {
+            refill();
+            tokens -= cost;
+            charged.add(cost);
+        }
+
+        synchronized long available() {
+            refill();
+            return (long) Math.floor(tokens);
+        }
+
+        /** @return the nanoseconds until cost, at most the burst, can be charged */
+        synchronized long nanosUntilAvailable(long cost) {
+            refill();
+            return Math.max(0, (long) Math.ceil((cost - tokens) / costPerNano));
+        }
+    }
+
+    /** Whether and how a query is executed */
+    @Immutable
+    public static final class Admission {
+        private final long cost;
+        private final long delayNanos;
+        private final Integer limit;
+        private final long retryAfterNanos;
+        private final boolean rejected;
+
+        private Admission(long cost, long delayNanos, Integer limit, boolean rejected, long retryAfterNanos) {
+            this.cost = cost;
+            this.delayNanos = delayNanos;
+            this.limit = limit;
+            this.rejected = rejected;
+            this.retryAfterNanos = retryAfterNanos;
+        }
+
+        static Admission admitted(long cost, long delayNanos, Integer limit) {
+            return new Admission(cost, delayNanos, limit, false, -1);
+        }
+
+        static Admission rejected(long cost, Integer limit, long retryAfterNanos) {
+            return new Admission(cost, 0, limit, true, retryAfterNanos);
+        }
+
+        /** @return an admission for a query which is not budgeted */
+        public static Admission unlimited(Integer limit) {
+            return admitted(0, 0, limit);
+        }
+
+        /** @return the estimated cost of the query */
+        public long getCost() {
+            return cost;
+        }
+
+        /** @return true if the query is rejected */
+        public boolean isRejected() {
+            return rejected;
+        }
+
+        /** @return the nanoseconds to delay the query */
+        public long getDelayNanos() {
+            return delayNanos;
+        }
+
+        /** @return the maximum number of targets to return; smaller than asked for if the result was limited to a page */
+        public Integer getLimit() {
+            return limit;
+        }
+
+        /** @return the nanoseconds until a rejected query can be admitted; -1 if admitted */
+        public long getRetryAfterNanos() {
+            return retryAfterNanos;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.time.Duration;
+import java.util.function.Predicate;
+
+/**
+ * The time by which a query must complete. Long running parts of the query check the deadline as
+ * they proceed, and give up with a QueryCancelledException once it has passed or the query has been
+ * cancelled; see TargetQuery.withDeadline.
+ */
+@ThreadSafe
+public final class QueryDeadline {
+
+    /** The clock is read once per this many periodic checks */
+    private static final int CHECK_INTERVAL = 64;
+
+    private final long deadlineNanos;
+    private final Duration timeout;
+    private volatile boolean cancelled;
+
+    /** Counts periodic checks; updated without synchronization, as a lost update only delays a check */
+    private int checks;
+
+    private QueryDeadline(Duration timeout) {
+        this.timeout = timeout;
+        this.deadlineNanos = System.nanoTime() + timeout.toNanos();
+    }
+
+    /** @return the deadline timeout from now */
+    public static QueryDeadline after(Duration timeout) {
+        return new QueryDeadline(timeout);
+    }
+
+    /** Cancel the query; e.g. because the client has gone */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** @return true if the deadline has passed or the query has been cancelled */
+    public boolean isPassed() {
+        return cancelled || System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /** @throws QueryCancelledException if the deadline has passed or the query has been cancelled */
+    public void check() {
+        if (cancelled)
+            throw new QueryCancelledException("Query cancelled");
+        if (System.nanoTime() - deadlineNanos >= 0)
+            throw new QueryCancelledException("Query did not complete within " + timeout);
+    }
+
+    /** Check the deadline; reading the clock only on every CHECK_INTERVAL'th call, so it is cheap enough to call per target */
+    public void checkPeriodically() {
+        if (cancelled || ++checks % CHECK_INTERVAL == 0)
+            check();
+    }
+
+    /** @return predicate, checking the deadline periodically before testing */
+    public <T> Predicate<T> guard(Predicate<T> predicate) {
+        return t -> {
+            checkPeriodically();
+            return predicate.test(t);
+        };
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+}
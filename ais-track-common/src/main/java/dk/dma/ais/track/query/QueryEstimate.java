@@ -0,0 +1,74 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The estimated cost of a TargetQuery, found from the shape of the query and the sizes of the spatial
+ * index cells it covers - without collecting its candidates as a QueryPlan does - so it is cheap enough
+ * to find before the query is admitted; see QueryPlanner.estimate and QueryBudget.
+ */
+@Immutable
+public final class QueryEstimate {
+
+    private final int visits;
+    private final boolean lookup;
+
+    /**
+     * @param visits the number of targets the query is expected to visit
+     * @param lookup true if the query only looks up the MMSIs it names
+     */
+    public QueryEstimate(int visits, boolean lookup) {
+        this.visits = visits;
+        this.lookup = lookup;
+    }
+
+    /** @return an estimate for a query visiting every one of trackerSize targets */
+    public static QueryEstimate fullScan(int trackerSize) {
+        return new QueryEstimate(trackerSize, false);
+    }
+
+    /** @return the number of targets the query is expected to visit */
+    public int getVisits() {
+        return visits;
+    }
+
+    /** @return the estimated number of matching targets; an upper bound, as the residual filters are not estimated */
+    public int getEstimatedMatches() {
+        return visits;
+    }
+
+    /** @return true if the query only looks up the MMSIs it names */
+    public boolean isLookup() {
+        return lookup;
+    }
+
+    /**
+     * Estimate the cost of executing the query and serializing the result, in units of the cost of
+     * serializing one target; see QueryPlan.VISITS_PER_COST_UNIT.
+     *
+     * @param limit the maximum number of targets in the result; null for all
+     */
+    public long estimateCost(Integer limit) {
+        int matches = limit == null ? getEstimatedMatches() : Math.min(limit, getEstimatedMatches());
+        return visits / QueryPlan.VISITS_PER_COST_UNIT + matches;
+    }
+
+    @Override
+    public String toString() {
+        return (lookup ? "LOOKUP(" : "SCAN(") + visits + ")";
+    }
+}
@@ -0,0 +1,135 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Set;
+
+/**
+ * The way a TargetQuery is executed: how the candidate targets are found, and
+ * which residual predicates are applied to them.
+ */
+@Immutable
+public final class QueryPlan {
+
+    public enum Strategy {
+        /** Look up each queried MMSI in the tracker */
+        MMSI_LOOKUP,
+        /** Look up the MMSIs found in the overlapping cells of the spatial index */
+        INDEX_LOOKUP,
+        /** Look up the queried MMSIs and those found in the overlapping cells of the spatial index */
+        MMSI_AND_INDEX_LOOKUP,
+        /** Look up the queried MMSIs and those found positioned inside the areas by a scan of the target columns */
+        COLUMN_SCAN,
+        /** Look up the MMSIs with a report from a source matching the source filter, as found in the source bitmaps of the target columns */
+        SOURCE_LOOKUP,
+        /** Visit every target in the tracker */
+        FULL_SCAN
+    }
+
+    /** The number of targets visited for the cost of serializing one target; i.e. one cost unit */
+    public static final int VISITS_PER_COST_UNIT = 10;
+
+    /** The number of bytes of a cached result served for the cost of serializing one target; i.e. one cost unit */
+    public static final int BYTES_PER_COST_UNIT = 1000;
+
+    private final TargetQuery query;
+    private final Strategy strategy;
+    private final Set<Integer> candidates;
+    private final int trackerSize;
+    private final String reason;
+
+    QueryPlan(TargetQuery query, Strategy strategy, Set<Integer> candidates, int trackerSize, String reason) {
+        this.query = query;
+        this.strategy = strategy;
+        this.candidates = candidates;
+        this.trackerSize = trackerSize;
+        this.reason = reason;
+    }
+
+    /** @return a plan visiting every target */
+    public static QueryPlan fullScan(TargetQuery query, int trackerSize, String reason) {
+        return new QueryPlan(query, Strategy.FULL_SCAN, null, trackerSize, reason);
+    }
+
+    public TargetQuery getQuery() {
+        return query;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /** @return the MMSIs of the targets to test against the query; null when all targets must be tested */
+    public Set<Integer> getCandidates() {
+        return candidates;
+    }
+
+    /** @return the number of targets the plan visits */
+    public int getCost() {
+        return candidates == null ? trackerSize : candidates.size();
+    }
+
+    /** @return the estimated number of matching targets; an upper bound, as the residual filters are not estimated */
+    public int getEstimatedMatches() {
+        return getCost();
+    }
+
+    /** @return the estimated cost of the query, as found from the candidates of the plan */
+    public QueryEstimate getEstimate() {
+        return new QueryEstimate(getCost(), strategy == Strategy.MMSI_LOOKUP);
+    }
+
+    /**
+     * Estimate the cost of executing the plan and serializing the result, in units of the cost of
+     * serializing one target; see VISITS_PER_COST_UNIT.
+     *
+     * @param limit the maximum number of targets in the result; null for all
+     */
+    public long estimateCost(Integer limit) {
+        return getEstimate().estimateCost(limit);
+    }
+
+    /** @return a human readable description of the plan */
+    public String explain() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query: ").append(query).append('\n')
+          .append("Strategy: ").append(strategy).append('\n')
+          .append("Reason: ").append(reason).append('\n')
+          .append("Candidates: ").append(getCost()).append(" of ").append(trackerSize).append(" targets").append('\n')
+          .append("Estimated cost: ").append(estimateCost(null)).append('\n')
+          .append("Residual filters:");
+
+        if (query.getSourceFilterExpression() != null)
+            sb.append(" source filter '").append(query.getSourceFilterExpression()).append("',");
+        if (strategy != Strategy.MMSI_LOOKUP && !query.getMmsis().isEmpty())
+            sb.append(" mmsi in ").append(query.getMmsis().size()).append(" numbers,");
+        if (!query.getBaseAreas().isEmpty())
+            sb.append(" inside any of ").append(query.getBaseAreas().size()).append(" base areas,");
+        if (!query.getAreas().isEmpty())
+            sb.append(" inside any of ").append(query.getAreas().size()).append(" areas,");
+        if (sb.charAt(sb.length() - 1) == ',')
+            sb.setLength(sb.length() - 1);
+        else
+            sb.append(" none");
+
+        return sb.append('\n').toString();
+    }
+
+    @Override
+    public String toString() {
+        return strategy + "(" + getCost() + "/" + trackerSize + ")";
+    }
+}
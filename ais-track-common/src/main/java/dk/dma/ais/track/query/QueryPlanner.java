@@ -0,0 +1,156 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.track.index.RowBitmap;
+import dk.dma.ais.track.index.TargetColumns;
+import dk.dma.ais.track.index.TargetGridIndex;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Area;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.HashSet;
+import java.util.Set;
+
+import static dk.dma.ais.track.query.QueryPlan.Strategy.COLUMN_SCAN;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.INDEX_LOOKUP;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.MMSI_AND_INDEX_LOOKUP;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.MMSI_LOOKUP;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.SOURCE_LOOKUP;
+
+/**
+ * Chooses the cheapest way to find the candidate targets of a TargetQuery:
+ * direct MMSI lookups, then cells of the spatial index, then a scan of the target
+ * columns, then a full scan. Queries restricted by nothing but a source filter
+ * look up the targets with a report from a matching source.
+ */
+@ThreadSafe
+public class QueryPlanner {
+
+    /** Share of the tracked targets above which looking up candidates one by one is no cheaper than a full scan */
+    static final double MAX_CANDIDATE_SHARE = 0.5;
+
+    private final TargetTracker tracker;
+    private final TargetGridIndex index;
+    private final TargetColumns columns;
+
+    public QueryPlanner(TargetTracker tracker, TargetGridIndex index) {
+        this(tracker, index, null);
+    }
+
+    /** @param columns the target columns to scan instead of the tracker for area restrictions; may be null */
+    public QueryPlanner(TargetTracker tracker, TargetGridIndex index, TargetColumns columns) {
+        this.tracker = tracker;
+        this.index = index;
+        this.columns = columns;
+    }
+
+    public QueryPlan plan(TargetQuery query) {
+        final int trackerSize = tracker.size();
+        final Set<Integer> mmsis = query.getMmsis();
+
+        if (mmsis.isEmpty() && !query.hasAreaRestriction())
+            return sourceLookupOrFullScan(query, trackerSize);
+
+        // Targets not matched by MMSI must be inside both a base area and an area - so candidates from either will do
+        Set<Area> indexAreas = null;
+        int indexEstimate = 0;
+        if (query.hasAreaRestriction()) {
+            int areasEstimate = index.estimate(query.getAreas());
+            int baseAreasEstimate = index.estimate(query.getBaseAreas());
+
+            if (areasEstimate < 0 && baseAreasEstimate < 0)
+                return columnScanOrFullScan(query, trackerSize, "Areas not supported by spatial index");
+
+            if (baseAreasEstimate < 0 || (areasEstimate >= 0 && areasEstimate <= baseAreasEstimate)) {
+                indexAreas = query.getAreas();
+                indexEstimate = areasEstimate;
+            } else {
+                indexAreas = query.getBaseAreas();
+                indexEstimate = baseAreasEstimate;
+            }
+        }
+
+        final long estimate = (long) mmsis.size() + indexEstimate;
+        if (estimate > trackerSize * MAX_CANDIDATE_SHARE)
+            return columnScanOrFullScan(query, trackerSize, "Estimated " + estimate + " candidates is too large a share of the targets for lookups");
+
+        Set<Integer> candidates = new HashSet<>(mmsis);
+        if (indexAreas == null)
+            return new QueryPlan(query, MMSI_LOOKUP, candidates, trackerSize, "Only MMSI restriction");
+
+        candidates.addAll(index.candidates(indexAreas));
+        String reason = "Estimated " + indexEstimate + " candidates from " + (indexAreas == query.getAreas() ? "areas" : "base areas");
+        return new QueryPlan(query, mmsis.isEmpty() ? INDEX_LOOKUP : MMSI_AND_INDEX_LOOKUP, candidates, trackerSize, reason);
+    }
+
+    /**
+     * Estimate the cost of query without planning it; from the number of MMSIs and the targets in the cells of the
+     * spatial index covering its areas. Queries not supported by the index, or restricted by nothing but a source
+     * filter, are estimated as full scans - an upper bound, as the plan may scan the target columns instead.
+     */
+    public QueryEstimate estimate(TargetQuery query) {
+        final int trackerSize = tracker.size();
+        final Set<Integer> mmsis = query.getMmsis();
+
+        if (!query.hasAreaRestriction()) {
+            if (mmsis.isEmpty() || mmsis.size() > trackerSize * MAX_CANDIDATE_SHARE)
+                return QueryEstimate.fullScan(trackerSize);
+            return new QueryEstimate(mmsis.size(), true);
+        }
+
+        int areasEstimate = index.estimate(query.getAreas());
+        int baseAreasEstimate = index.estimate(query.getBaseAreas());
+        if (areasEstimate < 0 && baseAreasEstimate < 0)
+            return QueryEstimate.fullScan(trackerSize);
+
+        int indexEstimate = areasEstimate < 0 ? baseAreasEstimate : baseAreasEstimate < 0 ? areasEstimate : Math.min(areasEstimate, baseAreasEstimate);
+        return new QueryEstimate((int) Math.min(trackerSize, (long) mmsis.size() + indexEstimate), false);
+    }
+
+    /** Find the candidates of a query with an area restriction in the target columns; if they support any of its areas */
+    private QueryPlan columnScanOrFullScan(TargetQuery query, int trackerSize, String reason) {
+        TargetColumns.RowFilter areas = TargetColumns.inside(query.getAreas());
+        TargetColumns.RowFilter baseAreas = TargetColumns.inside(query.getBaseAreas());
+        if (columns == null || (areas == null && baseAreas == null))
+            return QueryPlan.fullScan(query, trackerSize, reason);
+
+        // Unsupported areas are left to the exact test of the candidates
+        TargetColumns.RowFilter filter = areas == null ? baseAreas : baseAreas == null ? areas : areas.and(baseAreas);
+        Set<Integer> candidates = new HashSet<>(query.getMmsis());
+        if (query.getSourceFilterExpression() == null) {
+            candidates.addAll(columns.select(filter));
+        } else {
+            // Only scan the rows of reports from matching sources
+            candidates.addAll(columns.select(columns.rowsFrom(query.getSourceFilter()), filter));
+        }
+        return new QueryPlan(query, COLUMN_SCAN, candidates, trackerSize, reason + "; scanning target columns");
+    }
+
+    /** Find the candidates of a query restricted only by a source filter in the source bitmaps of the target columns */
+    private QueryPlan sourceLookupOrFullScan(TargetQuery query, int trackerSize) {
+        if (columns == null || query.getSourceFilterExpression() == null)
+            return QueryPlan.fullScan(query, trackerSize, "No MMSI, area or source restriction");
+
+        RowBitmap rows = columns.rowsFrom(query.getSourceFilter());
+        int estimate = rows.cardinality();
+        if (estimate > trackerSize * MAX_CANDIDATE_SHARE)
+            return QueryPlan.fullScan(query, trackerSize, "Estimated " + estimate + " reports from matching sources is too large a share of the targets for lookups");
+
+        String reason = "Estimated " + estimate + " reports from matching sources";
+        return new QueryPlan(query, SOURCE_LOOKUP, columns.select(rows, null), trackerSize, reason);
+    }
+
+}
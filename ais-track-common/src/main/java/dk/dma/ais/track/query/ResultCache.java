@@ -0,0 +1,201 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A bounded cache of serialized query results.
+ *
+ * Results are keyed by the canonical form of the query and tagged with the update epoch of the
+ * tracker when they were produced. A result is served while the epoch is unchanged, or while it
+ * is younger than the allowed staleness. Concurrent requests for a result which is not cached
+ * wait for the one request producing it, instead of producing it themselves.
+ */
+@ThreadSafe
+public class ResultCache {
+
+    private final Cache<String, Result> results;
+    private final ConcurrentHashMap<String, CompletableFuture<Result>> producing = new ConcurrentHashMap<>();
+    private final long maxStalenessNanos;
+    private final LongSupplier nanoClock;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param maxBytes the maximum total size of the cached results
+     * @param maxStaleness how long a result may be served after the tracker has changed
+     */
+    public ResultCache(long maxBytes, Duration maxStaleness) {
+        this(maxBytes, maxStaleness, System::nanoTime);
+    }
+
+    ResultCache(long maxBytes, Duration maxStaleness, LongSupplier nanoClock) {
+        this.results = CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((String key, Result result) -> result.getBody().length + key.length())
+            .build();
+        this.maxStalenessNanos = maxStaleness.toNanos();
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Return the result for key.
+     *
+     * @param key the canonical form of the query
+     * @param epoch the current update epoch of the tracker
+     * @param producer produces the serialized result if no valid result is cached
+     * @throws RuntimeException the exception thrown by producer
+     */
+    public Result get(String key, long epoch, Supplier<byte[]> producer) {
+        Result result = results.getIfPresent(key);
+        if (result != null && isValid(result, epoch)) {
+            hits.increment();
+            return result;
+        }
+
+        CompletableFuture<Result> future = new CompletableFuture<>();
+        CompletableFuture<Result> running = producing.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+
+        misses.increment();
+        try {
+            result = new Result(producer.get(), epoch, nanoClock.getAsLong());
+            results.put(key, result);
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            producing.remove(key, future);
+        }
+    }
+
+    /**
+     * Return the result for key if a valid result is cached; e.g. to charge a client for serving it instead of producing it.
+     *
+     * @param key the canonical form of the query
+     * @param epoch the current update epoch of the tracker
+     * @return the cached result, or null
+     */
+    public Result getIfValid(String key, long epoch) {
+        Result result = results.getIfPresent(key);
+        if (result == null || !isValid(result, epoch))
+            return null;
+        hits.increment();
+        return result;
+    }
+
+    private boolean isValid(Result result, long epoch) {
+        return result.getEpoch() == epoch || nanoClock.getAsLong() - result.created <= maxStalenessNanos;
+    }
+
+    /** Remove all cached results */
+    public void invalidateAll() {
+        results.invalidateAll();
+    }
+
+    /** @return the number of cached results */
+    public long size() {
+        return results.size();
+    }
+
+    /** @return the number of requests answered with a cached result */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /** @return the number of requests which produced a result */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /** @return the number of requests which waited for another request to produce the result */
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** A serialized query result */
+    @ThreadSafe
+    public static final class Result {
+
+        private final byte[] body;
+        private final long epoch;
+        private final long created;
+        private volatile byte[] gzippedBody;
+
+        Result(byte[] body, long epoch, long created) {
+            this.body = body;
+            this.epoch = epoch;
+            this.created = created;
+        }
+
+        /** @return the serialized result; must not be modified */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /** @return the serialized result gzip compressed; compressed on first use; must not be modified */
+        public byte[] getGzippedBody() {
+            byte[] gzipped = gzippedBody;
+            if (gzipped == null) {
+                gzipped = gzip(body);
+                gzippedBody = gzipped;
+            }
+            return gzipped;
+        }
+
+        /** @return the update epoch of the tracker when the result was produced */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        private static byte[] gzip(byte[] data) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                gzip.write(data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+}
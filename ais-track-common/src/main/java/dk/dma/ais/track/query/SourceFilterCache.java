@@ -0,0 +1,147 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketSourceFilters;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A bounded cache of compiled source filter expressions.
+ *
+ * Expressions are keyed by their normalized text. Each compiled predicate in turn remembers
+ * its result for every distinct AisPacketSource it has tested - the number of distinct sources
+ * is small, so most tests during a scan become a map lookup.
+ */
+@ThreadSafe
+public class SourceFilterCache {
+
+    private final Cache<String, Predicate<AisPacketSource>> cache;
+    private final int maxSourcesPerFilter;
+
+    private final LongAdder sourceHits = new LongAdder();
+    private final LongAdder sourceMisses = new LongAdder();
+
+    /**
+     * @param maxExpressions the maximum number of compiled expressions to keep
+     * @param maxSourcesPerFilter the maximum number of sources to remember results for per expression
+     */
+    public SourceFilterCache(int maxExpressions, int maxSourcesPerFilter) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxExpressions).recordStats().build();
+        this.maxSourcesPerFilter = maxSourcesPerFilter;
+    }
+
+    /**
+     * Return the compiled predicate for expression.
+     * @throws RuntimeException the exception thrown by the parser if the expression cannot be parsed
+     */
+    public Predicate<AisPacketSource> get(String expression) {
+        String key = normalize(expression);
+        try {
+            return cache.get(key, () -> new MemoizingSourcePredicate(AisPacketSourceFilters.parseSourceFilter(key)));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalArgumentException(cause);
+        }
+    }
+
+    /** @return hit and miss statistics for compiled expressions */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /** @return the number of compiled expressions in the cache */
+    public long size() {
+        return cache.size();
+    }
+
+    /** @return the number of source tests answered from a remembered result */
+    public long sourceHitCount() {
+        return sourceHits.sum();
+    }
+
+    /** @return the number of source tests which evaluated the compiled expression */
+    public long sourceMissCount() {
+        return sourceMisses.sum();
+    }
+
+    /**
+     * Normalize expression, so trivially different spellings share one cache entry:
+     * leading and trailing white space is removed, and other white space outside quotes
+     * is collapsed to a single blank.
+     */
+    public static String normalize(String expression) {
+        String trimmed = expression.trim();
+        StringBuilder sb = new StringBuilder(trimmed.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (c == quote)
+                quote = 0;
+            else if (quote == 0 && (c == '\'' || c == '"'))
+                quote = c;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** A source predicate which remembers its result for each distinct source */
+    private final class MemoizingSourcePredicate implements Predicate<AisPacketSource> {
+
+        private final Predicate<AisPacketSource> predicate;
+        private final ConcurrentHashMap<AisPacketSource, Boolean> results = new ConcurrentHashMap<>();
+
+        MemoizingSourcePredicate(Predicate<AisPacketSource> predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        public boolean test(AisPacketSource source) {
+            if (source == null)
+                return predicate.test(null);
+
+            Boolean result = results.get(source);
+            if (result != null) {
+                sourceHits.increment();
+                return result;
+            }
+
+            sourceMisses.increment();
+            boolean test = predicate.test(source);
+            if (results.size() < maxSourcesPerFilter)
+                results.putIfAbsent(source, test);
+            return test;
+        }
+    }
+
+}
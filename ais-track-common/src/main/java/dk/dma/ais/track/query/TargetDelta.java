@@ -0,0 +1,80 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The changes to the result of a query since a given update sequence number.
+ *
+ * A client holding the result as of since is brought up to date with highWaterMark by replacing
+ * the targets it holds with the changed targets, and dropping the removed MMSIs - which have either
+ * been removed from the tracker or no longer match the query. If the changes since are no longer
+ * known, the delta is a reset: the targets are the whole result, and the client must drop all
+ * other targets it holds.
+ */
+@Immutable
+public final class TargetDelta {
+
+    private final long since;
+    private final long highWaterMark;
+    private final boolean reset;
+    private final Collection<TargetInfo> targets;
+    private final Set<Integer> removed;
+
+    public TargetDelta(long since, long highWaterMark, boolean reset, Collection<TargetInfo> targets, Set<Integer> removed) {
+        this.since = since;
+        this.highWaterMark = highWaterMark;
+        this.reset = reset;
+        this.targets = Collections.unmodifiableCollection(targets);
+        this.removed = Collections.unmodifiableSet(removed);
+    }
+
+    /** Create a delta holding the whole result of a query as of highWaterMark */
+    public static TargetDelta reset(long since, long highWaterMark, Collection<TargetInfo> targets) {
+        return new TargetDelta(since, highWaterMark, true, targets, Collections.emptySet());
+    }
+
+    /** @return the sequence number the delta was requested since */
+    public long getSince() {
+        return since;
+    }
+
+    /** @return the sequence number to request the next delta since */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /** @return true if the targets are the whole result, and not only the changed ones */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /** @return the targets changed since */
+    public Collection<TargetInfo> getTargets() {
+        return targets;
+    }
+
+    /** @return the MMSIs which were removed or no longer match the query since */
+    public Set<Integer> getRemoved() {
+        return removed;
+    }
+
+}
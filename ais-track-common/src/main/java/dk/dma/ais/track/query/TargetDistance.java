@@ -0,0 +1,44 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A target and its distance from the position of a nearest-targets query.
+ */
+@Immutable
+public final class TargetDistance {
+
+    private final TargetInfo target;
+    private final double distance;
+
+    public TargetDistance(TargetInfo target, double distance) {
+        this.target = target;
+        this.distance = distance;
+    }
+
+    public TargetInfo getTarget() {
+        return target;
+    }
+
+    /** @return the distance in metres */
+    public double getDistance() {
+        return distance;
+    }
+
+}
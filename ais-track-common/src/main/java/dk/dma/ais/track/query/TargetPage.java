@@ -0,0 +1,85 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * A page of query results in MMSI order.
+ */
+@Immutable
+public final class TargetPage {
+
+    private final List<TargetInfo> targets;
+    private final Integer nextCursor;
+
+    private TargetPage(List<TargetInfo> targets, Integer nextCursor) {
+        this.targets = Collections.unmodifiableList(targets);
+        this.nextCursor = nextCursor;
+    }
+
+    /** @return the targets of this page in ascending MMSI order */
+    public List<TargetInfo> getTargets() {
+        return targets;
+    }
+
+    /** @return the cursor to request the next page with; null if this is the last page */
+    public Integer getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Collect the page of targets following cursor.
+     *
+     * Only the limit + 1 lowest MMSI numbers seen so far are kept while targets is consumed, so memory
+     * use is bounded by the page size - not by the number of targets.
+     *
+     * @param targets the targets to page; in any order
+     * @param cursor only targets with an MMSI number above cursor are included; null for the first page
+     * @param limit the maximum number of targets in the page
+     */
+    public static TargetPage of(Stream<TargetInfo> targets, Integer cursor, int limit) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Page limit must be positive, not " + limit);
+
+        final int after = cursor == null ? Integer.MIN_VALUE : cursor;
+        final PriorityQueue<TargetInfo> lowest = new PriorityQueue<>(limit + 1, (t1, t2) -> Integer.compare(t2.getMmsi(), t1.getMmsi()));
+        targets
+            .filter(target -> target.getMmsi() > after)
+            .forEach(target -> {
+                lowest.add(target);
+                if (lowest.size() > limit + 1)
+                    lowest.poll();
+            });
+
+        List<TargetInfo> page = new ArrayList<>(lowest);
+        page.sort((t1, t2) -> Integer.compare(t1.getMmsi(), t2.getMmsi()));
+
+        Integer nextCursor = null;
+        if (page.size() > limit) {
+            page.remove(limit);
+            nextCursor = page.get(limit - 1).getMmsi();
+        }
+        return new TargetPage(page, nextCursor);
+    }
+
+}
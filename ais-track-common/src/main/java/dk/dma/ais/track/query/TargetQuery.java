@@ -0,0 +1,188 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A query for targets, broken into its parts.
+ *
+ * A target matches the query if the latest report from a source accepted by the source filter
+ * either has one of the MMSI numbers, or is positioned inside one of the base areas and one
+ * of the areas. Empty parts do not restrict the result.
+ */
+@Immutable
+public final class TargetQuery {
+
+    private final Set<Integer> mmsis;
+    private final Set<Area> baseAreas;
+    private final Set<Area> areas;
+    private final String sourceFilterExpression;
+    private final Predicate<? super AisPacketSource> sourceFilter;
+    private final Predicate<TargetInfo> targetFilter;
+
+    /**
+     * Create a query.
+     * @param mmsis MMSI numbers to include in the result; may be null
+     * @param baseAreas areas limiting the areas; may be null
+     * @param areas areas to include in the result; may be null
+     * @param sourceFilterExpression the text of the source filter; null if none; only used for display
+     * @param sourceFilter the compiled source filter
+     */
+    public TargetQuery(Set<Integer> mmsis, Set<? extends Area> baseAreas, Set<? extends Area> areas, String sourceFilterExpression, Predicate<? super AisPacketSource> sourceFilter) {
+        this.mmsis = mmsis == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(mmsis));
+        this.baseAreas = baseAreas == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(baseAreas));
+        this.areas = areas == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(areas));
+        this.sourceFilterExpression = sourceFilterExpression;
+        this.sourceFilter = sourceFilter == null ? src -> true : sourceFilter;
+        this.targetFilter = createTargetFilterPredicate(this.mmsis, this.baseAreas, this.areas);
+    }
+
+    private TargetQuery(TargetQuery query, Predicate<? super AisPacketSource> sourceFilter, Predicate<TargetInfo> targetFilter) {
+        this.mmsis = query.mmsis;
+        this.baseAreas = query.baseAreas;
+        this.areas = query.areas;
+        this.sourceFilterExpression = query.sourceFilterExpression;
+        this.sourceFilter = sourceFilter;
+        this.targetFilter = targetFilter;
+    }
+
+    /**
+     * Return this query with source and target filters checking deadline; so a scan executing it stops
+     * with a QueryCancelledException soon after the deadline has passed. The result is otherwise the same.
+     */
+    public TargetQuery withDeadline(QueryDeadline deadline) {
+        return new TargetQuery(this, deadline.guard(sourceFilter), deadline.guard(targetFilter));
+    }
+
+    public Set<Integer> getMmsis() {
+        return mmsis;
+    }
+
+    public Set<Area> getBaseAreas() {
+        return baseAreas;
+    }
+
+    public Set<Area> getAreas() {
+        return areas;
+    }
+
+    public String getSourceFilterExpression() {
+        return sourceFilterExpression;
+    }
+
+    public Predicate<? super AisPacketSource> getSourceFilter() {
+        return sourceFilter;
+    }
+
+    /** @return the predicate which a TargetInfo must satisfy to match the MMSI and area parts of the query */
+    public Predicate<TargetInfo> getTargetFilter() {
+        return targetFilter;
+    }
+
+    /** @return true if only targets inside certain areas can match the query - besides those matched by MMSI */
+    public boolean hasAreaRestriction() {
+        return !areas.isEmpty() || !baseAreas.isEmpty();
+    }
+
+    /**
+     * Return a canonical text form of the query: MMSIs and areas are sorted, and the source filter
+     * expression is normalized. Queries with equal canonical forms have equal results.
+     */
+    public String toCanonicalString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("mmsi=");
+        mmsis.stream().sorted().forEach(mmsi -> sb.append(mmsi).append(','));
+        sb.append(";baseArea=").append(canonical(baseAreas));
+        sb.append(";area=").append(canonical(areas));
+        sb.append(";sourceFilter=");
+        if (sourceFilterExpression != null)
+            sb.append(SourceFilterCache.normalize(sourceFilterExpression));
+        return sb.toString();
+    }
+
+    private static String canonical(Set<Area> areas) {
+        return areas.stream().map(TargetQuery::canonical).sorted().collect(Collectors.joining(","));
+    }
+
+    private static String canonical(Area area) {
+        if (area instanceof BoundingBox) {
+            BoundingBox box = (BoundingBox) area;
+            return "box(" + box.getMinLat() + "|" + box.getMinLon() + "|" + box.getMaxLat() + "|" + box.getMaxLon() + ")";
+        } else if (area instanceof Circle) {
+            Circle circle = (Circle) area;
+            return "circle(" + circle.getCenter().getLatitude() + "|" + circle.getCenter().getLongitude() + "|" + circle.getRadius() + ")";
+        }
+        return area.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "TargetQuery{" +
+            "mmsis=" + mmsis +
+            ", baseAreas=" + baseAreas +
+            ", areas=" + areas +
+            ", sourceFilter=" + (sourceFilterExpression == null ? "none" : "'" + sourceFilterExpression + "'") +
+            '}';
+    }
+
+    /** Create a Predicate<TargetInfo> out of mmsi and area information */
+    public static Predicate<TargetInfo> createTargetFilterPredicate(Set<Integer> mmsis, Set<? extends Area> baseAreas, Set<? extends Area> areas) {
+        Predicate<TargetInfo> mmsiPredicate = null;
+        if (mmsis != null && mmsis.size() > 0) {
+            mmsiPredicate =  targetInfo -> mmsis.contains(targetInfo.getMmsi());
+        }
+
+        Predicate<TargetInfo> baseAreaPredicate = null;
+        if (baseAreas != null && baseAreas.size() > 0) {
+            baseAreaPredicate =  targetInfo -> baseAreas.stream().anyMatch(area -> targetInfo.getPosition() != null && area.contains(targetInfo.getPosition()));
+        }
+
+        Predicate<TargetInfo> areaPredicate = null;
+        if (areas != null && areas.size() > 0) {
+            areaPredicate =  targetInfo -> areas.stream().anyMatch(area -> targetInfo.getPosition() != null && area.contains(targetInfo.getPosition()));
+        }
+
+        Predicate<TargetInfo> resultingAreaPredicate = null;
+        if(baseAreaPredicate != null && areaPredicate == null){
+            resultingAreaPredicate = baseAreaPredicate;
+        }else if (baseAreaPredicate != null && areaPredicate != null){
+            resultingAreaPredicate = baseAreaPredicate.and(areaPredicate);
+        }else{
+            resultingAreaPredicate = areaPredicate;
+        }
+
+        if (mmsiPredicate == null && resultingAreaPredicate == null)
+            return t -> true;
+        else if (mmsiPredicate != null && resultingAreaPredicate == null)
+            return mmsiPredicate;
+        else if (mmsiPredicate == null && resultingAreaPredicate != null)
+            return resultingAreaPredicate;
+        else
+            return mmsiPredicate.or(resultingAreaPredicate);
+    }
+
+}
@@ -0,0 +1,147 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.replication;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.snapshot.TargetSnapshot;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * The records of the change stream from a tracker to its replicas. Each record is prefixed with its
+ * length, followed by its type and its payload:
+ * <ul>
+ *     <li>SOURCE: the index and the serialized packet source, defined before records referring to it,</li>
+ *     <li>RESET: a snapshot of all targets follows; targets not in it must be removed,</li>
+ *     <li>TARGET: the MMSI and all its reports, each with the index of its source; replacing any reports held,</li>
+ *     <li>REMOVED: the MMSI of a target no longer tracked,</li>
+ *     <li>MARK: the update sequence number and the time of the tracker the preceding records are up to date with.</li>
+ * </ul>
+ * TARGET and REMOVED hold the state of a target, not the change to it; so applying them again, or after
+ * a snapshot which already included the change, is harmless.
+ */
+final class ChangeRecords {
+
+    static final byte SOURCE = 1;
+    static final byte RESET = 2;
+    static final byte TARGET = 3;
+    static final byte REMOVED = 4;
+    static final byte MARK = 5;
+
+    private ChangeRecords() {
+    }
+
+    static byte[] serialize(AisPacketSource source) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(source);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static AisPacketSource deserialize(ByteBuffer buffer) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()))) {
+            return (AisPacketSource) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Corrupt packet source", e);
+        }
+    }
+
+    /** Encodes records into a buffer growing as needed */
+    @NotThreadSafe
+    static final class Encoder {
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        void source(int index, AisPacketSource source) {
+            byte[] bytes = serialize(source);
+            record(SOURCE, b -> b.putInt(index).put(bytes));
+        }
+
+        void reset() {
+            record(RESET, b -> {});
+        }
+
+        /** Encode the reports of mmsi; REMOVED if there are none */
+        void target(int mmsi, Map<AisPacketSource, TargetInfo> reports, ToIntFunction<AisPacketSource> sourceIndex) {
+            if (reports.isEmpty()) {
+                record(REMOVED, b -> b.putInt(mmsi));
+                return;
+            }
+            List<Map.Entry<AisPacketSource, TargetInfo>> entries = new ArrayList<>(reports.entrySet());
+            record(TARGET, b -> {
+                b.putInt(mmsi).putShort((short) entries.size());
+                for (Map.Entry<AisPacketSource, TargetInfo> entry : entries) {
+                    b.putInt(sourceIndex.applyAsInt(entry.getKey()));
+                    TargetSnapshot.writeTargetInfo(b, entry.getValue());
+                }
+            });
+        }
+
+        void mark(long highWaterMark, long timeMillis) {
+            record(MARK, b -> b.putLong(highWaterMark).putLong(timeMillis));
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        /** Write the records encoded to out, and start over */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        private void record(byte type, Consumer<ByteBuffer> payload) {
+            for (;;) {
+                int start = buffer.position();
+                try {
+                    buffer.putInt(0).put(type);
+                    payload.accept(buffer);
+                    buffer.putInt(start, buffer.position() - start - 4);
+                    return;
+                } catch (BufferOverflowException e) {
+                    buffer.position(start);
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    buffer = larger.put(buffer);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.replication;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.snapshot.TargetSnapshot;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerAccess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps a tracker a replica of the tracker of another node, by applying the change stream served by
+ * its ChangeStreamServer. The replica reconnects whenever the stream is broken, and catches up from
+ * the snapshot it is then sent; targets not in the snapshot are removed once it has been applied.
+ *
+ * The changes are applied by a single thread, which calls back with the sources of the reports
+ * changed for every target replaced or removed, so indexes of the tracker can be updated.
+ */
+@ThreadSafe
+public class ChangeStreamClient implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeStreamClient.class);
+
+    private final TargetTracker tracker;
+    private final String host;
+    private final int port;
+    private final Duration reconnectDelay;
+    private final BiConsumer<Integer, Set<AisPacketSource>> changed;
+
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong resyncs = new AtomicLong();
+    private volatile long leaderHighWaterMark = -1;
+    private volatile long leaderTime = -1;
+    private volatile boolean synced;
+    private volatile boolean running;
+    private volatile Socket socket;
+    private volatile Thread reader;
+
+    /**
+     * @param changed called with the MMSI and the sources of the reports changed of every target replaced or removed
+     */
+    public ChangeStreamClient(TargetTracker tracker, String host, int port, Duration reconnectDelay, BiConsumer<Integer, Set<AisPacketSource>> changed) {
+        this.tracker = tracker;
+        this.host = host;
+        this.port = port;
+        this.reconnectDelay = reconnectDelay;
+        this.changed = changed;
+    }
+
+    /** Create a client of the change stream at address, given as host:port */
+    public static ChangeStreamClient of(String address, TargetTracker tracker, Duration reconnectDelay, BiConsumer<Integer, Set<AisPacketSource>> changed) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0)
+            throw new IllegalArgumentException("Change stream address must be host:port, not " + address);
+        try {
+            return new ChangeStreamClient(tracker, address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()), reconnectDelay, changed);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Change stream address must be host:port, not " + address, e);
+        }
+    }
+
+    /** Start following the change stream */
+    public void start() {
+        running = true;
+        Thread thread = new Thread(this::follow, "change-stream-client");
+        thread.setDaemon(true);
+        thread.start();
+        reader = thread;
+    }
+
+    private void follow() {
+        while (running) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(new InetSocketAddress(host, port), (int) reconnectDelay.toMillis());
+                LOG.info("Following the change stream of {}:{}", host, port);
+                read(new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16)));
+            } catch (EOFException e) {
+                LOG.warn("Change stream of {}:{} ended", host, port);
+            } catch (IOException e) {
+                if (running)
+                    LOG.warn("Change stream of {}:{} failed: {}", host, port, e.getMessage());
+            } finally {
+                socket = null;
+                synced = false;
+            }
+
+            try {
+                Thread.sleep(reconnectDelay.toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        Map<Integer, AisPacketSource> sources = new HashMap<>();
+        Set<Integer> stale = null;
+        for (;;) {
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            try {
+                switch (buffer.get()) {
+                    case ChangeRecords.SOURCE:
+                        sources.put(buffer.getInt(), ChangeRecords.deserialize(buffer));
+                        break;
+                    case ChangeRecords.RESET:
+                        // Keep answering queries from the targets held until the snapshot has been applied
+                        Set<Integer> held = new HashSet<>();
+                        TargetTrackerAccess.forEach(tracker, (target, reports) -> held.add(target));
+                        stale = held;
+                        resyncs.incrementAndGet();
+                        LOG.info("Catching up from a snapshot; holding {} targets", held.size());
+                        break;
+                    case ChangeRecords.TARGET:
+                        int mmsi = buffer.getInt();
+                        int count = buffer.getShort();
+                        Map<AisPacketSource, TargetInfo> reports = new HashMap<>();
+                        for (int i = 0; i < count; i++) {
+                            AisPacketSource source = sources.get(buffer.getInt());
+                            if (source == null)
+                                throw new IOException("Undefined packet source in change stream");
+                            reports.put(source, TargetSnapshot.readTargetInfo(buffer, source, mmsi));
+                        }
+                        apply(mmsi, reports);
+                        if (stale != null)
+                            stale.remove(mmsi);
+                        break;
+                    case ChangeRecords.REMOVED:
+                        apply(buffer.getInt(), Collections.emptyMap());
+                        break;
+                    case ChangeRecords.MARK:
+                        leaderHighWaterMark = buffer.getLong();
+                        leaderTime = buffer.getLong();
+                        if (stale != null) {
+                            stale.forEach(removed -> apply(removed, Collections.emptyMap()));
+                            LOG.info("Caught up from the snapshot; {} targets no longer tracked were removed", stale.size());
+                            stale = null;
+                            synced = true;
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown record type in change stream");
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt record in change stream", e);
+            }
+        }
+    }
+
+    private void apply(int mmsi, Map<AisPacketSource, TargetInfo> reports) {
+        Set<AisPacketSource> sources = TargetTrackerAccess.replace(tracker, mmsi, reports);
+        applied.incrementAndGet();
+        if (!sources.isEmpty())
+            changed.accept(mmsi, sources);
+    }
+
+    /** @return true if connected and caught up with the snapshot */
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /** @return the update sequence number of the leader the replica is up to date with; -1 if none yet */
+    public long getLeaderHighWaterMark() {
+        return leaderHighWaterMark;
+    }
+
+    /**
+     * @return the time in milliseconds since the leader sent the last batch of changes applied; -1 if none
+     * yet. As the leader sends a batch at a fixed interval even without changes, the lag keeps growing if
+     * the stream stalls. Leader and replica clocks are assumed to be synchronized.
+     */
+    public long getLagMillis() {
+        long time = leaderTime;
+        return time < 0 ? -1 : Math.max(0, System.currentTimeMillis() - time);
+    }
+
+    /** @return the number of target changes and removals applied */
+    public long appliedCount() {
+        return applied.get();
+    }
+
+    /** @return the number of snapshots the replica has caught up from */
+    public long resyncCount() {
+        return resyncs.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                LOG.debug("Closing change stream socket failed", e);
+            }
+        }
+        Thread thread = reader;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+}
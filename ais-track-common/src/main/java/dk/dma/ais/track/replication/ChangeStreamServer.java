@@ -0,0 +1,288 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.replication;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerAccess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Serves the ordered stream of changes to a tracker to its replicas over TCP; see ChangeRecords.
+ *
+ * A replica connecting is first sent a snapshot of all targets, and then the batches of changes
+ * published after it connected. Each batch holds the state of the targets changed since the previous
+ * batch - or REMOVED for those no longer tracked - followed by a MARK. Every replica has its own
+ * writer thread and a bounded queue of batches; a replica falling so far behind that its queue
+ * overflows is disconnected, and starts over with a new snapshot when it reconnects.
+ *
+ * As the snapshot is read while the tracker is updated, a replica may briefly hold an older state
+ * of a target than the one in the snapshot; it is corrected by the batch with the later change.
+ */
+@ThreadSafe
+public class ChangeStreamServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeStreamServer.class);
+
+    /** Size in bytes of the snapshot chunks written to a replica */
+    private static final int SNAPSHOT_CHUNK_SIZE = 1 << 20;
+
+    private final TargetTracker tracker;
+    private final ServerSocket serverSocket;
+    private final int bufferSize;
+    private final LongSupplier highWaterMark;
+    private final SourceTable sources = new SourceTable();
+    private final Set<Replica> replicas = ConcurrentHashMap.newKeySet();
+    private final AtomicLong disconnected = new AtomicLong();
+    private final AtomicLong publishedChanges = new AtomicLong();
+    private volatile Thread acceptor;
+
+    /**
+     * @param port the port to listen on; 0 for any free port
+     * @param bufferSize the maximum number of batches waiting for a replica
+     * @param highWaterMark the update sequence number the tracker is up to date with
+     */
+    public ChangeStreamServer(TargetTracker tracker, int port, int bufferSize, LongSupplier highWaterMark) throws IOException {
+        this.tracker = tracker;
+        this.serverSocket = new ServerSocket(port);
+        this.bufferSize = bufferSize;
+        this.highWaterMark = highWaterMark;
+    }
+
+    /** @return the port replicas connect to */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Start accepting replicas */
+    public void start() {
+        Thread thread = new Thread(this::accept, "change-stream-acceptor");
+        thread.setDaemon(true);
+        thread.start();
+        acceptor = thread;
+        LOG.info("Serving the change stream to replicas on port {}", getPort());
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Replica replica = new Replica(socket);
+                // Register before the snapshot is read, so no change made after it is missed
+                replicas.add(replica);
+                Thread writer = new Thread(replica, "change-stream-" + socket.getRemoteSocketAddress());
+                writer.setDaemon(true);
+                writer.start();
+                LOG.info("Replica {} connected", socket.getRemoteSocketAddress());
+            } catch (SocketException e) {
+                if (!serverSocket.isClosed())
+                    LOG.error("Accepting replicas failed", e);
+            } catch (IOException e) {
+                LOG.error("Accepting a replica failed", e);
+            }
+        }
+    }
+
+    /**
+     * Send the state of the targets with mmsis to all replicas as one batch.
+     * @param highWaterMark the update sequence number the batch is up to date with
+     */
+    public void publish(Collection<Integer> mmsis, long highWaterMark) {
+        if (replicas.isEmpty())
+            return;
+
+        ChangeRecords.Encoder encoder = new ChangeRecords.Encoder();
+        for (Integer mmsi : mmsis)
+            encoder.target(mmsi, TargetTrackerAccess.reports(tracker, mmsi), sources::indexOf);
+        encoder.mark(highWaterMark, System.currentTimeMillis());
+        byte[] batch = encoder.toByteArray();
+
+        for (Replica replica : replicas) {
+            if (!replica.queue.offer(batch))
+                replica.close("Too many changes waiting");
+        }
+        publishedChanges.addAndGet(mmsis.size());
+    }
+
+    /** Disconnect all replicas; e.g. because the changes since the last batch are no longer known */
+    public void closeAll(String reason) {
+        new ArrayList<>(replicas).forEach(replica -> replica.close(reason));
+    }
+
+    /** @return the number of replicas connected */
+    public int size() {
+        return replicas.size();
+    }
+
+    /** @return the number of replicas disconnected because they fell behind or failed */
+    public long disconnectedCount() {
+        return disconnected.get();
+    }
+
+    /** @return the number of target changes published */
+    public long publishedCount() {
+        return publishedChanges.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOG.warn("Closing change stream server failed", e);
+        }
+        new ArrayList<>(replicas).forEach(replica -> replica.close(null));
+    }
+
+    /** A connected replica; its writer thread sends it the snapshot, and then the batches in its queue */
+    private final class Replica implements Runnable {
+        private final Socket socket;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(bufferSize);
+        private volatile boolean closed;
+
+        /** The number of packet sources sent to the replica; sources are defined in the order of their index */
+        private int definedSources;
+
+        Replica(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16)) {
+                sendSnapshot(out);
+                while (!closed) {
+                    byte[] batch = queue.poll(500, MILLISECONDS);
+                    if (batch == null)
+                        continue;
+                    defineSources(out);
+                    out.write(batch);
+                    if (queue.isEmpty())
+                        out.flush();
+                }
+            } catch (IOException e) {
+                if (!closed)
+                    close("Sending changes failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close(null);
+            }
+        }
+
+        private void sendSnapshot(OutputStream out) throws IOException {
+            long snapshotStart = System.currentTimeMillis();
+            long mark = highWaterMark.getAsLong();
+            ChangeRecords.Encoder encoder = new ChangeRecords.Encoder();
+            encoder.reset();
+            int[] targets = {0};
+            try {
+                TargetTrackerAccess.forEach(tracker, (mmsi, reports) -> {
+                    encoder.target(mmsi, reports, sources::indexOf);
+                    targets[0]++;
+                    if (encoder.size() >= SNAPSHOT_CHUNK_SIZE)
+                        writeChunk(encoder, out);
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            encoder.mark(mark, snapshotStart);
+            writeChunk(encoder, out);
+            out.flush();
+            LOG.info("Snapshot of {} targets sent to replica {} in {} ms", targets[0], socket.getRemoteSocketAddress(), System.currentTimeMillis() - snapshotStart);
+        }
+
+        private void writeChunk(ChangeRecords.Encoder encoder, OutputStream out) {
+            try {
+                defineSources(out);
+                encoder.writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /** Send the packet sources added to the table since the last call, as the records to follow may refer to them */
+        private void defineSources(OutputStream out) throws IOException {
+            List<AisPacketSource> added = sources.from(definedSources);
+            if (added.isEmpty())
+                return;
+            ChangeRecords.Encoder encoder = new ChangeRecords.Encoder();
+            for (AisPacketSource source : added)
+                encoder.source(definedSources++, source);
+            encoder.writeTo(out);
+        }
+
+        void close(String reason) {
+            if (!replicas.remove(this))
+                return;
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Closing replica socket failed", e);
+            }
+            if (reason != null) {
+                disconnected.incrementAndGet();
+                LOG.warn("Replica {} disconnected: {}", socket.getRemoteSocketAddress(), reason);
+            } else {
+                LOG.info("Replica {} disconnected", socket.getRemoteSocketAddress());
+            }
+        }
+    }
+
+    /** The packet sources referred to by the records sent, in the order they were first met */
+    @ThreadSafe
+    private static final class SourceTable {
+        private final Map<AisPacketSource, Integer> indexes = new HashMap<>();
+        private final List<AisPacketSource> sources = new ArrayList<>();
+
+        synchronized int indexOf(AisPacketSource source) {
+            return indexes.computeIfAbsent(source, s -> {
+                sources.add(s);
+                return sources.size() - 1;
+            });
+        }
+
+        /** @return the sources with index from and up */
+        synchronized List<AisPacketSource> from(int from) {
+            return new ArrayList<>(sources.subList(from, sources.size()));
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.snapshot;
+
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerAccess;
+import dk.dma.enav.model.geometry.Position;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Reads and writes the state of a TargetTracker in a compact binary format.
+ *
+ * A snapshot file consists of
+ * <ul>
+ *     <li>a header: the magic number, the format version and the time the snapshot was written,</li>
+ *     <li>a sequence of segments, each prefixed with its length in bytes and its number of records,</li>
+ *     <li>an empty segment marking the end of the segments, and</li>
+ *     <li>a trailer with the length-prefixed table of the packet sources referred to by the records.</li>
+ * </ul>
+ * Each record holds all reports of one MMSI, prefixed with its length. Segments are independent of
+ * each other, so a snapshot is restored by decoding its segments in parallel.
+ */
+public final class TargetSnapshot {
+
+    /** "AIST" */
+    static final int MAGIC = 0x41495354;
+
+    /** The current version of the format */
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    private TargetSnapshot() {
+    }
+
+    /**
+     * Write the targets held by tracker to file. The tracker may be updated while it is written; each
+     * target is then written as it was when it was visited.
+     * @return the number of targets written
+     */
+    public static int write(TargetTracker tracker, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).flip();
+            writeFully(channel, header);
+
+            SegmentWriter writer = new SegmentWriter(channel);
+            try {
+                TargetTrackerAccess.forEach(tracker, writer::write);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+
+            ByteBuffer end = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            end.putInt(0).putInt(0).flip();
+            writeFully(channel, end);
+
+            byte[] sources = serialize(writer.sources.toArray(new AisPacketSource[writer.sources.size()]));
+            ByteBuffer trailer = ByteBuffer.allocate(4 + sources.length);
+            trailer.putInt(sources.length).put(sources).flip();
+            writeFully(channel, trailer);
+
+            channel.force(false);
+            return writer.records;
+        }
+    }
+
+    /**
+     * Restore the targets in file into tracker.
+     * @param parallelism the number of threads decoding segments
+     * @return the number of targets restored
+     */
+    public static int read(Path file, TargetTracker tracker, int parallelism) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC)
+                throw new IOException(file + " is not a target snapshot");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+
+            // Find the segments by skipping from length to length
+            List<long[]> segments = new ArrayList<>();
+            long position = HEADER_SIZE;
+            for (;;) {
+                ByteBuffer segmentHeader = readFully(channel, position, SEGMENT_HEADER_SIZE);
+                int length = segmentHeader.getInt();
+                int count = segmentHeader.getInt();
+                position += SEGMENT_HEADER_SIZE;
+                if (length == 0)
+                    break;
+                segments.add(new long[] { position, length, count });
+                position += length;
+            }
+
+            int sourcesLength = readFully(channel, position, 4).getInt();
+            AisPacketSource[] sources = deserialize(readFully(channel, position + 4, sourcesLength).array());
+
+            AtomicInteger records = new AtomicInteger();
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+            try {
+                pool.submit(() -> segments.parallelStream().forEach(segment -> {
+                    try {
+                        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, segment[0], segment[1]);
+                        records.addAndGet(readSegment(buffer, (int) segment[2], sources, tracker));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while restoring " + file, e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() : new IOException("Failed to restore " + file, e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+            return records.get();
+        }
+    }
+
+    private static int readSegment(ByteBuffer buffer, int count, AisPacketSource[] sources, TargetTracker tracker) throws IOException {
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                int end = buffer.position() + length;
+                int mmsi = buffer.getInt();
+                int reports = buffer.getShort();
+                for (int r = 0; r < reports; r++) {
+                    AisPacketSource source = sources[buffer.getInt()];
+                    TargetTrackerAccess.put(tracker, source, readTargetInfo(buffer, source, mmsi));
+                }
+                if (buffer.position() != end)
+                    throw new IOException("Corrupt record for MMSI " + mmsi);
+            }
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt snapshot segment", e);
+        }
+        return count;
+    }
+
+    /** Read a report of mmsi from source written by writeTargetInfo; also used by the change stream to replicas */
+    public static TargetInfo readTargetInfo(ByteBuffer buffer, AisPacketSource source, int mmsi) {
+        byte targetType = buffer.get();
+        long positionTimestamp = buffer.getLong();
+        Position position = buffer.get() == 0 ? null : Position.create(buffer.getDouble(), buffer.getDouble());
+        int heading = buffer.getInt();
+        float cog = buffer.getFloat();
+        float sog = buffer.getFloat();
+        byte navStatus = buffer.get();
+        byte[] positionPacket = readBytes(buffer);
+        long staticTimestamp = buffer.getLong();
+        byte[] staticData1 = readBytes(buffer);
+        byte[] staticData2 = readBytes(buffer);
+        int staticShipType = buffer.getInt();
+        return TargetTrackerAccess.newTargetInfo(source, mmsi, targetType < 0 ? null : AisTargetType.values()[targetType],
+            positionTimestamp, position, heading, cog, sog, navStatus, positionPacket, staticTimestamp, staticData1, staticData2, staticShipType);
+    }
+
+    /** Write all fields of targetInfo except its source and MMSI to buffer */
+    public static void writeTargetInfo(ByteBuffer buffer, TargetInfo targetInfo) {
+        buffer.put(targetInfo.getTargetType() == null ? -1 : (byte) targetInfo.getTargetType().ordinal());
+        buffer.putLong(targetInfo.getPositionTimestamp());
+        Position position = targetInfo.getPosition();
+        if (position == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1).putDouble(position.getLatitude()).putDouble(position.getLongitude());
+        }
+        buffer.putInt(targetInfo.getHeading());
+        buffer.putFloat(targetInfo.getCog());
+        buffer.putFloat(targetInfo.getSog());
+        buffer.put(targetInfo.getNavStatus());
+        writeBytes(buffer, TargetTrackerAccess.positionPacket(targetInfo));
+        buffer.putLong(targetInfo.getStaticTimestamp());
+        writeBytes(buffer, TargetTrackerAccess.staticData1(targetInfo));
+        writeBytes(buffer, TargetTrackerAccess.staticData2(targetInfo));
+        buffer.putInt(targetInfo.getStaticShipType());
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Truncated snapshot");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static byte[] serialize(AisPacketSource[] sources) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(sources);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static AisPacketSource[] deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (AisPacketSource[]) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Corrupt table of packet sources", e);
+        }
+    }
+
+    /** Collects records in a buffer, which is written to the channel as a segment whenever it is full */
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        private final Map<AisPacketSource, Integer> sourceIndexes = new HashMap<>();
+        private final List<AisPacketSource> sources = new ArrayList<>();
+        private ByteBuffer buffer = ByteBuffer.allocate(SEGMENT_SIZE);
+        private int count;
+        private int records;
+
+        SegmentWriter(FileChannel channel) {
+            this.channel = channel;
+            buffer.position(SEGMENT_HEADER_SIZE);
+        }
+
+        void write(int mmsi, Map<AisPacketSource, TargetInfo> reports) {
+            // Copy the reports, as the map may change while it is being written
+            List<Map.Entry<AisPacketSource, TargetInfo>> entries = new ArrayList<>(reports.entrySet());
+            if (entries.isEmpty())
+                return;
+
+            for (;;) {
+                int start = buffer.position();
+                try {
+                    buffer.putInt(0).putInt(mmsi).putShort((short) entries.size());
+                    for (Map.Entry<AisPacketSource, TargetInfo> entry : entries) {
+                        buffer.putInt(sourceIndexes.computeIfAbsent(entry.getKey(), source -> { sources.add(source); return sources.size() - 1; }));
+                        writeTargetInfo(buffer, entry.getValue());
+                    }
+                    buffer.putInt(start, buffer.position() - start - 4);
+                    count++;
+                    records++;
+                    return;
+                } catch (BufferOverflowException e) {
+                    buffer.position(start);
+                    if (count > 0) {
+                        flush();
+                    } else {
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2); // A single record larger than a segment
+                        buffer.position(SEGMENT_HEADER_SIZE);
+                    }
+                }
+            }
+        }
+
+        void flush() {
+            if (count == 0)
+                return;
+            buffer.putInt(0, buffer.position() - SEGMENT_HEADER_SIZE).putInt(4, count).flip();
+            try {
+                writeFully(channel, buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear().position(SEGMENT_HEADER_SIZE);
+            count = 0;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.snapshot;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+import dk.dma.ais.track.ingest.IngestPipeline;
+import dk.dma.ais.track.journal.PacketJournal;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerAccess;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Restores the tracker from a TargetSnapshot when started, writes a new snapshot at a fixed
+ * interval, and a final one when stopped.
+ *
+ * If the folder holds no snapshot, but files written by the TargetTrackerFileBackupService of
+ * earlier versions, those are restored instead; and deleted once the first snapshot is written.
+ *
+ * With a PacketJournal, the packets journaled since the last snapshot are replayed after the
+ * snapshot is restored. The journal is rotated before each snapshot, and the rotated segments are
+ * deleted once the snapshot is written.
+ */
+public class TargetSnapshotService extends AbstractScheduledService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TargetSnapshotService.class);
+
+    /** The name of the snapshot file in the folder */
+    public static final String SNAPSHOT_FILE = "targets.snapshot";
+
+    /** The prefix of the files written by TargetTrackerFileBackupService */
+    static final String FILE_BACKUP_PREFIX = "aisviewer_backup-";
+
+    private final TargetTracker tracker;
+    private final Path folder;
+    private final Duration interval;
+    private final int restoreParallelism;
+    private final PacketJournal journal;
+
+    /**
+     * Create a snapshot service without a journal.
+     * @param tracker the tracker to restore and snapshot
+     * @param folder the folder holding the snapshot
+     * @param interval the time between snapshots
+     * @param restoreParallelism the number of threads restoring a snapshot
+     */
+    public TargetSnapshotService(TargetTracker tracker, Path folder, Duration interval, int restoreParallelism) {
+        this(tracker, folder, interval, restoreParallelism, null);
+    }
+
+    /**
+     * @param tracker the tracker to restore and snapshot
+     * @param folder the folder holding the snapshot
+     * @param interval the time between snapshots
+     * @param restoreParallelism the number of threads restoring a snapshot and replaying the journal
+     * @param journal the journal of packets applied since the last snapshot; or null
+     */
+    public TargetSnapshotService(TargetTracker tracker, Path folder, Duration interval, int restoreParallelism, PacketJournal journal) {
+        this.tracker = Objects.requireNonNull(tracker);
+        this.folder = Objects.requireNonNull(folder);
+        this.interval = Objects.requireNonNull(interval);
+        this.restoreParallelism = restoreParallelism;
+        this.journal = journal;
+    }
+
+    /** @return the journal of packets applied since the last snapshot; null if packets are not journaled */
+    public PacketJournal getJournal() {
+        return journal;
+    }
+
+    /** @return the snapshot file */
+    public Path getSnapshotFile() {
+        return folder.resolve(SNAPSHOT_FILE);
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        LOG.info("{} startUp", TargetSnapshotService.class.getSimpleName());
+        try {
+            restore();
+        } catch (Exception e) {
+            LOG.error("Cannot restore from snapshot", e);
+        }
+
+        if (journal != null) {
+            try {
+                replay();
+                journal.open();
+            } catch (Exception e) {
+                LOG.error("Cannot replay and open packet journal; packets are not journaled", e);
+            }
+        }
+    }
+
+    @Override
+    protected void runOneIteration() throws Exception {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            LOG.error("Failed to write snapshot to " + getSnapshotFile(), e);
+        }
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        runOneIteration();
+        if (journal != null)
+            journal.close();
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(interval.toMillis(), interval.toMillis(), MILLISECONDS);
+    }
+
+    /** Restore the tracker from the snapshot, or from the files of a TargetTrackerFileBackupService if there is no snapshot */
+    void restore() throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        Path file = getSnapshotFile();
+        if (Files.exists(file)) {
+            int targets = TargetSnapshot.read(file, tracker, restoreParallelism);
+            LOG.info("Restored {} targets from {} in {} ms", targets, file, NANOSECONDS.toMillis(System.nanoTime() - start));
+        } else if (!fileBackups().isEmpty()) {
+            TargetTrackerAccess.restoreFileBackup(tracker, folder);
+            LOG.info("Restored {} targets from file backup in {} in {} ms", tracker.size(), folder, NANOSECONDS.toMillis(System.nanoTime() - start));
+        } else {
+            LOG.info("No snapshot to restore in {}", folder);
+        }
+    }
+
+    /** Replay the journal into the tracker; packets for different vessels are replayed in parallel */
+    void replay() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        IngestPipeline pipeline = new IngestPipeline(packet -> true, tracker::update, Math.max(1, restoreParallelism), 10000);
+        pipeline.start();
+        long packets;
+        try {
+            packets = journal.replay(pipeline);
+        } finally {
+            pipeline.stop(1, HOURS);
+        }
+        LOG.info("Replayed {} journaled packets in {} ms", packets, NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Write a snapshot of the tracker; replaces the previous snapshot when complete. The journal
+     * is rotated first, and its closed segments are deleted once the snapshot is written.
+     */
+    public void snapshot() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long rotated = journal != null && journal.isOpen() ? journal.rotate() : -1;
+
+        Path file = getSnapshotFile();
+        Path tmp = folder.resolve(SNAPSHOT_FILE + ".tmp");
+        int targets = TargetSnapshot.write(tracker, tmp);
+        Files.move(tmp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+        LOG.debug("Wrote {} targets to {} in {} ms", targets, file, NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (rotated >= 0)
+            journal.deleteUpTo(rotated);
+
+        for (Path fileBackup : fileBackups()) {
+            LOG.info("Deleting {}; migrated to {}", fileBackup, file);
+            Files.deleteIfExists(fileBackup);
+        }
+    }
+
+    private List<Path> fileBackups() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(FILE_BACKUP_PREFIX)).collect(Collectors.toList());
+        }
+    }
+
+}
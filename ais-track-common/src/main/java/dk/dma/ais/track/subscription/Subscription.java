@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.subscription;
+
+import dk.dma.ais.track.query.TargetQuery;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A subscription to the changes of the targets matching a query. Created by SubscriptionRegistry.
+ *
+ * Changed MMSIs are collected in a bounded buffer until the next flush; an MMSI changed several
+ * times in between is only sent once, with the latest state of the target.
+ */
+@ThreadSafe
+public final class Subscription {
+
+    private final TargetQuery query;
+    private final SubscriptionSink sink;
+    private final int bufferSize;
+
+    /** The MMSIs changed since the last flush */
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /** The MMSIs of the targets sent to the subscriber and not removed since; only accessed while flushing */
+    final Set<Integer> sent = new HashSet<>();
+
+    /** Held while the snapshot or an update is being sent; the subscription is created holding it */
+    final AtomicBoolean flushing = new AtomicBoolean(true);
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /** The cells of the spatial index the subscription is registered in; null if it is not restricted to areas */
+    Set<Integer> cells;
+
+    /** True if the subscription is a candidate for every change */
+    boolean unrestricted;
+
+    Subscription(TargetQuery query, SubscriptionSink sink, int bufferSize) {
+        this.query = query;
+        this.sink = sink;
+        this.bufferSize = bufferSize;
+    }
+
+    public TargetQuery getQuery() {
+        return query;
+    }
+
+    SubscriptionSink getSink() {
+        return sink;
+    }
+
+    /** @return the number of changed MMSIs waiting for the next flush */
+    public int pending() {
+        return pendingCount.get();
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /** @return true if the subscription was closed by this call */
+    boolean close() {
+        return closed.compareAndSet(false, true);
+    }
+
+    /** Add mmsi to the changes waiting for the next flush; returns false if the buffer is full */
+    boolean offer(int mmsi) {
+        if (pending.add(mmsi))
+            return pendingCount.incrementAndGet() <= bufferSize;
+        return true;
+    }
+
+    /** Remove and return the changes waiting for a flush */
+    Set<Integer> drain() {
+        if (pending.isEmpty())
+            return Collections.emptySet();
+
+        Set<Integer> changed = new HashSet<>();
+        for (Iterator<Integer> i = pending.iterator(); i.hasNext(); ) {
+            changed.add(i.next());
+            i.remove();
+            pendingCount.decrementAndGet();
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        return "Subscription{" + query + ", pending=" + pending() + '}';
+    }
+
+}
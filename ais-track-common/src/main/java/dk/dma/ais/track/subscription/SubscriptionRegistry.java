@@ -0,0 +1,281 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.subscription;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.index.TargetGridIndex;
+import dk.dma.ais.track.query.TargetQuery;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * The subscriptions to changes of targets, indexed by the MMSIs and spatial index cells they are
+ * restricted to.
+ *
+ * Changed MMSIs are dispatched in batches. Each changed MMSI is only offered to the subscriptions
+ * registered for that MMSI, for one of the cells it is positioned in, or which have been sent the
+ * target before - and to those which are not restricted at all. The exact query is evaluated when
+ * a subscription is flushed, against the latest state of the target.
+ */
+@ThreadSafe
+public class SubscriptionRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionRegistry.class);
+
+    private final TargetGridIndex index;
+    private final BiFunction<Integer, Predicate<? super AisPacketSource>, TargetInfo> lookup;
+    private final int bufferSize;
+
+    /** The open subscriptions, and those indexed by restriction; all guarded by this */
+    private final Set<Subscription> subscriptions = new LinkedHashSet<>();
+    private final Set<Subscription> unrestricted = new HashSet<>();
+    private final Map<Integer, Set<Subscription>> byMmsi = new HashMap<>();
+    private final Map<Integer, Set<Subscription>> byCell = new HashMap<>();
+
+    /**
+     * The subscriptions which have been sent each MMSI, so they are told when it is removed or leaves
+     * their areas. Closed subscriptions are purged when the MMSI next changes.
+     */
+    private final ConcurrentHashMap<Integer, Set<Subscription>> holders = new ConcurrentHashMap<>();
+
+    private final AtomicLong disconnected = new AtomicLong();
+
+    /**
+     * @param index the spatial index of the tracked targets
+     * @param lookup looks up the target with an MMSI as seen by the sources matching a filter; e.g. TargetTracker::get
+     * @param bufferSize the maximum number of changed MMSIs waiting for each subscriber; it is disconnected if exceeded
+     */
+    public SubscriptionRegistry(TargetGridIndex index, BiFunction<Integer, Predicate<? super AisPacketSource>, TargetInfo> lookup, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Subscription buffer size must be positive, not " + bufferSize);
+        this.index = index;
+        this.lookup = lookup;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Register a subscription to the targets matching query. Changes are buffered from now on, but
+     * not sent until start has sent the initial snapshot.
+     */
+    public Subscription subscribe(TargetQuery query, SubscriptionSink sink) {
+        Subscription subscription = new Subscription(query, sink, bufferSize);
+
+        Set<Integer> cells = null;
+        if (!query.getAreas().isEmpty())
+            cells = index.cells(query.getAreas());
+        else if (!query.getBaseAreas().isEmpty())
+            cells = index.cells(query.getBaseAreas());
+        subscription.cells = cells;
+        subscription.unrestricted = cells == null && (query.hasAreaRestriction() || query.getMmsis().isEmpty());
+
+        synchronized (this) {
+            subscriptions.add(subscription);
+            if (subscription.unrestricted)
+                unrestricted.add(subscription);
+            query.getMmsis().forEach(mmsi -> byMmsi.computeIfAbsent(mmsi, key -> new HashSet<>()).add(subscription));
+            if (cells != null)
+                cells.forEach(cell -> byCell.computeIfAbsent(cell, key -> new HashSet<>()).add(subscription));
+        }
+        LOG.debug("Subscribed {}", subscription);
+        return subscription;
+    }
+
+    /**
+     * Send the snapshot of the targets matching the query of subscription, and start sending updates;
+     * beginning with the changes buffered meanwhile, whose flushes returned at once.
+     */
+    public void start(Subscription subscription, Collection<TargetInfo> snapshot) {
+        try {
+            snapshot.forEach(target -> {
+                if (subscription.sent.add(target.getMmsi()))
+                    hold(target.getMmsi(), subscription);
+            });
+            subscription.getSink().snapshot(snapshot);
+        } catch (IOException | RuntimeException e) {
+            close(subscription, "Failed to send snapshot: " + e.getMessage());
+        } finally {
+            subscription.flushing.set(false);
+        }
+        flush(subscription);
+    }
+
+    /**
+     * Offer the changed MMSIs to the subscriptions which may be interested. Subscriptions whose
+     * buffer overflows are closed.
+     * @return the subscriptions with changes to flush
+     */
+    public List<Subscription> dispatch(Collection<Integer> changed) {
+        Set<Subscription> offered = new HashSet<>();
+        Set<Subscription> overflowed = new HashSet<>();
+        synchronized (this) {
+            if (subscriptions.isEmpty())
+                return new ArrayList<>();
+
+            Set<Subscription> candidates = new HashSet<>();
+            for (Integer mmsi : changed) {
+                candidates.clear();
+                candidates.addAll(unrestricted);
+                addAll(candidates, byMmsi.get(mmsi));
+                if (!byCell.isEmpty())
+                    index.cellsOf(mmsi).forEach(cell -> addAll(candidates, byCell.get(cell)));
+                Set<Subscription> holding = holders.get(mmsi);
+                if (holding != null)
+                    holding.forEach(candidates::add);
+
+                for (Subscription subscription : candidates) {
+                    if (subscription.isClosed()) {
+                        release(mmsi, subscription);
+                    } else if (subscription.offer(mmsi)) {
+                        offered.add(subscription);
+                    } else {
+                        overflowed.add(subscription);
+                    }
+                }
+            }
+        }
+
+        overflowed.forEach(subscription -> close(subscription, "Subscriber too slow; more than " + bufferSize + " changed targets waiting"));
+        offered.removeAll(overflowed);
+        return new ArrayList<>(offered);
+    }
+
+    private static void addAll(Set<Subscription> candidates, Set<Subscription> subscriptions) {
+        if (subscriptions != null)
+            candidates.addAll(subscriptions);
+    }
+
+    /**
+     * Send the targets changed since the last flush to the subscriber; those matching its query, and the
+     * MMSIs of those it was sent before which no longer match. Returns at once if a flush is in progress;
+     * that flush sends the changes buffered meanwhile once it is done, as no one else will.
+     */
+    public void flush(Subscription subscription) {
+        while (!subscription.isClosed() && subscription.pending() > 0 && subscription.flushing.compareAndSet(false, true))
+            flushPending(subscription);
+    }
+
+    private void flushPending(Subscription subscription) {
+        try {
+            TargetQuery query = subscription.getQuery();
+            List<TargetInfo> targets = new ArrayList<>();
+            List<Integer> removed = new ArrayList<>();
+            for (Integer mmsi : subscription.drain()) {
+                TargetInfo target = lookup.apply(mmsi, query.getSourceFilter());
+                if (target != null && query.getTargetFilter().test(target)) {
+                    targets.add(target);
+                    if (subscription.sent.add(mmsi))
+                        hold(mmsi, subscription);
+                } else if (subscription.sent.remove(mmsi)) {
+                    removed.add(mmsi);
+                    release(mmsi, subscription);
+                }
+            }
+            if (!targets.isEmpty() || !removed.isEmpty())
+                subscription.getSink().update(targets, removed);
+        } catch (IOException | RuntimeException e) {
+            close(subscription, "Failed to send update: " + e.getMessage());
+        } finally {
+            subscription.flushing.set(false);
+        }
+    }
+
+    /** End a subscription on request of the subscriber */
+    public void unsubscribe(Subscription subscription) {
+        close(subscription, null);
+    }
+
+    /** End all subscriptions; e.g. when the tracker stops */
+    public void closeAll(String reason) {
+        List<Subscription> all;
+        synchronized (this) {
+            all = new ArrayList<>(subscriptions);
+        }
+        all.forEach(subscription -> close(subscription, reason));
+    }
+
+    private void close(Subscription subscription, String reason) {
+        if (!subscription.close())
+            return;
+
+        synchronized (this) {
+            subscriptions.remove(subscription);
+            unrestricted.remove(subscription);
+            subscription.getQuery().getMmsis().forEach(mmsi -> remove(byMmsi, mmsi, subscription));
+            if (subscription.cells != null)
+                subscription.cells.forEach(cell -> remove(byCell, cell, subscription));
+        }
+
+        if (reason != null) {
+            disconnected.incrementAndGet();
+            LOG.info("Closing {}: {}", subscription, reason);
+        } else {
+            LOG.debug("Unsubscribed {}", subscription);
+        }
+        try {
+            subscription.getSink().close(reason);
+        } catch (RuntimeException e) {
+            LOG.debug("Failed to close " + subscription, e);
+        }
+    }
+
+    private static void remove(Map<Integer, Set<Subscription>> map, Integer key, Subscription subscription) {
+        Set<Subscription> subscriptions = map.get(key);
+        if (subscriptions != null && subscriptions.remove(subscription) && subscriptions.isEmpty())
+            map.remove(key);
+    }
+
+    private void hold(int mmsi, Subscription subscription) {
+        holders.compute(mmsi, (key, holding) -> {
+            if (holding == null)
+                holding = ConcurrentHashMap.newKeySet();
+            holding.add(subscription);
+            return holding;
+        });
+    }
+
+    private void release(int mmsi, Subscription subscription) {
+        holders.computeIfPresent(mmsi, (key, holding) -> {
+            holding.remove(subscription);
+            return holding.isEmpty() ? null : holding;
+        });
+    }
+
+    /** @return the number of open subscriptions */
+    public synchronized int size() {
+        return subscriptions.size();
+    }
+
+    /** @return the number of subscriptions closed by the tracker; e.g. because the subscriber was too slow */
+    public long disconnectedCount() {
+        return disconnected.get();
+    }
+
+}
@@ -0,0 +1,40 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.subscription;
+
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Where the targets of a Subscription are sent; e.g. a stream of server-sent events. Calls for
+ * one subscription are never concurrent, except for close.
+ */
+public interface SubscriptionSink {
+
+    /** Send the targets matching the query when the subscription was made */
+    void snapshot(Collection<TargetInfo> targets) throws IOException;
+
+    /** Send the targets changed since the last update, and the MMSIs of the targets removed or no longer matching */
+    void update(Collection<TargetInfo> targets, Collection<Integer> removed) throws IOException;
+
+    /**
+     * End the subscription.
+     * @param reason why the tracker ended the subscription; null if the subscriber ended it
+     */
+    void close(String reason);
+
+}
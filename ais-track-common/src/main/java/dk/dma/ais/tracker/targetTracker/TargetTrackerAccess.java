@@ -0,0 +1,144 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.tracker.targetTracker;
+
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.enav.model.geometry.Position;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Operations on a TargetTracker which AisLib does not expose publicly; they use the
+ * package private state of the tracker in the same way as its own methods do.
+ */
+public final class TargetTrackerAccess {
+
+    /** The private all-fields constructor of TargetInfo */
+    private static final MethodHandle NEW_TARGET_INFO;
+
+    static {
+        try {
+            Constructor<TargetInfo> constructor = TargetInfo.class.getDeclaredConstructor(AisPacketSource.class, int.class, AisTargetType.class,
+                long.class, Position.class, int.class, float.class, float.class, byte.class, byte[].class, long.class, byte[].class, byte[].class, int.class);
+            constructor.setAccessible(true);
+            NEW_TARGET_INFO = MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unsupported version of AisLib; TargetInfo cannot be constructed", e);
+        }
+    }
+
+    private TargetTrackerAccess() {
+    }
+
+    /**
+     * Remove the report of mmsi from source, if it is still expected - i.e. it was not replaced
+     * since the caller read it. Removes the target entirely when it has no reports left, just
+     * as TargetTracker.removeAll does.
+     *
+     * @return true if the report was removed
+     */
+    public static boolean remove(TargetTracker tracker, int mmsi, AisPacketSource source, TargetInfo expected) {
+        TargetTracker.MmsiTarget target = tracker.targets.get(mmsi);
+        if (target == null || !target.remove(source, expected))
+            return false;
+        if (target.isEmpty())
+            tracker.targets.remove(mmsi, target);
+        return true;
+    }
+
+    /** Merge targetInfo into the tracker as the report from source; as done when a backup is restored */
+    public static void put(TargetTracker tracker, AisPacketSource source, TargetInfo targetInfo) {
+        tracker.update(source, targetInfo);
+    }
+
+    /**
+     * Replace all reports of mmsi with reports; removing the target if reports is empty. Must not be
+     * called concurrently with other updates of mmsi.
+     *
+     * @return the sources of the reports replaced, removed or added
+     */
+    public static Set<AisPacketSource> replace(TargetTracker tracker, int mmsi, Map<AisPacketSource, TargetInfo> reports) {
+        Set<AisPacketSource> sources = new HashSet<>(reports.keySet());
+        if (reports.isEmpty()) {
+            TargetTracker.MmsiTarget removed = tracker.targets.remove(mmsi);
+            if (removed != null)
+                sources.addAll(removed.keySet());
+            return sources;
+        }
+
+        TargetTracker.MmsiTarget target = tracker.targets.computeIfAbsent(mmsi, TargetTracker.MmsiTarget::new);
+        sources.addAll(target.keySet());
+        target.putAll(reports);
+        target.keySet().retainAll(reports.keySet());
+        return sources;
+    }
+
+    /** @return a copy of the reports per source of mmsi; empty if it is not tracked */
+    public static Map<AisPacketSource, TargetInfo> reports(TargetTracker tracker, int mmsi) {
+        TargetTracker.MmsiTarget target = tracker.targets.get(mmsi);
+        return target == null ? Collections.emptyMap() : new HashMap<>(target);
+    }
+
+    /** Call action with the MMSI and the reports per source of every target in the tracker */
+    public static void forEach(TargetTracker tracker, BiConsumer<Integer, Map<AisPacketSource, TargetInfo>> action) {
+        tracker.targets.forEach((mmsi, target) -> action.accept(mmsi, target));
+    }
+
+    /** Restore the tracker from the files written by a TargetTrackerFileBackupService in folder */
+    public static void restoreFileBackup(TargetTracker tracker, Path folder) throws IOException, ClassNotFoundException {
+        new TargetTrackerFileBackupService(tracker, folder).restoreBackupFiles();
+    }
+
+    /** @return the encoded packet holding the position of targetInfo, or null */
+    public static byte[] positionPacket(TargetInfo targetInfo) {
+        return targetInfo.positionPacket;
+    }
+
+    /** @return the encoded packet holding the first part of the static data of targetInfo, or null */
+    public static byte[] staticData1(TargetInfo targetInfo) {
+        return targetInfo.staticData1;
+    }
+
+    /** @return the encoded packet holding the second part of the static data of targetInfo, or null */
+    public static byte[] staticData2(TargetInfo targetInfo) {
+        return targetInfo.staticData2;
+    }
+
+    /** Create a TargetInfo out of the values of all its fields; i.e. the inverse of its getters */
+    public static TargetInfo newTargetInfo(AisPacketSource source, int mmsi, AisTargetType targetType,
+                                           long positionTimestamp, Position position, int heading, float cog, float sog, byte navStatus, byte[] positionPacket,
+                                           long staticTimestamp, byte[] staticData1, byte[] staticData2, int staticShipType) {
+        try {
+            return (TargetInfo) NEW_TARGET_INFO.invokeExact(source, mmsi, targetType, positionTimestamp, position, heading, cog, sog, navStatus, positionPacket,
+                staticTimestamp, staticData1, staticData2, staticShipType);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
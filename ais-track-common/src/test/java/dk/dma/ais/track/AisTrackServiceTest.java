@@ -15,8 +15,12 @@
 
 package dk.dma.ais.track;
 
+import dk.dma.ais.packet.AisPacketSource;
 import dk.dma.ais.packet.AisPacketSourceFilters;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.TargetQuery;
 import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
 import dk.dma.enav.model.geometry.BoundingBox;
 import dk.dma.enav.model.geometry.CoordinateSystem;
 import dk.dma.enav.model.geometry.Position;
@@ -29,7 +33,9 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
@@ -41,6 +47,9 @@ public class AisTrackServiceTest {
     @Inject
     private AisTrackService aisTrackService;
 
+    @Inject
+    private TargetTracker tracker;
+
     static int[] mmsiInTestData = {
             220476000,
             259662000,
@@ -153,4 +162,23 @@ public class AisTrackServiceTest {
                             .size()
         );
     }
+
+    /** Test queries split over the query pool return the same targets as sequential queries */
+    @Test
+    public void testParallelQueriesEqualSequentialQueries() throws Exception {
+        AisTrackService parallel = new AisTrackService();
+        parallel.setTargetTracker(tracker);
+        parallel.setMetrics(new Metrics());
+        parallel.setQueryParallelism(4, 1);
+
+        Predicate<AisPacketSource> sourceFilter = AisPacketSourceFilters.parseSourceFilter("s.country = DNK");
+        BoundingBox boundingBox = BoundingBox.create(Position.create(55.0, 11.0), Position.create(56.0, 12.0), CoordinateSystem.CARTESIAN);
+        Predicate<TargetInfo> targetFilter = target -> boundingBox.contains(target.getPosition());
+        TargetQuery query = new TargetQuery(null, null, Collections.singleton(boundingBox), "s.country = DNK", sourceFilter);
+
+        assertEquals(aisTrackService.targets(query), parallel.targets(query));
+        assertEquals(aisTrackService.targets(sourceFilter, targetFilter), parallel.targets(sourceFilter, targetFilter));
+        assertEquals(aisTrackService.targets(), parallel.targets());
+        assertEquals(aisTrackService.numberOfTargets(sourceFilter), parallel.numberOfTargets(sourceFilter));
+    }
 }
@@ -17,8 +17,9 @@ package dk.dma.ais.track;
 import dk.dma.ais.bus.AisBus;
 import dk.dma.ais.configuration.bus.AisBusConfiguration;
 import dk.dma.ais.packet.AisPacketReader;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.snapshot.TargetSnapshotService;
 import dk.dma.ais.tracker.targetTracker.TargetTracker;
-import dk.dma.ais.tracker.targetTracker.TargetTrackerFileBackupService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -31,6 +32,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 
 import static java.lang.System.exit;
 
@@ -67,9 +69,14 @@ public class AisTrackServiceTestConfiguration {
     }
 
     @Bean
-    public TargetTrackerFileBackupService provideFileBackupService(TargetTracker targetTracker){
+    public Metrics provideMetrics() {
+        return new Metrics();
+    }
+
+    @Bean
+    public TargetSnapshotService provideSnapshotService(TargetTracker targetTracker){
         if(backupPath == null || backupPath.trim().length() == 0){
-            LOG.info("dk.dma.ais.track.AisTrackService.backup not available. Can not configure {}", TargetTrackerFileBackupService.class.getSimpleName());
+            LOG.info("dk.dma.ais.track.AisTrackService.backup not available. Can not configure {}", TargetSnapshotService.class.getSimpleName());
             return null;
         }
 
@@ -78,8 +85,8 @@ public class AisTrackServiceTestConfiguration {
             path.toFile().mkdirs();
         }
 
-        TargetTrackerFileBackupService backupService = new TargetTrackerFileBackupService(targetTracker, path);
-        LOG.info("{} configured with path {}.", TargetTrackerFileBackupService.class.getSimpleName(), backupPath);
+        TargetSnapshotService backupService = new TargetSnapshotService(targetTracker, path, Duration.ofMinutes(1), 1);
+        LOG.info("{} configured with path {}.", TargetSnapshotService.class.getSimpleName(), backupPath);
 
         return backupService;
     }
@@ -89,8 +96,9 @@ public class AisTrackServiceTestConfiguration {
     public AisTrackService provideAisTrackService() throws IOException {
         AisTrackService aisTrackService = new AisTrackService();
         aisTrackService.setTargetTracker(ctx.getBean(TargetTracker.class));
-        aisTrackService.setTargetTrackerFileBackupService(ctx.getBean(TargetTrackerFileBackupService.class));
+        aisTrackService.setTargetSnapshotService(ctx.getBean(TargetSnapshotService.class));
         aisTrackService.setAisBus(ctx.getBean(AisBus.class));
+        aisTrackService.setMetrics(ctx.getBean(Metrics.class));
         aisTrackService.start();
 
         String testdataResourceName = "testdata-00.ais";
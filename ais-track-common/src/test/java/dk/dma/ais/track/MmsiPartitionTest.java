@@ -0,0 +1,68 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track;
+
+import dk.dma.ais.packet.AisPacket;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MmsiPartitionTest {
+
+    @Test
+    public void testParse() {
+        MmsiPartition partition = MmsiPartition.parse(" 1/3 ");
+        assertEquals(1, partition.getIndex());
+        assertEquals(3, partition.getCount());
+        assertEquals("1/3", partition.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseIndexOutOfRange() {
+        MmsiPartition.parse("3/3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMalformed() {
+        MmsiPartition.parse("1-3");
+    }
+
+    @Test
+    public void testEachMmsiIsOwnedByOnePartition() {
+        MmsiPartition[] partitions = {new MmsiPartition(0, 3), new MmsiPartition(1, 3), new MmsiPartition(2, 3)};
+        for (int mmsi = 219000000; mmsi < 219001000; mmsi++) {
+            int owners = 0;
+            for (MmsiPartition partition : partitions) {
+                if (partition.owns(mmsi)) {
+                    assertEquals(partition.getIndex(), MmsiPartition.indexOf(mmsi, 3));
+                    owners++;
+                }
+            }
+            assertEquals(1, owners);
+        }
+    }
+
+    @Test
+    public void testPacketFilter() {
+        AisPacket packet = AisPacket.from("!AIVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E");
+        int mmsi = packet.tryGetAisMessage().getUserId();
+        assertTrue(new MmsiPartition(MmsiPartition.indexOf(mmsi, 2), 2).test(packet));
+        assertFalse(new MmsiPartition(1 - MmsiPartition.indexOf(mmsi, 2), 2).test(packet));
+        assertFalse(new MmsiPartition(0, 1).test(AisPacket.from("garbage")));
+    }
+
+}
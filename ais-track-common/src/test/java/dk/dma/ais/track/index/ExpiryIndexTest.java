@@ -0,0 +1,143 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryIndexTest {
+
+    private static final long HOUR = Duration.ofHours(1).toMillis();
+
+    private TargetTracker tracker;
+    private ExpiryIndex index;
+
+    @Before
+    public void setUp() {
+        tracker = new TargetTracker();
+        index = new ExpiryIndex(tracker, Duration.ofHours(1), Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void testRemovesOnlyExpiredReports() {
+        long now = System.currentTimeMillis();
+        report(219000001, now - 2 * HOUR, 2190047);
+        report(219000002, now - 1000, 2190047);
+
+        List<Map.Entry<Integer, AisPacketSource>> removed = index.expire();
+
+        assertEquals(1, removed.size());
+        assertEquals(219000001, (int) removed.get(0).getKey());
+        assertNull(tracker.get(219000001));
+        assertNotNull(tracker.get(219000002));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testUpdatedReportIsRescheduled() {
+        long now = System.currentTimeMillis();
+        report(219000001, now - 2 * HOUR, 2190047);
+        report(219000001, now - 1000, 2190047);
+
+        assertTrue(index.expire().isEmpty());
+        assertNotNull(tracker.get(219000001));
+        assertEquals(1, index.numberOfReports());
+    }
+
+    @Test
+    public void testRemovesOnlyExpiredSource() {
+        long now = System.currentTimeMillis();
+        report(219000001, now - 2 * HOUR, 2190047);
+        report(219000001, now - 1000, 2190048);
+
+        assertEquals(1, index.expire().size());
+        assertNotNull(tracker.get(219000001));
+        assertEquals(1, tracker.getPacketSourcesForMMSI(219000001).size());
+    }
+
+    @Test
+    public void testReportsFromTheFuture() {
+        long now = System.currentTimeMillis();
+        report(219000001, now + 3 * HOUR, 2190047);
+        report(219000002, now + HOUR / 2, 2190047);
+
+        List<Map.Entry<Integer, AisPacketSource>> removed = index.expire();
+
+        // As LastReportFilter; only reports more than the expiry duration ahead are removed
+        assertEquals(1, removed.size());
+        assertEquals(219000001, (int) removed.get(0).getKey());
+        assertNotNull(tracker.get(219000002));
+    }
+
+    @Test
+    public void testRebuild() {
+        long now = System.currentTimeMillis();
+        tracker.update(positionReport(219000001, now - 2 * HOUR, 2190047));
+        tracker.update(positionReport(219000002, now, 2190047));
+        assertTrue(index.expire().isEmpty());
+
+        index.rebuild();
+
+        assertEquals(2, index.size());
+        assertEquals(1, index.expire().size());
+        assertNull(tracker.get(219000001));
+    }
+
+    /** Update the tracker and the index with a position report */
+    private void report(int mmsi, long timestamp, int baseStation) {
+        AisPacket packet = positionReport(mmsi, timestamp, baseStation);
+        tracker.update(packet);
+        index.touch(mmsi, AisPacketSource.create(packet));
+    }
+
+    private static AisPacket positionReport(int mmsi, long timestamp, int baseStation) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(55.5, 11.5)));
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date(timestamp));
+        tags.setSourceBs(baseStation);
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowBitmapTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testAddAndRemove() {
+        RowBitmap rows = new RowBitmap();
+        assertTrue(rows.isEmpty());
+
+        rows.add(3);
+        rows.add(70000);
+        rows.add(3);
+        assertEquals(2, rows.cardinality());
+        assertTrue(rows.contains(3));
+        assertTrue(rows.contains(70000));
+        assertFalse(rows.contains(4));
+
+        rows.remove(3);
+        rows.remove(5);
+        assertEquals(toBitSet(70000), toBitSet(rows));
+        rows.remove(70000);
+        assertTrue(rows.isEmpty());
+    }
+
+    @Test
+    public void testBlocksChangeBetweenArrayAndBitmap() {
+        RowBitmap rows = new RowBitmap();
+        BitSet expected = new BitSet();
+        for (int row = 0; row < 3 * RowBitmap.MAX_ARRAY_ROWS; row += 2) {
+            rows.add(row);
+            expected.set(row);
+        }
+        assertEquals(expected, toBitSet(rows));
+
+        for (int row = 0; row < 3 * RowBitmap.MAX_ARRAY_ROWS; row += 3) {
+            rows.remove(row);
+            expected.clear(row);
+        }
+        assertEquals(expected, toBitSet(rows));
+        assertEquals(expected.cardinality(), rows.cardinality());
+    }
+
+    @Test
+    public void testAndOrEqualBitSets() {
+        // Sparse and dense sets across several blocks, so both kinds of blocks meet both kinds
+        for (int density : new int[] {1, 10, 100, 1000}) {
+            RowBitmap a = new RowBitmap(), b = new RowBitmap();
+            BitSet expectedA = new BitSet(), expectedB = new BitSet();
+            for (int i = 0; i < 300000; i++) {
+                if (random.nextInt(1000) < density) {
+                    a.add(i);
+                    expectedA.set(i);
+                }
+                if (random.nextInt(1000) < (i < 150000 ? 1000 - density : density)) {
+                    b.add(i);
+                    expectedB.set(i);
+                }
+            }
+
+            BitSet and = (BitSet) expectedA.clone();
+            and.and(expectedB);
+            BitSet or = (BitSet) expectedA.clone();
+            or.or(expectedB);
+            assertEquals(and, toBitSet(a.and(b)));
+            assertEquals(and.cardinality(), a.and(b).cardinality());
+            assertEquals(or, toBitSet(a.or(b)));
+            assertEquals(or.cardinality(), b.or(a).cardinality());
+
+            // The operands are left unchanged
+            assertEquals(expectedA, toBitSet(a));
+            assertEquals(expectedB, toBitSet(b));
+        }
+    }
+
+    private static BitSet toBitSet(RowBitmap rows) {
+        BitSet bits = new BitSet();
+        rows.forEach(bits::set);
+        return bits;
+    }
+
+    private static BitSet toBitSet(int... rows) {
+        BitSet bits = new BitSet();
+        for (int row : rows)
+            bits.set(row);
+        return bits;
+    }
+
+}
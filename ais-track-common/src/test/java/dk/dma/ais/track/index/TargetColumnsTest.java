@@ -0,0 +1,191 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import com.google.common.collect.Sets;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.Country;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.when;
+
+public class TargetColumnsTest {
+
+    private TargetTracker tracker;
+    private TargetColumns columns;
+    private AisPacketSource source;
+    private final Map<Integer, TargetInfo> targets = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        tracker = Mockito.mock(TargetTracker.class);
+        when(tracker.get(anyInt(), any(Predicate.class))).thenAnswer(invocation -> targets.get(invocation.getArguments()[0]));
+        columns = new TargetColumns(tracker);
+        source = Mockito.mock(AisPacketSource.class);
+    }
+
+    @Test
+    public void testBoundingBoxSelectsTargetsInside() {
+        report(219000001, 55.5, 11.5, 1000);
+        report(219000002, 20.5, 105.5, 1000);
+        report(219000003, 55.25, 11.0, 1000);
+
+        assertEquals(Sets.newHashSet(219000001, 219000003), columns.select(TargetColumns.inside(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0)))));
+        assertEquals(Sets.newHashSet(219000002), columns.select(TargetColumns.inside(Sets.newHashSet(box(20.0, 105.0, 21.0, 106.0)))));
+        assertEquals(3, columns.size());
+    }
+
+    @Test
+    public void testCircleSelectsAllTargetsInside() {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++)
+            report(219000000 + i, 54.0 + random.nextDouble() * 3.0, 10.0 + random.nextDouble() * 5.0, 1000);
+
+        for (CoordinateSystem cs : CoordinateSystem.values()) {
+            Area circle = new Circle(Position.create(55.7, 12.6), 50000, cs);
+            Set<Integer> selected = columns.select(TargetColumns.inside(Sets.newHashSet(circle)));
+            int inside = 0;
+            for (int i = 0; i < 2000; i++) {
+                if (circle.contains(targets.get(219000000 + i).getPosition())) {
+                    assertTrue(selected.contains(219000000 + i));
+                    inside++;
+                }
+            }
+            assertTrue(inside > 0);
+            assertTrue(selected.size() < inside * 1.1);
+        }
+    }
+
+    @Test
+    public void testRemovedTargetIsNotSelectedAndRowIsReused() {
+        report(219000001, 55.5, 11.5, 1000);
+        report(219000002, 55.6, 11.6, 1000);
+        targets.remove(219000001);
+        columns.update(219000001, source);
+
+        assertEquals(Sets.newHashSet(219000002), columns.select(TargetColumns.inside(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0)))));
+        assertEquals(1, columns.size());
+
+        report(219000003, 55.7, 11.7, 1000);
+        assertEquals(Sets.newHashSet(219000002, 219000003), columns.select(TargetColumns.inside(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0)))));
+        assertEquals(2, columns.size());
+    }
+
+    @Test
+    public void testLastReportIsTheLatestOfPositionAndStatic() {
+        report(219000001, 55.5, 11.5, 1000);
+        report(219000002, 55.5, 11.5, 3000);
+        report(219000003, Double.NaN, Double.NaN, 5000);
+
+        assertEquals(Sets.newHashSet(219000002, 219000003), columns.select(TargetColumns.reportedSince(2500)));
+        assertEquals(Sets.newHashSet(219000002), columns.select(TargetColumns.reportedSince(2500).and(TargetColumns.inside(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0))))));
+    }
+
+    @Test
+    public void testRowsFromMatchingSources() {
+        AisPacketSource denmark = source(Country.getByCode("DK"), "806");
+        AisPacketSource norway = source(Country.getByCode("NO"), "806");
+        AisPacketSource sweden = source(Country.getByCode("SE"), "807");
+        report(219000001, 55.5, 11.5, denmark);
+        report(219000002, 20.5, 105.5, norway);
+        report(219000003, 55.5, 11.5, sweden);
+        report(219000004, 55.5, 11.5, sweden);
+        assertEquals(3, columns.numberOfSources());
+
+        Predicate<AisPacketSource> nordic806 = src -> (src.getSourceCountry().getTwoLetter().equals("DK") || src.getSourceCountry().getTwoLetter().equals("NO"))
+            && src.getSourceRegion().equals("806");
+        assertEquals(Sets.newHashSet(219000001, 219000002), columns.select(columns.rowsFrom(nordic806), null));
+        assertEquals(Sets.newHashSet(219000001), columns.select(columns.rowsFrom(nordic806), TargetColumns.inside(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0)))));
+
+        targets.remove(219000003);
+        columns.update(219000003, sweden);
+        assertEquals(Sets.newHashSet(219000004), columns.select(columns.rowsFrom(src -> src == sweden), null));
+    }
+
+    @Test
+    public void testRowsFromDisjunctionOfDimensionsIsSuperset() {
+        AisPacketSource denmark806 = source(Country.getByCode("DK"), "806");
+        AisPacketSource sweden807 = source(Country.getByCode("SE"), "807");
+        AisPacketSource denmark807 = source(Country.getByCode("DK"), "807");
+        report(219000001, 55.5, 11.5, denmark806);
+        report(219000002, 55.5, 11.5, sweden807);
+        report(219000003, 55.5, 11.5, denmark807);
+
+        // Every country and region is accepted, so no dimension restricts the rows; the exact test is left to the caller
+        assertEquals(Sets.newHashSet(219000001, 219000002, 219000003), columns.select(columns.rowsFrom(src -> src == denmark806 || src == sweden807), null));
+        assertEquals(Sets.newHashSet(219000001, 219000002, 219000003), columns.select(columns.rowsFrom(src -> true), null));
+        assertTrue(columns.rowsFrom(src -> false).isEmpty());
+
+        targets.remove(219000003);
+        columns.update(219000003, denmark807);
+        assertEquals(2, columns.numberOfSources());
+        assertEquals(Sets.newHashSet(219000001), columns.select(columns.rowsFrom(src -> src == denmark806), null));
+    }
+
+    @Test
+    public void testUnsupportedAreaGivesNoFilter() {
+        assertNull(TargetColumns.inside(null));
+        assertNull(TargetColumns.inside(Sets.newHashSet()));
+    }
+
+    private void report(int mmsi, double lat, double lon, long timestamp) {
+        report(mmsi, lat, lon, timestamp, source);
+    }
+
+    private void report(int mmsi, double lat, double lon, AisPacketSource source) {
+        report(mmsi, lat, lon, 1000, source);
+    }
+
+    private void report(int mmsi, double lat, double lon, long timestamp, AisPacketSource source) {
+        TargetInfo targetInfo = Mockito.mock(TargetInfo.class);
+        when(targetInfo.getMmsi()).thenReturn(mmsi);
+        when(targetInfo.getPosition()).thenReturn(Double.isNaN(lat) ? null : Position.create(lat, lon));
+        when(targetInfo.getPositionTimestamp()).thenReturn(Double.isNaN(lat) ? -1 : timestamp);
+        when(targetInfo.getStaticTimestamp()).thenReturn(Double.isNaN(lat) ? timestamp : -1);
+        targets.put(mmsi, targetInfo);
+        columns.update(mmsi, source);
+    }
+
+    private AisPacketSource source(Country country, String region) {
+        AisPacketSource source = Mockito.mock(AisPacketSource.class);
+        when(source.getSourceCountry()).thenReturn(country);
+        when(source.getSourceRegion()).thenReturn(region);
+        return source;
+    }
+
+    private static BoundingBox box(double lat1, double lon1, double lat2, double lon2) {
+        return BoundingBox.create(Position.create(lat1, lon1), Position.create(lat2, lon2), CoordinateSystem.CARTESIAN);
+    }
+}
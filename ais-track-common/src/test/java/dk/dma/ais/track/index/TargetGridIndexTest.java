@@ -0,0 +1,181 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.index;
+
+import com.google.common.collect.Sets;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.query.NearestTargets;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.Circle;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+public class TargetGridIndexTest {
+
+    private TargetTracker tracker;
+    private TargetGridIndex index;
+    private AisPacketSource source;
+
+    @Before
+    public void setUp() {
+        tracker = Mockito.mock(TargetTracker.class);
+        index = new TargetGridIndex(tracker, 1.0);
+        source = Mockito.mock(AisPacketSource.class);
+    }
+
+    @Test
+    public void testBoundingBoxFindsOnlyTargetsInOverlappingCells() {
+        report(219000001, 55.5, 11.5);
+        report(219000002, 20.5, 105.5);
+
+        Set<Integer> candidates = index.candidates(Sets.newHashSet(box(55.1, 11.1, 55.2, 11.2)));
+        assertEquals(Sets.newHashSet(219000001), candidates);
+
+        assertEquals(2, index.size());
+        assertEquals(2, index.numberOfCells());
+    }
+
+    @Test
+    public void testMovedTargetLeavesOldCell() {
+        report(219000001, 55.5, 11.5);
+        report(219000001, 20.5, 105.5);
+
+        assertTrue(index.candidates(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0))).isEmpty());
+        assertEquals(Sets.newHashSet(219000001), index.candidates(Sets.newHashSet(box(20.0, 105.0, 21.0, 106.0))));
+        assertEquals(1, index.numberOfCells());
+    }
+
+    @Test
+    public void testRemovedTargetIsUnindexed() {
+        report(219000001, 55.5, 11.5);
+        when(tracker.get(eq(219000001), any(Predicate.class))).thenReturn(null);
+        index.reindex(219000001, source);
+
+        assertTrue(index.candidates(Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0))).isEmpty());
+        assertEquals(0, index.size());
+        assertEquals(0, index.numberOfCells());
+    }
+
+    @Test
+    public void testCircleAcrossAntimeridian() {
+        report(219000001, 10.2, 179.9);
+        report(219000002, 10.2, -179.9);
+        report(219000003, 10.2, 170.5);
+
+        Set<Integer> candidates = index.candidates(Sets.newHashSet(new Circle(Position.create(10.0, -179.95), 50000, CoordinateSystem.CARTESIAN)));
+        assertTrue(candidates.contains(219000001));
+        assertTrue(candidates.contains(219000002));
+        assertFalse(candidates.contains(219000003));
+    }
+
+    @Test
+    public void testUnsupportedAreaGivesNoCandidates() {
+        assertNull(index.candidates(null));
+        assertNull(index.candidates(Sets.newHashSet()));
+    }
+
+    @Test
+    public void testNearestTargetsAreFoundBestFirst() {
+        Map<Integer, TargetInfo> targets = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            // Half of them clustered around the antimeridian and the north pole
+            double lat = i % 2 == 0 ? random.nextDouble() * 180.0 - 90.0 : 80.0 + random.nextDouble() * 10.0;
+            double lon = i % 2 == 0 ? random.nextDouble() * 360.0 - 180.0 : (random.nextDouble() * 20.0 + 170.0 + 180.0) % 360.0 - 180.0;
+            targets.put(219000000 + i, target(219000000 + i, lat, lon));
+        }
+        when(tracker.get(anyInt(), any(Predicate.class))).thenAnswer(invocation -> targets.get(invocation.getArguments()[0]));
+        targets.keySet().forEach(mmsi -> index.reindex(mmsi, source));
+
+        for (Position from : Arrays.asList(Position.create(55.7, 12.6), Position.create(85.0, -179.5), Position.create(-89.0, 0.0))) {
+            for (int k : new int[] {1, 5, 50}) {
+                NearestTargets expected = new NearestTargets(from, k, Double.POSITIVE_INFINITY);
+                targets.values().forEach(expected::offer);
+
+                NearestTargets found = new NearestTargets(from, k, Double.POSITIVE_INFINITY);
+                index.visitByDistance(from.getLatitude(), from.getLongitude(), Double.POSITIVE_INFINITY, (minDistance, mmsis) -> {
+                    if (minDistance > found.getBound())
+                        return false;
+                    mmsis.forEach(mmsi -> found.offer(targets.get(mmsi)));
+                    return true;
+                });
+
+                assertEquals(mmsis(expected), mmsis(found));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchStopsAtMaxDistance() {
+        report(219000001, 55.5, 11.5);
+        report(219000002, 56.5, 12.5);
+        report(219000003, 20.5, 105.5);
+
+        Set<Integer> visited = new HashSet<>();
+        index.visitByDistance(55.6, 11.6, 200000, (minDistance, mmsis) -> {
+            assertTrue(minDistance <= 200000);
+            visited.addAll(mmsis);
+            return true;
+        });
+        assertEquals(Sets.newHashSet(219000001, 219000002), visited);
+    }
+
+    private static List<Integer> mmsis(NearestTargets nearest) {
+        return nearest.toList().stream().map(target -> target.getTarget().getMmsi()).collect(Collectors.toList());
+    }
+
+    private static TargetInfo target(int mmsi, double lat, double lon) {
+        TargetInfo targetInfo = Mockito.mock(TargetInfo.class);
+        when(targetInfo.getMmsi()).thenReturn(mmsi);
+        when(targetInfo.getPosition()).thenReturn(Position.create(lat, lon));
+        return targetInfo;
+    }
+
+    private void report(int mmsi, double lat, double lon) {
+        TargetInfo targetInfo = Mockito.mock(TargetInfo.class);
+        when(targetInfo.getMmsi()).thenReturn(mmsi);
+        when(targetInfo.getPosition()).thenReturn(Position.create(lat, lon));
+        when(tracker.get(eq(mmsi), any(Predicate.class))).thenReturn(targetInfo);
+        index.reindex(mmsi, source);
+    }
+
+    private static BoundingBox box(double lat1, double lon1, double lat2, double lon2) {
+        return BoundingBox.create(Position.create(lat1, lon1), Position.create(lat2, lon2), CoordinateSystem.CARTESIAN);
+    }
+}
@@ -0,0 +1,216 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.ingest;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class IngestPipelineTest {
+
+    @Test
+    public void testPacketsForSameVesselAreAppliedInOrder() throws Exception {
+        Map<Integer, List<AisPacket>> applied = new ConcurrentHashMap<>();
+        IngestPipeline pipeline = new IngestPipeline(p -> true,
+            p -> applied.computeIfAbsent(p.tryGetAisMessage().getUserId(), mmsi -> new CopyOnWriteArrayList<>()).add(p), 4, 16);
+        pipeline.start();
+
+        Map<Integer, List<AisPacket>> sent = new ConcurrentHashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            int mmsi = 219000000 + i % 37;
+            AisPacket packet = packet(mmsi);
+            sent.computeIfAbsent(mmsi, m -> new ArrayList<>()).add(packet);
+            pipeline.accept(packet);
+        }
+        pipeline.stop(10, TimeUnit.SECONDS);
+
+        assertEquals(sent, applied);
+        assertEquals(2000, pipeline.updatedCount());
+        assertEquals(0, pipeline.queued());
+    }
+
+    @Test
+    public void testFilteredAndUndecodablePacketsAreDiscarded() throws Exception {
+        List<AisPacket> applied = new CopyOnWriteArrayList<>();
+        AisPacket accepted = packet(219000001);
+        AisPacket rejected = packet(219000002);
+        AisPacket undecodable = Mockito.mock(AisPacket.class);
+
+        IngestPipeline pipeline = new IngestPipeline(p -> p != rejected, applied::add, 2, 16);
+        pipeline.start();
+        pipeline.accept(accepted);
+        pipeline.accept(rejected);
+        pipeline.accept(undecodable);
+        pipeline.stop(10, TimeUnit.SECONDS);
+
+        assertEquals(1, applied.size());
+        assertEquals(3, pipeline.receivedCount());
+        assertEquals(1, pipeline.filteredCount());
+        assertEquals(1, pipeline.undecodableCount());
+        assertEquals(1, pipeline.updatedCount());
+    }
+
+    @Test
+    public void testFailedUpdateDoesNotStopWorker() throws Exception {
+        List<AisPacket> applied = new CopyOnWriteArrayList<>();
+        AisPacket failing = packet(219000001);
+        IngestPipeline pipeline = new IngestPipeline(p -> true, p -> {
+            if (p == failing)
+                throw new IllegalStateException("test");
+            applied.add(p);
+        }, 1, 16);
+        pipeline.start();
+        pipeline.accept(failing);
+        pipeline.accept(packet(219000001));
+        pipeline.stop(10, TimeUnit.SECONDS);
+
+        assertEquals(1, applied.size());
+        assertEquals(1, pipeline.failedCount());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<AisPacket> applied = new CopyOnWriteArrayList<>();
+        IngestPipeline pipeline = new IngestPipeline(p -> true, p -> {
+            entered.countDown();
+            await(release);
+            applied.add(p);
+        }, 1, 2, OverloadPolicy.DROP_OLDEST, null);
+        pipeline.start();
+
+        AisPacket first = packet(219000001);
+        pipeline.accept(first);
+        awaitApplying(entered);
+        List<AisPacket> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            AisPacket packet = packet(219000001);
+            sent.add(packet);
+            pipeline.accept(packet);
+        }
+        release.countDown();
+        pipeline.stop(10, TimeUnit.SECONDS);
+
+        assertEquals(3, pipeline.droppedCount());
+        assertEquals(Arrays.asList(first, sent.get(3), sent.get(4)), applied);
+    }
+
+    @Test
+    public void testCoalescePositionReports() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<AisPacket> applied = new CopyOnWriteArrayList<>();
+        IngestPipeline pipeline = new IngestPipeline(p -> true, p -> {
+            entered.countDown();
+            await(release);
+            applied.add(p);
+        }, 1, 100, OverloadPolicy.COALESCE, null);
+        pipeline.start();
+
+        AisPacket first = positionPacket(219000001, "A");
+        pipeline.accept(first);
+        awaitApplying(entered);
+        AisPacket older = positionPacket(219000001, "A");
+        AisPacket otherSource = positionPacket(219000001, "B");
+        AisPacket nonPosition = packet(219000001);
+        AisPacket newer = positionPacket(219000001, "A");
+        pipeline.accept(older);
+        pipeline.accept(otherSource);
+        pipeline.accept(nonPosition);
+        pipeline.accept(newer);
+        release.countDown();
+        pipeline.stop(10, TimeUnit.SECONDS);
+
+        assertEquals(1, pipeline.coalescedCount());
+        assertEquals(Arrays.asList(first, newer, otherSource, nonPosition), applied);
+    }
+
+    @Test
+    public void testShedLowPrioritySources() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<AisPacket> applied = new CopyOnWriteArrayList<>();
+        IngestPipeline pipeline = new IngestPipeline(p -> true, p -> {
+            entered.countDown();
+            await(release);
+            applied.add(p);
+        }, 1, 4, OverloadPolicy.SHED, src -> "SAT".equals(src.getSourceId()));
+        pipeline.start();
+
+        pipeline.accept(positionPacket(219000001, "A"));
+        awaitApplying(entered);
+        for (int i = 0; i < 3; i++)
+            pipeline.accept(positionPacket(219000001, "A"));
+        pipeline.accept(positionPacket(219000001, "SAT"));
+        pipeline.accept(positionPacket(219000001, "A"));
+        release.countDown();
+        pipeline.stop(10, TimeUnit.SECONDS);
+
+        assertEquals(1, pipeline.shedCount());
+        assertEquals(5, applied.size());
+    }
+
+    private static AisPacket packet(int mmsi) {
+        AisMessage message = Mockito.mock(AisMessage.class);
+        when(message.getUserId()).thenReturn(mmsi);
+        AisPacket packet = Mockito.mock(AisPacket.class);
+        when(packet.tryGetAisMessage()).thenReturn(message);
+        return packet;
+    }
+
+    private static AisPacket positionPacket(int mmsi, String sourceId) {
+        AisMessage message = Mockito.mock(AisMessage1.class);
+        when(message.getUserId()).thenReturn(mmsi);
+        AisPacketTags tags = Mockito.mock(AisPacketTags.class);
+        when(tags.getSourceId()).thenReturn(sourceId);
+        AisPacket packet = Mockito.mock(AisPacket.class);
+        when(packet.tryGetAisMessage()).thenReturn(message);
+        when(packet.getTags()).thenReturn(tags);
+        when(packet.getVdm()).thenReturn(Mockito.mock(Vdm.class));
+        return packet;
+    }
+
+    /** Wait until the worker is applying the first packet; i.e. has taken it and is blocked in the updater */
+    private static void awaitApplying(CountDownLatch entered) throws InterruptedException {
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
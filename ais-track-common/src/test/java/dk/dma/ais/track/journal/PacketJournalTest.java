@@ -0,0 +1,144 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.journal;
+
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.track.snapshot.TargetSnapshotService;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PacketJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayReturnsAppendedPacketsInOrder() throws Exception {
+        List<AisPacket> packets = packets(1000);
+        PacketJournal journal = journal(FsyncPolicy.BATCH);
+        journal.open();
+        packets.forEach(journal::append);
+        journal.close();
+
+        List<AisPacket> replayed = new ArrayList<>();
+        assertEquals(1000, new PacketJournal(folder.getRoot().toPath(), FsyncPolicy.NEVER, Duration.ofSeconds(1), 100).replay(replayed::add));
+        assertEquals(messages(packets), messages(replayed));
+        assertTrue(journal.fsyncCount() > 0);
+    }
+
+    @Test
+    public void testRotatedSegmentsAreDeleted() throws Exception {
+        List<AisPacket> packets = packets(200);
+        PacketJournal journal = journal(FsyncPolicy.NEVER);
+        journal.open();
+        packets.subList(0, 100).forEach(journal::append);
+        long rotated = journal.rotate();
+        packets.subList(100, 200).forEach(journal::append);
+        journal.deleteUpTo(rotated);
+        journal.close();
+
+        List<AisPacket> replayed = new ArrayList<>();
+        journal(FsyncPolicy.NEVER).replay(replayed::add);
+        assertEquals(messages(packets.subList(100, 200)), messages(replayed));
+    }
+
+    @Test
+    public void testTornRecordEndsReplay() throws Exception {
+        PacketJournal journal = journal(FsyncPolicy.INTERVAL);
+        journal.open();
+        packets(10).forEach(journal::append);
+        journal.close();
+
+        Path segment = folder.getRoot().toPath().resolve("journal-0000000001.log");
+        try (RandomAccessFile raf = new RandomAccessFile(segment.toFile(), "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+        assertEquals(9, journal(FsyncPolicy.NEVER).replay(packet -> { }));
+    }
+
+    @Test
+    public void testSnapshotServiceReplaysJournal() throws Exception {
+        Path path = folder.getRoot().toPath();
+        PacketJournal journal = new PacketJournal(path.resolve("journal"), FsyncPolicy.NEVER, Duration.ofSeconds(1), 100);
+        journal.open();
+        packets(50).forEach(journal::append);
+        journal.close(); // As if the JVM died before the next snapshot
+
+        TargetTracker tracker = new TargetTracker();
+        PacketJournal reopened = new PacketJournal(path.resolve("journal"), FsyncPolicy.NEVER, Duration.ofSeconds(1), 100);
+        TargetSnapshotService service = new TargetSnapshotService(tracker, path, Duration.ofMinutes(1), 2, reopened);
+        service.startAsync().awaitRunning();
+        assertEquals(50, tracker.size());
+        assertTrue(reopened.isOpen());
+
+        service.stopAsync().awaitTerminated();
+        assertEquals(1, reopened.segments().size()); // Replayed segment deleted by the final snapshot
+    }
+
+    private PacketJournal journal(FsyncPolicy fsyncPolicy) {
+        return new PacketJournal(folder.getRoot().toPath(), fsyncPolicy, Duration.ofMillis(10), 100);
+    }
+
+    private static List<String> messages(List<AisPacket> packets) {
+        return packets.stream().map(AisPacket::getStringMessage).collect(Collectors.toList());
+    }
+
+    private static List<AisPacket> packets(int n) {
+        long now = System.currentTimeMillis();
+        List<AisPacket> packets = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            packets.add(positionReport(219000000 + i, 55.0 + i * 0.001, 11.0, now - i * 1000L));
+        return packets;
+    }
+
+    private static AisPacket positionReport(int mmsi, double lat, double lon, long timestamp) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(lat, lon)));
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date(timestamp));
+        tags.setSourceBs(2190047);
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void testBucket() {
+        assertEquals(0, Histogram.bucket(0));
+        assertEquals(0, Histogram.bucket(1));
+        assertEquals(1, Histogram.bucket(2));
+        assertEquals(2, Histogram.bucket(3));
+        assertEquals(2, Histogram.bucket(4));
+        assertEquals(3, Histogram.bucket(5));
+        assertEquals(63, Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testQuantiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.update(i);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        assertEquals(1000, histogram.getMax());
+
+        long p50 = histogram.getQuantile(0.5);
+        assertTrue(p50 >= 500 && p50 <= 1000);
+        long p99 = histogram.getQuantile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+    }
+
+    @Test
+    public void testEmpty() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getQuantile(0.99));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+}
@@ -0,0 +1,50 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeterTest {
+
+    @Test
+    public void testRateOverLastMinute() {
+        AtomicLong clock = new AtomicLong(1_000_000_000L);
+        Meter meter = new Meter(clock::get);
+
+        for (int second = 0; second < 59; second++) {
+            meter.mark(10);
+            clock.addAndGet(1000);
+        }
+        assertEquals(590, meter.getCount());
+        assertEquals(10.0, meter.getRate(), 1e-9);
+
+        // Events in the current second are not counted until it has passed
+        meter.mark(1000);
+        assertEquals(10.0, meter.getRate(), 1e-9);
+
+        // Slots are reused after a minute
+        clock.addAndGet(120_000);
+        assertEquals(0.0, meter.getRate(), 1e-9);
+        meter.mark(59);
+        clock.addAndGet(1000);
+        assertEquals(1.0, meter.getRate(), 1e-9);
+        assertEquals(1649, meter.getCount());
+    }
+
+}
@@ -0,0 +1,111 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeLogTest {
+
+    @Test
+    public void testChangesSince() {
+        ChangeLog log = new ChangeLog(100, 16);
+        log.record(101, 219000001);
+        log.record(102, 219000002);
+        log.record(103, 219000001);
+
+        ChangeLog.Changes all = log.since(100, 103);
+        assertEquals(Sets.newHashSet(219000001, 219000002), all.getMmsis());
+        assertEquals(103, all.getHighWaterMark());
+
+        ChangeLog.Changes last = log.since(102, 103);
+        assertEquals(Collections.singleton(219000001), last.getMmsis());
+        assertEquals(103, last.getHighWaterMark());
+
+        ChangeLog.Changes none = log.since(103, 103);
+        assertEquals(Collections.emptySet(), none.getMmsis());
+        assertEquals(103, none.getHighWaterMark());
+    }
+
+    @Test
+    public void testChangesHoldRemovalsAndCellsBefore() {
+        ChangeLog log = new ChangeLog(100, 16);
+        log.record(101, 219000001, Sets.newHashSet(7));
+        log.record(102, 219000001, Sets.newHashSet(8));
+        log.recordRemoval(103, 219000002);
+        log.record(104, 219000003);
+        log.record(105, 219000004, Collections.emptySet());
+
+        ChangeLog.Changes changes = log.since(100, 105);
+        assertTrue(changes.wasInAnyOf(219000001, Sets.newHashSet(7)));
+        assertTrue(changes.wasInAnyOf(219000001, Sets.newHashSet(8, 9)));
+        assertFalse(changes.wasInAnyOf(219000001, Sets.newHashSet(9)));
+        assertFalse(changes.isRemoved(219000001));
+        assertTrue(changes.isRemoved(219000002));
+        assertTrue(changes.isRemoved(219000003)); // Cells before unknown
+        assertFalse(changes.isRemoved(219000004));
+        assertFalse(changes.wasInAnyOf(219000004, Sets.newHashSet(7)));
+
+        assertFalse(log.since(101, 105).wasInAnyOf(219000001, Sets.newHashSet(7)));
+    }
+
+    @Test
+    public void testChangesStopAtChangeNotRecordedYet() {
+        ChangeLog log = new ChangeLog(100, 16);
+        log.record(101, 219000001);
+        log.record(103, 219000003);
+
+        ChangeLog.Changes changes = log.since(100, 103);
+        assertEquals(Collections.singleton(219000001), changes.getMmsis());
+        assertEquals(101, changes.getHighWaterMark());
+
+        log.record(102, 219000002);
+        changes = log.since(changes.getHighWaterMark(), 103);
+        assertEquals(Sets.newHashSet(219000002, 219000003), changes.getMmsis());
+        assertEquals(103, changes.getHighWaterMark());
+    }
+
+    @Test
+    public void testChangesNoLongerKeptAreUnknown() {
+        ChangeLog log = new ChangeLog(100, 5);
+        assertEquals(8, log.capacity());
+        for (int sequence = 101; sequence <= 110; sequence++)
+            log.record(sequence, 219000000 + sequence);
+
+        assertNull(log.since(101, 110));
+        assertEquals(8, log.since(102, 110).getMmsis().size());
+        assertFalse(log.covers(101, 110));
+        assertTrue(log.covers(102, 110));
+    }
+
+    @Test
+    public void testChangesBeforeOriginOrAfterCurrentAreUnknown() {
+        ChangeLog log = new ChangeLog(100, 16);
+        log.record(101, 219000001);
+
+        assertNull(log.since(99, 101));
+        assertNull(log.since(102, 101));
+        assertFalse(log.covers(99, 101));
+        assertFalse(log.covers(102, 101));
+    }
+
+}
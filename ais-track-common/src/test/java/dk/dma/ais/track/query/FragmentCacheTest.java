@@ -0,0 +1,96 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FragmentCacheTest {
+
+    private final AisPacketSource source = mock(AisPacketSource.class);
+
+    @Test
+    public void testFragmentIsServedForTheSameTarget() {
+        FragmentCache cache = new FragmentCache(10000);
+        TargetInfo target = target(219000001, 1000, 0);
+
+        assertNull(cache.get(target, "JSON"));
+        cache.put(target, "JSON", new byte[] {1, 2, 3});
+        cache.put(target, "CBOR", new byte[] {4});
+
+        assertArrayEquals(new byte[] {1, 2, 3}, cache.get(target(219000001, 1000, 0), "JSON"));
+        assertArrayEquals(new byte[] {4}, cache.get(target, "CBOR"));
+        assertNull(cache.get(target, "SMILE"));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    public void testFragmentIsNotServedForAChangedTarget() {
+        FragmentCache cache = new FragmentCache(10000);
+        cache.put(target(219000001, 1000, 0), "JSON", new byte[] {1});
+
+        assertNull(cache.get(target(219000001, 2000, 0), "JSON"));
+        assertNull(cache.get(target(219000001, 1000, 500), "JSON"));
+        assertNull(cache.get(target(219000002, 1000, 0), "JSON"));
+    }
+
+    @Test
+    public void testInvalidateFreesSpace() {
+        FragmentCache cache = new FragmentCache(10000);
+        cache.put(target(219000002, 1000, 0), "JSON", new byte[100]);
+        long size = cache.sizeInBytes();
+        cache.put(target(219000001, 1000, 0), "JSON", new byte[100]);
+        cache.put(target(219000001, 1000, 0), "CBOR", new byte[50]);
+
+        cache.invalidate(219000001);
+
+        assertNull(cache.get(target(219000001, 1000, 0), "JSON"));
+        assertEquals(1, cache.size());
+        assertEquals(size, cache.sizeInBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyWrittenTargetsAreEvictedBeyondMaxBytes() {
+        FragmentCache cache = new FragmentCache(10000);
+        for (int mmsi = 219000001; mmsi <= 219000100; mmsi++)
+            cache.put(target(mmsi, 1000, 0), "JSON", new byte[500]);
+
+        assertTrue(cache.sizeInBytes() <= 10000);
+        assertTrue(cache.evictedCount() > 0);
+        assertEquals(100, cache.size() + cache.evictedCount());
+        assertNull(cache.get(target(219000001, 1000, 0), "JSON"));
+        assertEquals(500, cache.get(target(219000100, 1000, 0), "JSON").length);
+    }
+
+    private TargetInfo target(int mmsi, long positionTimestamp, long staticTimestamp) {
+        TargetInfo target = mock(TargetInfo.class);
+        when(target.getMmsi()).thenReturn(mmsi);
+        when(target.getPositionTimestamp()).thenReturn(positionTimestamp);
+        when(target.getStaticTimestamp()).thenReturn(staticTimestamp);
+        when(target.getPacketSource()).thenReturn(source);
+        return target;
+    }
+
+}
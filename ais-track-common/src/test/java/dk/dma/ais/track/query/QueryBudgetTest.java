@@ -0,0 +1,104 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QueryBudgetTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    /** A query visiting and returning all of 10000 targets; estimated to cost 11000 */
+    private final QueryEstimate planet = QueryEstimate.fullScan(10000);
+
+    @Test
+    public void testCostIsEstimatedFromVisitsAndMatches() {
+        assertEquals(11000, planet.estimateCost(null));
+        assertEquals(1100, planet.estimateCost(100));
+    }
+
+    @Test
+    public void testBudgetIsRefilledOverTime() {
+        QueryBudget budget = budget(BudgetPolicy.REJECT);
+
+        assertFalse(budget.admit("a", planet, null, true).isRejected());
+        QueryBudget.Admission rejected = budget.admit("a", planet, null, true);
+        assertTrue(rejected.isRejected());
+        assertEquals(TimeUnit.SECONDS.toNanos(2), rejected.getRetryAfterNanos());
+        assertFalse(budget.admit("b", planet, null, true).isRejected());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertFalse(budget.admit("a", planet, null, true).isRejected());
+        assertEquals(1, budget.rejectedCount());
+    }
+
+    @Test
+    public void testQueryOverBudgetIsDelayed() {
+        QueryBudget budget = budget(BudgetPolicy.DELAY);
+
+        assertEquals(0, budget.admit("a", planet, null, true).getDelayNanos());
+        assertEquals(TimeUnit.SECONDS.toNanos(2), budget.admit("a", planet, null, true).getDelayNanos());
+        assertTrue(budget.admit("a", planet, null, true).isRejected());
+        assertEquals(1, budget.delayedCount());
+    }
+
+    @Test
+    public void testQueryOverBudgetIsLimitedToPage() {
+        QueryBudget budget = budget(BudgetPolicy.PAGINATE);
+
+        QueryBudget.Admission all = budget.admit("a", planet, null, true);
+        assertNull(all.getLimit());
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        QueryBudget.Admission page = budget.admit("a", planet, null, true);
+        assertFalse(page.isRejected());
+        assertEquals(Integer.valueOf(4500), page.getLimit());
+        assertTrue(budget.admit("a", planet, null, false).isRejected());
+    }
+
+    @Test
+    public void testQueryCostingMoreThanBurstIsChargedTheBurst() {
+        QueryBudget budget = budget(BudgetPolicy.REJECT);
+        budget.setLimits("small", 5500, 5500);
+
+        QueryBudget.Admission admitted = budget.admit("small", planet, null, true);
+        assertFalse(admitted.isRejected());
+        assertEquals(5500, admitted.getCost());
+        QueryBudget.Admission rejected = budget.admit("small", planet, null, true);
+        assertTrue(rejected.isRejected());
+        assertEquals(TimeUnit.SECONDS.toNanos(1), rejected.getRetryAfterNanos());
+    }
+
+    @Test
+    public void testChargeAfterQueryDrawsOnBudget() {
+        QueryBudget budget = budget(BudgetPolicy.REJECT);
+        budget.charge("a", 11000);
+
+        assertTrue(budget.admit("a", 1).isRejected());
+    }
+
+    /** A budget of 11000 refilled at 5500 per second */
+    private QueryBudget budget(BudgetPolicy policy) {
+        return new QueryBudget(policy, 5500, 11000, Duration.ofSeconds(2), 100, 100, clock::get);
+    }
+
+}
@@ -0,0 +1,60 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryDeadlineTest {
+
+    @Test
+    public void testCheckPassesBeforeDeadline() {
+        QueryDeadline deadline = QueryDeadline.after(Duration.ofMinutes(1));
+        deadline.check();
+        assertFalse(deadline.isPassed());
+    }
+
+    @Test(expected = QueryCancelledException.class)
+    public void testCheckFailsAfterDeadline() {
+        QueryDeadline.after(Duration.ZERO).check();
+    }
+
+    @Test(expected = QueryCancelledException.class)
+    public void testCheckFailsWhenCancelled() {
+        QueryDeadline deadline = QueryDeadline.after(Duration.ofMinutes(1));
+        deadline.cancel();
+        assertTrue(deadline.isPassed());
+        deadline.checkPeriodically();
+    }
+
+    @Test
+    public void testGuardStopsScanOnceDeadlineHasPassed() {
+        QueryDeadline deadline = QueryDeadline.after(Duration.ZERO);
+        Predicate<Integer> guarded = deadline.guard(i -> true);
+        try {
+            IntStream.range(0, 1000).boxed().filter(guarded).count();
+            fail();
+        } catch (QueryCancelledException expected) {
+        }
+    }
+
+}
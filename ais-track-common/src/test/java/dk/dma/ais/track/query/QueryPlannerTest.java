@@ -0,0 +1,154 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import com.google.common.collect.Sets;
+import dk.dma.ais.track.index.RowBitmap;
+import dk.dma.ais.track.index.TargetColumns;
+import dk.dma.ais.track.index.TargetGridIndex;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Area;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static dk.dma.ais.track.query.QueryPlan.Strategy.COLUMN_SCAN;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.FULL_SCAN;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.INDEX_LOOKUP;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.MMSI_AND_INDEX_LOOKUP;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.MMSI_LOOKUP;
+import static dk.dma.ais.track.query.QueryPlan.Strategy.SOURCE_LOOKUP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+public class QueryPlannerTest {
+
+    private final Set<Area> harbour = Sets.newHashSet(BoundingBox.create(Position.create(55.6, 12.5), Position.create(55.7, 12.7), CoordinateSystem.CARTESIAN));
+    private final Set<Area> balticSea = Sets.newHashSet(BoundingBox.create(Position.create(53.0, 10.0), Position.create(60.0, 30.0), CoordinateSystem.CARTESIAN));
+
+    private TargetTracker tracker;
+    private TargetGridIndex index;
+    private QueryPlanner planner;
+
+    @Before
+    public void setUp() {
+        tracker = Mockito.mock(TargetTracker.class);
+        when(tracker.size()).thenReturn(100000);
+
+        index = Mockito.mock(TargetGridIndex.class);
+        when(index.estimate(Sets.newHashSet())).thenReturn(-1);
+        when(index.estimate(harbour)).thenReturn(200);
+        when(index.candidates(harbour)).thenReturn(Sets.newHashSet(219000003, 219000004));
+        when(index.estimate(balticSea)).thenReturn(20000);
+        when(index.candidates(balticSea)).thenReturn(Sets.newHashSet(219000003, 219000004, 219000005));
+
+        planner = new QueryPlanner(tracker, index);
+    }
+
+    @Test
+    public void testNoRestrictionIsFullScan() {
+        QueryPlan plan = planner.plan(new TargetQuery(null, null, null, null, null));
+        assertEquals(FULL_SCAN, plan.getStrategy());
+        assertNull(plan.getCandidates());
+        assertEquals(100000, plan.getCost());
+    }
+
+    @Test
+    public void testMmsiOnlyIsLookup() {
+        QueryPlan plan = planner.plan(new TargetQuery(Sets.newHashSet(219000001, 219000002), null, null, null, null));
+        assertEquals(MMSI_LOOKUP, plan.getStrategy());
+        assertEquals(Sets.newHashSet(219000001, 219000002), plan.getCandidates());
+    }
+
+    @Test
+    public void testAreaAndBaseAreaUsesSmallestEstimate() {
+        QueryPlan plan = planner.plan(new TargetQuery(null, balticSea, harbour, null, null));
+        assertEquals(INDEX_LOOKUP, plan.getStrategy());
+        assertEquals(Sets.newHashSet(219000003, 219000004), plan.getCandidates());
+
+        plan = planner.plan(new TargetQuery(null, harbour, balticSea, null, null));
+        assertEquals(INDEX_LOOKUP, plan.getStrategy());
+        assertEquals(Sets.newHashSet(219000003, 219000004), plan.getCandidates());
+    }
+
+    @Test
+    public void testMmsiAndAreaCombinesCandidates() {
+        QueryPlan plan = planner.plan(new TargetQuery(Sets.newHashSet(219000001), null, harbour, "s.country = DK", src -> true));
+        assertEquals(MMSI_AND_INDEX_LOOKUP, plan.getStrategy());
+        assertEquals(Sets.newHashSet(219000001, 219000003, 219000004), plan.getCandidates());
+        assertTrue(plan.explain().contains("source filter 's.country = DK'"));
+    }
+
+    @Test
+    public void testEstimateWithoutCollectingCandidates() {
+        QueryEstimate lookup = planner.estimate(new TargetQuery(Sets.newHashSet(219000001, 219000002), null, null, null, null));
+        assertTrue(lookup.isLookup());
+        assertEquals(2, lookup.getVisits());
+
+        QueryEstimate areas = planner.estimate(new TargetQuery(Sets.newHashSet(219000001), balticSea, harbour, null, null));
+        assertFalse(areas.isLookup());
+        assertEquals(201, areas.getVisits());
+        assertEquals(100000, planner.estimate(new TargetQuery(null, null, null, "s.country = DK", src -> true)).getVisits());
+        Mockito.verify(index, Mockito.never()).candidates(Mockito.any());
+    }
+
+    @Test
+    public void testLargeEstimateIsFullScan() {
+        when(index.estimate(balticSea)).thenReturn(60000);
+        QueryPlan plan = planner.plan(new TargetQuery(null, null, balticSea, null, null));
+        assertEquals(FULL_SCAN, plan.getStrategy());
+    }
+
+    @Test
+    public void testSourceFilterOnlyLooksUpTargetsFromMatchingSources() {
+        TargetColumns columns = Mockito.mock(TargetColumns.class);
+        RowBitmap rows = new RowBitmap();
+        rows.add(3);
+        rows.add(4);
+        when(columns.rowsFrom(any(Predicate.class))).thenReturn(rows);
+        when(columns.select(rows, null)).thenReturn(Sets.newHashSet(219000003, 219000004));
+        planner = new QueryPlanner(tracker, index, columns);
+
+        QueryPlan plan = planner.plan(new TargetQuery(null, null, null, "s.country = DK", src -> true));
+        assertEquals(SOURCE_LOOKUP, plan.getStrategy());
+        assertEquals(Sets.newHashSet(219000003, 219000004), plan.getCandidates());
+
+        assertEquals(FULL_SCAN, planner.plan(new TargetQuery(null, null, null, null, null)).getStrategy());
+        IntStream.range(0, 60000).forEach(rows::add);
+        assertEquals(FULL_SCAN, planner.plan(new TargetQuery(null, null, null, "s.country = DK", src -> true)).getStrategy());
+    }
+
+    @Test
+    public void testLargeEstimateScansColumns() {
+        TargetColumns columns = Mockito.mock(TargetColumns.class);
+        when(columns.select(any(TargetColumns.RowFilter.class))).thenReturn(Sets.newHashSet(219000003, 219000005));
+        when(index.estimate(balticSea)).thenReturn(60000);
+
+        QueryPlan plan = new QueryPlanner(tracker, index, columns).plan(new TargetQuery(Sets.newHashSet(219000001), null, balticSea, null, null));
+        assertEquals(COLUMN_SCAN, plan.getStrategy());
+        assertEquals(Sets.newHashSet(219000001, 219000003, 219000005), plan.getCandidates());
+    }
+}
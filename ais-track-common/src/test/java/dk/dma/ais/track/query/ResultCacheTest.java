@@ -0,0 +1,136 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ResultCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testResultIsReusedWhileEpochIsUnchanged() {
+        ResultCache cache = new ResultCache(1000, Duration.ZERO, clock::get);
+        AtomicInteger produced = new AtomicInteger();
+
+        ResultCache.Result r1 = cache.get("q", 1, () -> bytes("r" + produced.incrementAndGet()));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        ResultCache.Result r2 = cache.get("q", 1, () -> bytes("r" + produced.incrementAndGet()));
+        ResultCache.Result r3 = cache.get("q", 2, () -> bytes("r" + produced.incrementAndGet()));
+
+        assertSame(r1, r2);
+        assertArrayEquals(bytes("r2"), r3.getBody());
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    public void testResultIsReusedWithinStaleness() {
+        ResultCache cache = new ResultCache(1000, Duration.ofSeconds(2), clock::get);
+
+        ResultCache.Result r1 = cache.get("q", 1, () -> bytes("r1"));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        ResultCache.Result r2 = cache.get("q", 5, () -> bytes("r2"));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        ResultCache.Result r3 = cache.get("q", 5, () -> bytes("r3"));
+
+        assertSame(r1, r2);
+        assertArrayEquals(bytes("r3"), r3.getBody());
+    }
+
+    @Test
+    public void testValidResultIsPeekedWithoutProducing() {
+        ResultCache cache = new ResultCache(1000, Duration.ZERO, clock::get);
+
+        assertNull(cache.getIfValid("q", 1));
+        ResultCache.Result r1 = cache.get("q", 1, () -> bytes("r1"));
+        assertSame(r1, cache.getIfValid("q", 1));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(cache.getIfValid("q", 2));
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        ResultCache cache = new ResultCache(1000, Duration.ZERO, clock::get);
+        CountDownLatch producing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ResultCache.Result> first = executor.submit(() -> cache.get("q", 1, () -> {
+                producing.countDown();
+                await(release);
+                return bytes("r1");
+            }));
+            producing.await();
+            Future<ResultCache.Result> second = executor.submit(() -> cache.get("q", 2, () -> bytes("r2")));
+            while (cache.coalescedCount() == 0)
+                Thread.sleep(1);
+            release.countDown();
+
+            assertSame(first.get(), second.get());
+            assertEquals(1, cache.missCount());
+            assertEquals(1, cache.coalescedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGzippedBody() throws Exception {
+        ResultCache cache = new ResultCache(1000, Duration.ZERO, clock::get);
+        ResultCache.Result result = cache.get("q", 1, () -> bytes("[{\"mmsi\":219000001}]"));
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(result.getGzippedBody()))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            for (int n; (n = in.read(buffer)) > 0; )
+                out.write(buffer, 0, n);
+            assertArrayEquals(result.getBody(), out.toByteArray());
+        }
+        assertSame(result.getGzippedBody(), result.getGzippedBody());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.enav.model.Country;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+public class SourceFilterCacheTest {
+
+    @Test
+    public void testNormalize() {
+        assertEquals("s.country in (DK, NO)", SourceFilterCache.normalize("  s.country  in\t(DK,   NO) "));
+        assertEquals("s.id = 'AIS  W'", SourceFilterCache.normalize("s.id  =  'AIS  W'"));
+    }
+
+    @Test
+    public void testEquivalentExpressionsShareCompiledPredicate() {
+        SourceFilterCache cache = new SourceFilterCache(10, 100);
+
+        Predicate<AisPacketSource> p1 = cache.get("s.country in (DK, NO)");
+        Predicate<AisPacketSource> p2 = cache.get(" s.country in  (DK, NO)");
+
+        assertSame(p1, p2);
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.stats().missCount());
+        assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testResultIsRememberedPerSource() {
+        SourceFilterCache cache = new SourceFilterCache(10, 100);
+        Predicate<AisPacketSource> predicate = cache.get("s.country in (DK, NO)");
+
+        AisPacketSource danish = Mockito.mock(AisPacketSource.class);
+        when(danish.getSourceCountry()).thenReturn(Country.getByCode("DK"));
+        AisPacketSource swedish = Mockito.mock(AisPacketSource.class);
+        when(swedish.getSourceCountry()).thenReturn(Country.getByCode("SE"));
+
+        assertTrue(predicate.test(danish));
+        assertTrue(predicate.test(danish));
+        assertFalse(predicate.test(swedish));
+        assertFalse(predicate.test(swedish));
+
+        assertEquals(2, cache.sourceMissCount());
+        assertEquals(2, cache.sourceHitCount());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnparsableExpression() {
+        new SourceFilterCache(10, 100).get("s.country in (");
+    }
+
+}
@@ -0,0 +1,73 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.query;
+
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+
+public class TargetPageTest {
+
+    private final List<TargetInfo> targets = IntStream.of(219000005, 219000001, 219000004, 219000002, 219000003)
+        .mapToObj(TargetPageTest::target)
+        .collect(Collectors.toList());
+
+    @Test
+    public void testPagesInMmsiOrder() {
+        TargetPage page = TargetPage.of(targets.stream(), null, 2);
+        assertEquals(Arrays.asList(219000001, 219000002), mmsis(page));
+        assertEquals(Integer.valueOf(219000002), page.getNextCursor());
+
+        page = TargetPage.of(targets.stream(), page.getNextCursor(), 2);
+        assertEquals(Arrays.asList(219000003, 219000004), mmsis(page));
+        assertEquals(Integer.valueOf(219000004), page.getNextCursor());
+
+        page = TargetPage.of(targets.stream(), page.getNextCursor(), 2);
+        assertEquals(Arrays.asList(219000005), mmsis(page));
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void testExactlyFullLastPageHasNoNextCursor() {
+        TargetPage page = TargetPage.of(targets.stream(), 219000003, 2);
+        assertEquals(Arrays.asList(219000004, 219000005), mmsis(page));
+        assertNull(page.getNextCursor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLimitMustBePositive() {
+        TargetPage.of(Stream.empty(), null, 0);
+    }
+
+    private static List<Integer> mmsis(TargetPage page) {
+        return page.getTargets().stream().map(TargetInfo::getMmsi).collect(Collectors.toList());
+    }
+
+    private static TargetInfo target(int mmsi) {
+        TargetInfo targetInfo = Mockito.mock(TargetInfo.class);
+        when(targetInfo.getMmsi()).thenReturn(mmsi);
+        return targetInfo;
+    }
+}
@@ -0,0 +1,160 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.replication;
+
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerAccess;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeStreamTest {
+
+    private TargetTracker leader;
+    private TargetTracker replica;
+    private ChangeStreamServer server;
+    private ChangeStreamClient client;
+    private final Map<Integer, Set<AisPacketSource>> changed = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        leader = new TargetTracker();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 2000; i++) {
+            for (int baseStation : Arrays.asList(2190047, 2190048))
+                leader.update(positionReport(219000000 + i, 54.0 + i % 100 * 0.01, 10.0 + i / 100 * 0.01, now - i * 1000L, baseStation));
+        }
+        replica = new TargetTracker();
+        replica.update(positionReport(211000000, 55.0, 11.0, now, 2190047)); // Not tracked by the leader
+
+        server = new ChangeStreamServer(leader, 0, 10, () -> 7);
+        server.start();
+        client = new ChangeStreamClient(replica, "localhost", server.getPort(), Duration.ofMillis(200), changed::put);
+        client.start();
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testReplicaCatchesUpFromSnapshot() {
+        await(client::isSynced);
+
+        assertEquals(1, server.size());
+        assertEquals(7, client.getLeaderHighWaterMark());
+        assertEquals(1, client.resyncCount());
+        assertEquals(leader.size(), replica.size());
+        assertNull(replica.get(211000000));
+        leader.stream().forEach(expected -> {
+            TargetInfo actual = replica.get(expected.getMmsi());
+            assertEquals(expected.getPosition(), actual.getPosition());
+            assertEquals(expected.getPositionTimestamp(), actual.getPositionTimestamp());
+            assertEquals(leader.getPacketSourcesForMMSI(expected.getMmsi()), replica.getPacketSourcesForMMSI(expected.getMmsi()));
+        });
+        assertTrue(changed.containsKey(219000000));
+        assertTrue(changed.containsKey(211000000));
+    }
+
+    @Test
+    public void testChangesAndRemovalsAreReplicated() {
+        await(client::isSynced);
+        changed.clear();
+
+        leader.update(positionReport(219000001, 56.5, 12.5, System.currentTimeMillis() + 1000, 2190049));
+        TargetTrackerAccess.replace(leader, 219000002, Collections.emptyMap());
+        server.publish(Arrays.asList(219000001, 219000002), 42);
+        await(() -> client.getLeaderHighWaterMark() == 42);
+
+        assertEquals(Position.create(56.5, 12.5), replica.get(219000001).getPosition());
+        assertEquals(3, replica.getPacketSourcesForMMSI(219000001).size());
+        assertNull(replica.get(219000002));
+        assertEquals(leader.size(), replica.size());
+        assertEquals(3, changed.get(219000001).size());
+        assertEquals(2, changed.get(219000002).size());
+        assertTrue(client.getLagMillis() >= 0);
+        assertEquals(2, server.publishedCount());
+    }
+
+    @Test
+    public void testReplicaResynchronizesAfterDisconnect() {
+        await(client::isSynced);
+
+        server.closeAll("Test");
+        await(() -> client.resyncCount() == 2 && client.isSynced());
+        assertEquals(leader.size(), replica.size());
+        assertEquals(1, server.disconnectedCount());
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static AisPacket positionReport(int mmsi, double lat, double lon, long timestamp, int baseStation) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(lat, lon)));
+        message.setSog(mmsi % 200);
+        message.setCog(mmsi % 3600);
+        message.setTrueHeading(mmsi % 360);
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date(timestamp));
+        tags.setSourceBs(baseStation);
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
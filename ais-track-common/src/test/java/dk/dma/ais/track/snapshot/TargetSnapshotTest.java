@@ -0,0 +1,167 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.snapshot;
+
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.ais.tracker.targetTracker.TargetTrackerFileBackupService;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TargetSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        TargetTracker tracker = tracker(20000);
+        Path file = folder.getRoot().toPath().resolve("targets.snapshot");
+
+        assertEquals(20000, TargetSnapshot.write(tracker, file));
+        assertTrue(Files.size(file) > (1 << 20)); // More than one segment
+
+        TargetTracker restored = new TargetTracker();
+        assertEquals(20000, TargetSnapshot.read(file, restored, 4));
+        assertSameTargets(tracker, restored);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedSnapshotIsRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("targets.snapshot");
+        TargetSnapshot.write(tracker(100), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        TargetSnapshot.read(file, new TargetTracker(), 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersionIsRejected() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("targets.snapshot");
+        TargetSnapshot.write(tracker(100), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4);
+            raf.writeInt(TargetSnapshot.VERSION + 1);
+        }
+        TargetSnapshot.read(file, new TargetTracker(), 1);
+    }
+
+    @Test
+    public void testServiceMigratesFileBackup() throws Exception {
+        Path path = folder.getRoot().toPath();
+        TargetTracker tracker = tracker(100);
+        new FileBackup(tracker, path).backup();
+
+        TargetTracker restored = new TargetTracker();
+        TargetSnapshotService service = new TargetSnapshotService(restored, path, Duration.ofMinutes(1), 2);
+        service.restore();
+        assertSameTargets(tracker, restored);
+
+        service.snapshot();
+        assertTrue(Files.exists(service.getSnapshotFile()));
+        assertFalse(Files.list(path).anyMatch(f -> f.getFileName().toString().startsWith(TargetSnapshotService.FILE_BACKUP_PREFIX)));
+
+        TargetTracker restoredAgain = new TargetTracker();
+        new TargetSnapshotService(restoredAgain, path, Duration.ofMinutes(1), 2).restore();
+        assertSameTargets(tracker, restoredAgain);
+    }
+
+    private static void assertSameTargets(TargetTracker expected, TargetTracker actual) {
+        assertEquals(expected.size(), actual.size());
+        expected.stream().forEach(e -> {
+            TargetInfo a = actual.get(e.getMmsi());
+            assertEquals(e.getPacketSource(), a.getPacketSource());
+            assertEquals(e.getTargetType(), a.getTargetType());
+            assertEquals(e.getPositionTimestamp(), a.getPositionTimestamp());
+            assertEquals(e.getPosition(), a.getPosition());
+            assertEquals(e.getCog(), a.getCog(), 0.0);
+            assertEquals(e.getSog(), a.getSog(), 0.0);
+            assertEquals(e.getHeading(), a.getHeading());
+            assertEquals(e.getNavStatus(), a.getNavStatus());
+            assertEquals(e.getStaticTimestamp(), a.getStaticTimestamp());
+            assertEquals(e.getPositionPacket().getStringMessage(), a.getPositionPacket().getStringMessage());
+            assertArrayEquals(e.getStaticPackets(), a.getStaticPackets());
+            assertEquals(expected.getPacketSourcesForMMSI(e.getMmsi()), actual.getPacketSourcesForMMSI(e.getMmsi()));
+        });
+    }
+
+    /** A tracker with n targets, each reported by two sources */
+    private static TargetTracker tracker(int n) {
+        TargetTracker tracker = new TargetTracker();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            for (int baseStation : Arrays.asList(2190047, 2190048))
+                tracker.update(positionReport(219000000 + i, 54.0 + i % 100 * 0.01, 10.0 + i / 100 * 0.01, now - i * 1000L - baseStation % 2 * 500L, baseStation));
+        }
+        return tracker;
+    }
+
+    private static AisPacket positionReport(int mmsi, double lat, double lon, long timestamp, int baseStation) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(lat, lon)));
+        message.setSog(mmsi % 200);
+        message.setCog(mmsi % 3600);
+        message.setTrueHeading(mmsi % 360);
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date(timestamp));
+        tags.setSourceBs(baseStation);
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Writes a backup in the format of earlier versions */
+    private static final class FileBackup extends TargetTrackerFileBackupService {
+        FileBackup(TargetTracker tracker, Path folder) {
+            super(tracker, folder);
+        }
+
+        void backup() throws Exception {
+            startUp();
+            runOneIteration();
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.subscription;
+
+import com.google.common.collect.Sets;
+import dk.dma.ais.packet.AisPacketSource;
+import dk.dma.ais.track.index.TargetGridIndex;
+import dk.dma.ais.track.query.TargetQuery;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.BoundingBox;
+import dk.dma.enav.model.geometry.CoordinateSystem;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+public class SubscriptionRegistryTest {
+
+    private TargetTracker tracker;
+    private TargetGridIndex index;
+    private AisPacketSource source;
+    private SubscriptionRegistry registry;
+
+    @Before
+    public void setUp() {
+        tracker = Mockito.mock(TargetTracker.class);
+        index = new TargetGridIndex(tracker, 1.0);
+        source = Mockito.mock(AisPacketSource.class);
+        registry = new SubscriptionRegistry(index, tracker::get, 3);
+    }
+
+    @Test
+    public void testMmsiSubscriptionIsOnlySentItsTargets() {
+        report(219000001, 55.5, 11.5);
+        report(219000002, 55.5, 11.5);
+        RecordingSink sink = new RecordingSink();
+        Subscription subscription = subscribe(new TargetQuery(Sets.newHashSet(219000001), null, null, null, null), sink);
+
+        List<Subscription> offered = registry.dispatch(Arrays.asList(219000001, 219000002, 219000001));
+        assertEquals(Collections.singletonList(subscription), offered);
+        registry.flush(subscription);
+
+        assertEquals(Arrays.asList("snapshot [219000001]", "update [219000001] removed []"), sink.events);
+        assertTrue(registry.dispatch(Collections.singleton(219000002)).isEmpty());
+    }
+
+    @Test
+    public void testAreaSubscriptionIsToldWhenTargetLeaves() {
+        report(219000001, 55.5, 11.5);
+        RecordingSink sink = new RecordingSink();
+        Subscription subscription = subscribe(new TargetQuery(null, null, Sets.newHashSet(box(55.0, 11.0, 56.0, 12.0)), null, null), sink);
+
+        report(219000001, 20.5, 105.5);
+        registry.dispatch(Collections.singleton(219000001));
+        registry.flush(subscription);
+
+        assertEquals(Arrays.asList("snapshot [219000001]", "update [] removed [219000001]"), sink.events);
+        assertTrue(registry.dispatch(Collections.singleton(219000001)).isEmpty());
+    }
+
+    @Test
+    public void testChangesDispatchedDuringSnapshotAreSentAfterIt() {
+        report(219000001, 55.5, 11.5);
+        Subscription[] subscription = new Subscription[1];
+        RecordingSink sink = new RecordingSink() {
+            @Override
+            public void snapshot(Collection<TargetInfo> targets) {
+                super.snapshot(targets);
+                // The flush of a change published while the snapshot is sent returns at once
+                registry.dispatch(Collections.singleton(219000001)).forEach(registry::flush);
+            }
+        };
+        subscription[0] = subscribe(new TargetQuery(Sets.newHashSet(219000001), null, null, null, null), sink);
+
+        assertEquals(Arrays.asList("snapshot [219000001]", "update [219000001] removed []"), sink.events);
+        assertEquals(0, subscription[0].pending());
+    }
+
+    @Test
+    public void testChangesDispatchedDuringFlushAreSentAfterIt() {
+        report(219000001, 55.5, 11.5);
+        report(219000002, 55.5, 11.5);
+        boolean[] dispatched = new boolean[1];
+        RecordingSink sink = new RecordingSink() {
+            @Override
+            public void update(Collection<TargetInfo> targets, Collection<Integer> removed) {
+                super.update(targets, removed);
+                // The flush of a change published while an update is sent loses to the running flush
+                if (!dispatched[0]) {
+                    dispatched[0] = true;
+                    registry.dispatch(Collections.singleton(219000002)).forEach(registry::flush);
+                }
+            }
+        };
+        Subscription subscription = subscribe(new TargetQuery(Sets.newHashSet(219000001, 219000002), null, null, null, null), sink);
+
+        registry.dispatch(Collections.singleton(219000001));
+        registry.flush(subscription);
+
+        assertEquals(Arrays.asList("snapshot [219000001, 219000002]", "update [219000001] removed []", "update [219000002] removed []"), sink.events);
+    }
+
+    @Test
+    public void testSlowSubscriberIsDisconnected() {
+        RecordingSink sink = new RecordingSink();
+        Subscription subscription = subscribe(new TargetQuery(null, null, null, null, null), sink);
+
+        registry.dispatch(Arrays.asList(219000001, 219000002, 219000003));
+        assertEquals(3, subscription.pending());
+        List<Subscription> offered = registry.dispatch(Collections.singleton(219000004));
+
+        assertTrue(offered.isEmpty());
+        assertTrue(subscription.isClosed());
+        assertTrue(sink.closeReason.startsWith("Subscriber too slow"));
+        assertEquals(0, registry.size());
+        assertEquals(1, registry.disconnectedCount());
+    }
+
+    @Test
+    public void testUnsubscribedIsNotOffered() {
+        RecordingSink sink = new RecordingSink();
+        Subscription subscription = subscribe(new TargetQuery(null, null, null, null, null), sink);
+        registry.unsubscribe(subscription);
+
+        assertTrue(registry.dispatch(Collections.singleton(219000001)).isEmpty());
+        assertTrue(sink.closed);
+        assertNull(sink.closeReason);
+        assertEquals(0, registry.disconnectedCount());
+    }
+
+    private Subscription subscribe(TargetQuery query, SubscriptionSink sink) {
+        Subscription subscription = registry.subscribe(query, sink);
+        List<TargetInfo> snapshot = new ArrayList<>();
+        index.candidates(Collections.singleton(box(-89.0, -179.0, 89.0, 179.0))).forEach(mmsi -> {
+            TargetInfo target = tracker.get(mmsi, query.getSourceFilter());
+            if (query.getTargetFilter().test(target))
+                snapshot.add(target);
+        });
+        registry.start(subscription, snapshot);
+        return subscription;
+    }
+
+    private void report(int mmsi, double lat, double lon) {
+        TargetInfo targetInfo = Mockito.mock(TargetInfo.class);
+        when(targetInfo.getMmsi()).thenReturn(mmsi);
+        when(targetInfo.getPosition()).thenReturn(Position.create(lat, lon));
+        when(tracker.get(eq(mmsi), any(Predicate.class))).thenReturn(targetInfo);
+        index.reindex(mmsi, source);
+    }
+
+    private static BoundingBox box(double lat1, double lon1, double lat2, double lon2) {
+        return BoundingBox.create(Position.create(lat1, lon1), Position.create(lat2, lon2), CoordinateSystem.CARTESIAN);
+    }
+
+    private static class RecordingSink implements SubscriptionSink {
+        final List<String> events = new ArrayList<>();
+        boolean closed;
+        String closeReason;
+
+        @Override
+        public void snapshot(Collection<TargetInfo> targets) {
+            events.add("snapshot " + mmsis(targets));
+        }
+
+        @Override
+        public void update(Collection<TargetInfo> targets, Collection<Integer> removed) {
+            events.add("update " + mmsis(targets) + " removed " + removed);
+        }
+
+        @Override
+        public void close(String reason) {
+            closed = true;
+            closeReason = reason;
+        }
+
+        private static List<Integer> mmsis(Collection<TargetInfo> targets) {
+            return targets.stream().map(TargetInfo::getMmsi).sorted().collect(Collectors.toList());
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.coordinator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Sends requests to the tracker nodes of a sharded deployment in parallel. Shard i is the node
+ * tracking MmsiPartition i of n, where n is the number of shards; each is given by the base URL
+ * of its REST API, e.g. http://localhost:8081/ais-track.
+ *
+ * All responses to one request must arrive within the shard timeout; shards which fail or do not
+ * answer in time are reported as failed, so the caller can return a partial result.
+ */
+@ThreadSafe
+public class ShardClient implements AutoCloseable {
+
+    static final Logger LOG = LoggerFactory.getLogger(ShardClient.class);
+
+    private final List<String> shards;
+    private final Duration timeout;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("shard-client-%d").setDaemon(true).build());
+
+    public ShardClient(List<String> shards, Duration timeout) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("No shards");
+        this.shards = ImmutableList.copyOf(shards);
+        this.timeout = timeout;
+    }
+
+    public int numberOfShards() {
+        return shards.size();
+    }
+
+    /** @return the base URL of shard */
+    public String getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * GET path relative to the base URL of each of the given shards, accepting the media types in accept.
+     * @return the responses in the order of shards; failed for shards not answering within the timeout
+     */
+    public List<ShardResponse> get(Collection<Integer> shards, String path, String accept) {
+        return get(shards, path, accept, Collections.emptyMap());
+    }
+
+    /**
+     * GET path relative to the base URL of each of the given shards, accepting the media types in accept and
+     * sending headers; e.g. to identify the client the request is made for.
+     * @return the responses in the order of shards; failed for shards not answering within the timeout
+     */
+    public List<ShardResponse> get(Collection<Integer> shards, String path, String accept, Map<String, String> headers) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Map<Integer, Future<ShardResponse>> requests = new LinkedHashMap<>();
+        shards.forEach(shard -> requests.put(shard, executor.submit(() -> request(shard, path, accept, headers))));
+
+        List<ShardResponse> responses = new ArrayList<>(requests.size());
+        requests.forEach((shard, request) -> {
+            try {
+                responses.add(request.get(Math.max(0, deadline - System.nanoTime()), NANOSECONDS));
+            } catch (TimeoutException e) {
+                request.cancel(true);
+                responses.add(ShardResponse.failed(shard, "No response within " + timeout));
+            } catch (ExecutionException e) {
+                responses.add(ShardResponse.failed(shard, String.valueOf(e.getCause())));
+            } catch (InterruptedException e) {
+                request.cancel(true);
+                Thread.currentThread().interrupt();
+                responses.add(ShardResponse.failed(shard, "Interrupted"));
+            }
+        });
+        responses.stream().filter(ShardResponse::isFailed).forEach(response -> LOG.warn("GET {}{} failed: {}", getShard(response.getShard()), path, response));
+        return responses;
+    }
+
+    private ShardResponse request(int shard, String path, String accept, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(getShard(shard) + path).openConnection();
+        int timeoutMillis = (int) Math.max(1, timeout.toMillis());
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setRequestProperty("Accept", accept);
+        headers.forEach(connection::setRequestProperty);
+        try {
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                byte[] body = in == null ? new byte[0] : ByteStreams.toByteArray(in);
+                return ShardResponse.of(shard, status, connection.getContentType(), body);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
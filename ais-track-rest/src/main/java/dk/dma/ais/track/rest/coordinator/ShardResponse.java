@@ -0,0 +1,94 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.coordinator;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The response of one shard to a request of the ShardClient; either an HTTP status with a body, or
+ * the reason no response was received in time.
+ */
+@Immutable
+public final class ShardResponse {
+
+    private final int shard;
+    private final int status;
+    private final String contentType;
+    private final byte[] body;
+    private final String failure;
+
+    private ShardResponse(int shard, int status, String contentType, byte[] body, String failure) {
+        this.shard = shard;
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+        this.failure = failure;
+    }
+
+    static ShardResponse of(int shard, int status, String contentType, byte[] body) {
+        return new ShardResponse(shard, status, contentType, body, null);
+    }
+
+    static ShardResponse failed(int shard, String failure) {
+        return new ShardResponse(shard, 0, null, new byte[0], failure);
+    }
+
+    /** @return the index of the shard in the list of shards */
+    public int getShard() {
+        return shard;
+    }
+
+    /** @return the HTTP status of the response; 0 if failed */
+    public int getStatus() {
+        return status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /** @return why no response was received; null if one was */
+    public String getFailure() {
+        return failure;
+    }
+
+    /** @return true if no response was received in time */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /** @return true if the shard answered 200 OK */
+    public boolean isOk() {
+        return status == 200;
+    }
+
+    /**
+     * @return true if the shard answered 400 Bad Request or 404 Not Found, which every shard would answer;
+     * unlike e.g. 429 Too Many Requests or 503 Service Unavailable, which only mean this shard could not answer
+     */
+    public boolean isClientError() {
+        return status == 400 || status == 404;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + shard + ": " + (isFailed() ? failure : "HTTP " + status);
+    }
+
+}
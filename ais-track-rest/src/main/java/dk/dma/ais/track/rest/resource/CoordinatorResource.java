@@ -0,0 +1,296 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.dma.ais.track.rest.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import dk.dma.ais.track.MmsiPartition;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.rest.coordinator.ShardClient;
+import dk.dma.ais.track.rest.coordinator.ShardResponse;
+import dk.dma.ais.track.rest.resource.exceptions.IllegalParameterException;
+import dk.dma.ais.track.rest.resource.exceptions.ShardUnavailableException;
+import dk.dma.ais.track.rest.resource.exceptions.TargetNotFoundException;
+import dk.dma.ais.track.rest.resource.serializers.Encoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * The REST API of the coordinator of a sharded deployment, in which each tracker node tracks an
+ * MmsiPartition; enabled with dk.dma.ais.track.mode = coordinator instead of TrackResource.
+ *
+ * The coordinator tracks nothing itself. /track/{mmsi} is forwarded to the shard owning the MMSI;
+ * /tracks to all shards - or only those owning the MMSIs asked for - in parallel, and the targets
+ * they return are merged into one array.
+ *
+ * The API key of the client is forwarded to the shards, and its address appended to X-Forwarded-For,
+ * so shards trusting the coordinator charge queries to the budget of the client; see TrackResource.
+ */
+@RestController
+@RequestMapping(value="ais-track")
+@ConditionalOnProperty(prefix = "dk.dma.ais.track", name = "mode", havingValue = "coordinator")
+public class CoordinatorResource {
+
+    static final Logger LOG = LoggerFactory.getLogger(CoordinatorResource.class);
+
+    /** Response header set to true if some shards did not answer, so targets may be missing */
+    static final String PARTIAL_RESULT_HEADER = "X-Partial-Result";
+
+    /** Response header holding the comma separated indexes of the shards which did not answer */
+    static final String FAILED_SHARDS_HEADER = "X-Failed-Shards";
+
+    /** The media type shards are asked to answer /tracks in */
+    private static final String SHARD_ACCEPT = MediaType.APPLICATION_JSON_VALUE + ";pretty=false";
+
+    /** Comma separated base URLs of the shards; shard i tracks MMSI partition i of n */
+    @Value("${dk.dma.ais.track.coordinator.shards:}")
+    private String shards;
+
+    /** How long to wait for the shards to answer a request */
+    @Value("${dk.dma.ais.track.coordinator.shardTimeout:PT2S}")
+    private String shardTimeout;
+
+    @Inject
+    Metrics metrics;
+
+    private ShardClient shardClient;
+
+    @PostConstruct
+    private void init() {
+        List<String> urls = Arrays.stream(shards.split(",")).map(String::trim).filter(url -> !url.isEmpty()).collect(Collectors.toList());
+        if (urls.isEmpty())
+            throw new IllegalStateException("dk.dma.ais.track.coordinator.shards must list the base URLs of the shards");
+        shardClient = new ShardClient(urls, Duration.parse(shardTimeout));
+        LOG.info("Coordinating {} shards: {}; waiting up to {} for them to answer.", urls.size(), urls, shardClient.getTimeout());
+    }
+
+    @PreDestroy
+    private void close() {
+        shardClient.close();
+    }
+
+    /** Show the shards */
+    @RequestMapping(value="/", produces = MediaType.TEXT_PLAIN_VALUE)
+    String home() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Danish Maritime Authority - AIS Tracker coordinator\n")
+          .append("---------------------------------------------------\n")
+          .append("\n");
+        for (int shard = 0; shard < shardClient.numberOfShards(); shard++)
+            sb.append("Shard ").append(new MmsiPartition(shard, shardClient.numberOfShards())).append(": ").append(shardClient.getShard(shard)).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Return the target with mmsi from the shard owning it; the same parameters as for TrackResource are accepted.
+     */
+    @RequestMapping(value = "/track/{mmsi}", produces = {MediaType.APPLICATION_JSON_VALUE, Encoding.SMILE_VALUE, Encoding.CBOR_VALUE})
+    void track(@PathVariable int mmsi,
+               @RequestHeader(value="Accept", required = false) String accept,
+               @RequestHeader(value="Accept-Encoding", required = false) String acceptEncoding,
+               HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int shard = MmsiPartition.indexOf(mmsi, shardClient.numberOfShards());
+            ShardResponse answer = shardClient.get(Collections.singleton(shard), "/track/" + mmsi + queryString(request),
+                accept == null ? MediaType.APPLICATION_JSON_VALUE : accept, forwardedHeaders(request)).get(0);
+            if (answer.isFailed()) {
+                metrics.meter("coordinator.shardFailures").mark();
+                throw new ShardUnavailableException(Collections.singleton(shard));
+            }
+            if (answer.getStatus() == HttpServletResponse.SC_NOT_FOUND)
+                throw new TargetNotFoundException(mmsi);
+            if (!answer.isOk()) {
+                response.sendError(answer.getStatus());
+                return;
+            }
+
+            response.setContentType(answer.getContentType());
+            try (OutputStream out = TrackResource.body(response, acceptEncoding)) {
+                out.write(answer.getBody());
+            }
+        } finally {
+            recordLatency("track", start);
+        }
+    }
+
+    /**
+     * Return the targets matching the parameters from all shards as one array; the parameters of TrackResource
+     * are accepted, except limit, cursor and since, as pages and high-water marks are local to each shard.
+     *
+     * The shards are asked in parallel, and the targets of those answering within the shard timeout are returned.
+     * If some shards did not answer, or answered with an error other than 400 or 404 - e.g. 429 as they are busy -
+     * X-Partial-Result is true and X-Failed-Shards lists them; if none did, the status is 503 Service Unavailable.
+     */
+    @RequestMapping(value = "/tracks", produces = {MediaType.APPLICATION_JSON_VALUE, Encoding.SMILE_VALUE, Encoding.CBOR_VALUE})
+    void tracks(@RequestParam(value="baseArea", required = false) List<String> baseAreaParams,
+                @RequestParam(value="area", required = false) List<String> areaParams,
+                @RequestParam(value="mmsi", required = false) List<String> mmsiParams,
+                @RequestParam(value="limit", required = false) Integer limit,
+                @RequestParam(value="cursor", required = false) Integer cursor,
+                @RequestParam(value="since", required = false) Long since,
+                @RequestHeader(value="Accept", required = false) String accept,
+                @RequestHeader(value="Accept-Encoding", required = false) String acceptEncoding,
+                HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (limit != null)
+                throw new IllegalParameterException("limit", limit);
+            if (cursor != null)
+                throw new IllegalParameterException("cursor", cursor);
+            if (since != null)
+                throw new IllegalParameterException("since", since);
+
+            Encoding encoding = Encoding.of(accept);
+            Set<Integer> shards = shardsFor(mmsiParams, baseAreaParams, areaParams, shardClient.numberOfShards());
+            List<ShardResponse> answers = shardClient.get(shards, "/tracks" + queryString(request), SHARD_ACCEPT, forwardedHeaders(request));
+
+            // A bad request is bad at every shard
+            ShardResponse rejected = answers.stream().filter(ShardResponse::isClientError).findFirst().orElse(null);
+            if (rejected != null) {
+                response.sendError(rejected.getStatus());
+                return;
+            }
+
+            List<Integer> failed = answers.stream().filter(answer -> !answer.isOk()).map(ShardResponse::getShard).collect(Collectors.toList());
+            if (!failed.isEmpty()) {
+                metrics.meter("coordinator.shardFailures").mark(failed.size());
+                if (failed.size() == answers.size())
+                    throw new ShardUnavailableException(failed);
+                metrics.meter("coordinator.partialResults").mark();
+                response.setHeader(PARTIAL_RESULT_HEADER, "true");
+                response.setHeader(FAILED_SHARDS_HEADER, failed.stream().map(String::valueOf).collect(Collectors.joining(",")));
+            }
+
+            int count = 0;
+            response.setContentType(encoding.getContentType());
+            try (JsonGenerator jg = encoding.createGenerator(TrackResource.body(response, acceptEncoding))) {
+                jg.writeStartArray();
+                for (ShardResponse answer : answers) {
+                    if (answer.isOk())
+                        count += copyElements(answer.getBody(), jg);
+                }
+                jg.writeEndArray();
+            }
+            metrics.histogram("query.tracks.resultSize").update(count);
+        } finally {
+            recordLatency("tracks", start);
+        }
+    }
+
+    /**
+     * Show runtime metrics of the coordinator as JSON.
+     *
+     * URL example:
+     * - http://localhost:8080/metrics
+     */
+    @RequestMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    Map<String, Object> showMetrics() {
+        return metrics.snapshot();
+    }
+
+    /** Record the latency of a request to endpoint started at start */
+    private void recordLatency(String endpoint, long start) {
+        metrics.histogram("query." + endpoint + ".latencyMicros").update(NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /** @return the headers identifying the client of request to the shards; its API key, and its address appended to X-Forwarded-For */
+    static Map<String, String> forwardedHeaders(HttpServletRequest request) {
+        Map<String, String> headers = new HashMap<>();
+        String apiKey = request.getHeader(TrackResource.API_KEY_HEADER);
+        if (apiKey != null)
+            headers.put(TrackResource.API_KEY_HEADER, apiKey);
+        String forwardedFor = request.getHeader(TrackResource.FORWARDED_FOR_HEADER);
+        headers.put(TrackResource.FORWARDED_FOR_HEADER, isBlank(forwardedFor) ? request.getRemoteAddr() : forwardedFor + ", " + request.getRemoteAddr());
+        return headers;
+    }
+
+    private static String queryString(HttpServletRequest request) {
+        return isBlank(request.getQueryString()) ? "" : "?" + request.getQueryString();
+    }
+
+    /**
+     * @return the shards which may track targets matching the mmsi, baseArea and area parameters of /tracks; only
+     * the owners of the MMSIs if MMSIs but no areas or base areas are given, as targets in them may be tracked anywhere
+     */
+    static Set<Integer> shardsFor(List<String> mmsiParams, List<String> baseAreaParams, List<String> areaParams, int numberOfShards) {
+        Set<Integer> shards = new TreeSet<>();
+        if (mmsiParams == null || mmsiParams.isEmpty() || !isEmpty(baseAreaParams) || !isEmpty(areaParams)) {
+            IntStream.range(0, numberOfShards).forEach(shards::add);
+            return shards;
+        }
+        for (String mmsi : mmsiParams) {
+            try {
+                shards.add(MmsiPartition.indexOf(Integer.parseInt(mmsi.trim()), numberOfShards));
+            } catch (NumberFormatException e) {
+                throw new IllegalParameterException("mmsi", mmsi);
+            }
+        }
+        return shards;
+    }
+
+    private static boolean isEmpty(List<String> params) {
+        return params == null || params.isEmpty();
+    }
+
+    /**
+     * Copy the elements of the JSON array in json to jg, which may write another encoding.
+     * @return the number of elements copied
+     */
+    static int copyElements(byte[] json, JsonGenerator jg) throws IOException {
+        int count = 0;
+        try (JsonParser parser = Encoding.COMPACT_JSON.getMapper().getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY)
+                throw new IOException("Expected a JSON array from shard");
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                jg.copyCurrentStructure(parser);
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
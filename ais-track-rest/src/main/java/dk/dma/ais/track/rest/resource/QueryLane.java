@@ -0,0 +1,206 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.dma.ais.track.rest.resource;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dk.dma.ais.track.metrics.Meter;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.QueryCancelledException;
+import dk.dma.ais.track.query.QueryDeadline;
+import dk.dma.ais.track.rest.resource.exceptions.QueryRejectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Executes one kind of query - e.g. point lookups or scans - asynchronously on its own bounded pool
+ * of threads, so expensive queries cannot occupy the threads of the servlet container or of cheaper
+ * queries.
+ *
+ * A query is admitted if fewer than threads + queueDepth queries of the lane are running or waiting;
+ * otherwise it is rejected with 429 Too Many Requests. An admitted query must complete within the
+ * timeout of the lane, counted from admission; if it has not started by then, or a scan checking its
+ * QueryDeadline finds it has passed, the response is 503 Service Unavailable - unless the response has
+ * already been committed, in which case it is cut short.
+ *
+ * A delayed query is only admitted when its delay has passed, so queries waiting for the budget of
+ * their client do not take the places of other queries in the lane.
+ */
+@ThreadSafe
+final class QueryLane {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryLane.class);
+
+    /** A query writing its result to the response; expected to check deadline while it runs */
+    @FunctionalInterface
+    interface Query {
+        void run(QueryDeadline deadline) throws IOException;
+    }
+
+    private final String name;
+    private final Duration timeout;
+    private final Semaphore permits;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService delayer;
+    private final Meter rejected;
+    private final Meter timedOut;
+
+    QueryLane(String name, int threads, int queueDepth, Duration timeout, Metrics metrics) {
+        this.name = name;
+        this.timeout = timeout;
+        this.permits = new Semaphore(threads + queueDepth);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("query-" + name + "-%d").setDaemon(true).build());
+        this.delayer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("query-" + name + "-delay").setDaemon(true).build());
+        this.rejected = metrics.meter("lanes." + name + ".rejected");
+        this.timedOut = metrics.meter("lanes." + name + ".timedOut");
+        metrics.gauge("lanes." + name + ".active", executor::getActiveCount);
+        metrics.gauge("lanes." + name + ".queued", () -> executor.getQueue().size());
+    }
+
+    /**
+     * Admit query and run it asynchronously; the request is completed when it is done.
+     * @throws QueryRejectedException if the lane is full
+     */
+    void execute(HttpServletRequest request, HttpServletResponse response, Query query) {
+        execute(request, response, 0, query);
+    }
+
+    /**
+     * Run query asynchronously once delayNanos have passed; e.g. until the budget of the client allows
+     * it. The query is admitted after the delay, and answered with 429 if the lane is full by then; it
+     * then waits for a thread, and its timeout counts from the end of the delay.
+     * @throws QueryRejectedException if the lane is full and delayNanos is 0
+     */
+    void execute(HttpServletRequest request, HttpServletResponse response, long delayNanos, Query query) {
+        if (delayNanos > 0) {
+            QueryDeadline deadline = QueryDeadline.after(timeout.plusNanos(delayNanos));
+            AsyncContext async = startAsync(request, deadline);
+            delayer.schedule(() -> admitDelayed(query, deadline, async, response), delayNanos, NANOSECONDS);
+            return;
+        }
+
+        if (!permits.tryAcquire()) {
+            rejected.mark();
+            throw new QueryRejectedException(name);
+        }
+        try {
+            QueryDeadline deadline = QueryDeadline.after(timeout);
+            AsyncContext async = startAsync(request, deadline);
+            executor.execute(() -> run(query, deadline, async, response));
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /** Admit a query whose delay has passed, or answer it with 429 if the lane is full */
+    private void admitDelayed(Query query, QueryDeadline deadline, AsyncContext async, HttpServletResponse response) {
+        if (!permits.tryAcquire()) {
+            rejected.mark();
+            sendError(response, HttpStatus.TOO_MANY_REQUESTS, new QueryRejectedException(name).getMessage());
+            async.complete();
+            return;
+        }
+        executor.execute(() -> run(query, deadline, async, response));
+    }
+
+    /** @return the async context of request, cancelling deadline if the container times out or fails the request */
+    private static AsyncContext startAsync(HttpServletRequest request, QueryDeadline deadline) {
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0); // The deadline is enforced by the query
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                deadline.cancel();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                deadline.cancel();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return async;
+    }
+
+    private void run(Query query, QueryDeadline deadline, AsyncContext async, HttpServletResponse response) {
+        try {
+            deadline.check(); // Passed while waiting
+            query.run(deadline);
+        } catch (QueryCancelledException e) {
+            timedOut.mark();
+            sendError(response, HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        } catch (IOException e) {
+            LOG.debug("Writing result to client failed", e);
+        } catch (Exception e) {
+            ResponseStatus status = AnnotationUtils.findAnnotation(e.getClass(), ResponseStatus.class);
+            if (status == null)
+                LOG.error("Query failed", e);
+            sendError(response, status == null ? HttpStatus.INTERNAL_SERVER_ERROR : status.value(), e.getMessage());
+        } finally {
+            permits.release();
+            async.complete();
+        }
+    }
+
+    private static void sendError(HttpServletResponse response, HttpStatus status, String message) {
+        if (response.isCommitted())
+            return;
+        try {
+            response.sendError(status.value(), message);
+        } catch (IOException e) {
+            LOG.debug("Sending error to client failed", e);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void shutdown() {
+        delayer.shutdownNow();
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,136 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package dk.dma.ais.track.rest.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import dk.dma.ais.track.rest.resource.serializers.Encoding;
+import dk.dma.ais.track.rest.resource.serializers.ProjectedTargetInfoSerializer;
+import dk.dma.ais.track.subscription.SubscriptionSink;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Sends the targets of a subscription to an asynchronous servlet response as server-sent events:
+ * a "snapshot" event with the JSON array of the matching targets, then "update" events with the
+ * changed targets and removed MMSIs, and finally a "close" event if the tracker ends the subscription.
+ */
+class TargetEventStream implements SubscriptionSink {
+
+    static final String MEDIA_TYPE = "text/event-stream";
+
+    private static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+
+    private final AsyncContext async;
+    private final Encoding encoding;
+    private final ProjectedTargetInfoSerializer projection;
+    private boolean closed;
+
+    /**
+     * @param async the response to write to
+     * @param encoding the JSON encoding of the event data
+     * @param projection the fields to write of each target; null for all
+     */
+    TargetEventStream(AsyncContext async, Encoding encoding, ProjectedTargetInfoSerializer projection) {
+        this.async = async;
+        this.encoding = encoding;
+        this.projection = projection;
+    }
+
+    @Override
+    public synchronized void snapshot(Collection<TargetInfo> targets) throws IOException {
+        event("snapshot", jg -> {
+            jg.writeStartArray();
+            for (TargetInfo target : targets)
+                TrackResource.writeTarget(jg, target, projection);
+            jg.writeEndArray();
+        });
+    }
+
+    @Override
+    public synchronized void update(Collection<TargetInfo> targets, Collection<Integer> removed) throws IOException {
+        event("update", jg -> {
+            jg.writeStartObject();
+            jg.writeArrayFieldStart("targets");
+            for (TargetInfo target : targets)
+                TrackResource.writeTarget(jg, target, projection);
+            jg.writeEndArray();
+            jg.writeArrayFieldStart("removed");
+            for (Integer mmsi : removed)
+                jg.writeNumber(mmsi);
+            jg.writeEndArray();
+            jg.writeEndObject();
+        });
+    }
+
+    @Override
+    public synchronized void close(String reason) {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            if (reason != null)
+                event("close", jg -> jg.writeString(reason));
+        } catch (IOException | UncheckedIOException e) {
+            // The subscriber is gone already
+        }
+        try {
+            async.complete();
+        } catch (IllegalStateException e) {
+            // Completed by the container already
+        }
+    }
+
+    /** Write an event with the JSON written by data; each line of the JSON is prefixed as a data line */
+    private void event(String name, JsonWriter data) throws IOException {
+        if (closed)
+            throw new IOException("Event stream closed");
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try (JsonGenerator jg = encoding.createGenerator(json)) {
+            data.write(jg);
+        }
+
+        ServletOutputStream out = async.getResponse().getOutputStream();
+        out.write(("event: " + name + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(DATA);
+        byte[] bytes = json.toByteArray();
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                out.write(bytes, start, i + 1 - start);
+                out.write(DATA);
+                start = i + 1;
+            }
+        }
+        out.write(bytes, start, bytes.length - start);
+        out.write('\n');
+        out.write('\n');
+        out.flush();
+    }
+
+    private interface JsonWriter {
+        void write(JsonGenerator jg) throws IOException;
+    }
+
+}
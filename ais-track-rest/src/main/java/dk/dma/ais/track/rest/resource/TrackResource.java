@@ -15,51 +15,225 @@
 
 package dk.dma.ais.track.rest.resource;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 import dk.dma.ais.packet.AisPacketSource;
-import dk.dma.ais.packet.AisPacketSourceFilters;
 import dk.dma.ais.track.AisTrackService;
+import dk.dma.ais.track.ingest.IngestPipeline;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.BudgetPolicy;
+import dk.dma.ais.track.query.FragmentCache;
+import dk.dma.ais.track.query.NearestTargets;
+import dk.dma.ais.track.query.QueryBudget;
+import dk.dma.ais.track.query.QueryEstimate;
+import dk.dma.ais.track.query.QueryPlan;
+import dk.dma.ais.track.query.ResultCache;
+import dk.dma.ais.track.query.SourceFilterCache;
+import dk.dma.ais.track.query.TargetDelta;
+import dk.dma.ais.track.query.TargetDistance;
+import dk.dma.ais.track.query.TargetPage;
+import dk.dma.ais.track.query.TargetQuery;
+import dk.dma.ais.track.replication.ChangeStreamClient;
+import dk.dma.ais.track.replication.ChangeStreamServer;
+import dk.dma.ais.track.rest.resource.exceptions.BudgetExceededException;
 import dk.dma.ais.track.rest.resource.exceptions.CannotParseFilterExpressionException;
+import dk.dma.ais.track.rest.resource.exceptions.IllegalParameterException;
 import dk.dma.ais.track.rest.resource.exceptions.TargetNotFoundException;
+import dk.dma.ais.track.rest.resource.serializers.Encoding;
+import dk.dma.ais.track.rest.resource.serializers.ProjectedTargetInfoSerializer;
+import dk.dma.ais.track.subscription.Subscription;
 import dk.dma.ais.tracker.targetTracker.TargetInfo;
 import dk.dma.enav.model.geometry.Area;
 import dk.dma.enav.model.geometry.BoundingBox;
 import dk.dma.enav.model.geometry.Circle;
 import dk.dma.enav.model.geometry.CoordinateSystem;
 import dk.dma.enav.model.geometry.Position;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 /**
+ * The REST API of a tracker node; replaced by CoordinatorResource with dk.dma.ais.track.mode = coordinator.
+ *
  * @author tbsalling
  */
 
 @RestController
 @RequestMapping(value="ais-track")
+@ConditionalOnProperty(prefix = "dk.dma.ais.track", name = "mode", havingValue = "tracker", matchIfMissing = true)
 public class TrackResource {
 
     @Inject
     AisTrackService trackService;
 
+    @Inject
+    SourceFilterCache sourceFilterCache;
+
+    @Inject
+    ResultCache resultCache;
+
+    @Inject
+    Metrics metrics;
+
+    /** Response header holding the cursor for the next page of targets */
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    /** Response header holding the update sequence number the targets returned are up to date with */
+    static final String HIGH_WATER_MARK_HEADER = "X-High-Water-Mark";
+
+    /** Responses differ by the encoding and compression the client accepts */
+    private static final String VARY = HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING;
+
+    /** Number of threads executing lookups of single targets and queries for given MMSIs */
+    @Value("${dk.dma.ais.track.TrackResource.pointThreads:4}")
+    private int pointThreads = 4;
+
+    /** Maximum number of point lookups waiting for a thread; more are rejected */
+    @Value("${dk.dma.ais.track.TrackResource.pointQueueDepth:100}")
+    private int pointQueueDepth = 100;
+
+    /** Time within which a point lookup must complete */
+    @Value("${dk.dma.ais.track.TrackResource.pointTimeout:PT1S}")
+    private String pointTimeout = "PT1S";
+
+    /** Number of threads executing queries which scan the tracker or an index */
+    @Value("${dk.dma.ais.track.TrackResource.scanThreads:2}")
+    private int scanThreads = 2;
+
+    /** Maximum number of scans waiting for a thread; more are rejected */
+    @Value("${dk.dma.ais.track.TrackResource.scanQueueDepth:10}")
+    private int scanQueueDepth = 10;
+
+    /** Time within which a scan must complete; it is cancelled when the time has passed */
+    @Value("${dk.dma.ais.track.TrackResource.scanTimeout:PT10S}")
+    private String scanTimeout = "PT10S";
+
+    /** Cost units per second the budget of a client is refilled with; 0 for no budgets. See QueryBudget */
+    @Value("${dk.dma.ais.track.TrackResource.budgetCostPerSecond:0}")
+    private long budgetCostPerSecond = 0;
+
+    /** Maximum budget of a client; i.e. the cost of the most expensive query it can send */
+    @Value("${dk.dma.ais.track.TrackResource.budgetBurst:200000}")
+    private long budgetBurst = 200000;
+
+    /** What to do with queries over budget; one of REJECT, DELAY, PAGINATE */
+    @Value("${dk.dma.ais.track.TrackResource.budgetPolicy:DELAY}")
+    private String budgetPolicy = "DELAY";
+
+    /** The longest a query over budget is delayed with policy DELAY */
+    @Value("${dk.dma.ais.track.TrackResource.budgetMaxDelay:PT2S}")
+    private String budgetMaxDelay = "PT2S";
+
+    /** The smallest page a result over budget is limited to with policy PAGINATE */
+    @Value("${dk.dma.ais.track.TrackResource.budgetMinPage:100}")
+    private int budgetMinPage = 100;
+
+    /** Maximum number of clients to keep budgets for */
+    @Value("${dk.dma.ais.track.TrackResource.budgetClients:10000}")
+    private int budgetClients = 10000;
+
+    /** Clients with their own budgets, as comma separated name:apiKey:costPerSecond:burst; identified by the X-API-Key header */
+    @Value("${dk.dma.ais.track.TrackResource.budgetApiKeys:}")
+    private String budgetApiKeys = "";
+
+    /** Comma separated addresses of proxies, e.g. a coordinator, whose requests are charged to the last address in X-Forwarded-For */
+    @Value("${dk.dma.ais.track.TrackResource.budgetTrustedProxies:}")
+    private String budgetTrustedProxies = "";
+
+    /** Searches for nearest targets estimated to visit at most this many targets are executed in the point lane; others in the scan lane */
+    @Value("${dk.dma.ais.track.TrackResource.nearestPointLaneMaxTargets:10000}")
+    private int nearestPointLaneMaxTargets = 10000;
+
+    /** The largest number of targets /tracks/nearest returns */
+    static final int MAX_NEAREST = 1000;
+
+    /** Request header holding the API key of a client */
+    static final String API_KEY_HEADER = "X-API-Key";
+
+    /** Request header holding the addresses of a client and the proxies its request passed, as appended by each proxy */
+    static final String FORWARDED_FOR_HEADER = "X-Forwarded-For";
+
+    /** Response header holding the estimated cost of the query charged to the client's budget */
+    static final String QUERY_COST_HEADER = "X-Query-Cost";
+
+    /** Response header holding the page size a result was limited to, as the client's budget did not allow all of it */
+    static final String BUDGET_LIMIT_HEADER = "X-Budget-Limit";
+
+    QueryLane pointLane;
+    QueryLane scanLane;
+
+    QueryBudget budget;
+    private final Map<String, String> apiKeyClients = new HashMap<>();
+    private final Set<String> trustedProxies = new HashSet<>();
+
     @PostConstruct
-    private void init() {
+    void init() {
+        pointLane = new QueryLane("point", pointThreads, pointQueueDepth, Duration.parse(pointTimeout), metrics);
+        scanLane = new QueryLane("scan", scanThreads, scanQueueDepth, Duration.parse(scanTimeout), metrics);
+        if (budgetCostPerSecond > 0)
+            initBudget();
         trackService.start();
     }
 
+    private void initBudget() {
+        BudgetPolicy policy = BudgetPolicy.valueOf(budgetPolicy.trim().toUpperCase());
+        budget = new QueryBudget(policy, budgetCostPerSecond, budgetBurst, Duration.parse(budgetMaxDelay), budgetMinPage, budgetClients);
+        for (String apiKey : Splitter.on(',').trimResults().omitEmptyStrings().split(budgetApiKeys)) {
+            List<String> fields = Splitter.on(':').trimResults().splitToList(apiKey);
+            if (fields.size() != 4)
+                throw new IllegalArgumentException("API key must be given as name:apiKey:costPerSecond:burst, not " + apiKey);
+            apiKeyClients.put(fields.get(1), fields.get(0));
+            budget.setLimits(fields.get(0), Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)));
+        }
+        Splitter.on(',').trimResults().omitEmptyStrings().split(budgetTrustedProxies).forEach(trustedProxies::add);
+        metrics.gauge("budget.clients", budget::snapshot);
+        metrics.gauge("budget.rejected", budget::rejectedCount);
+        metrics.gauge("budget.delayed", budget::delayedCount);
+        metrics.gauge("budget.paginated", budget::paginatedCount);
+    }
+
+    @PreDestroy
+    void close() {
+        pointLane.shutdown();
+        scanLane.shutdown();
+    }
+
     private final Instant timeStarted = Instant.now();
 
     /**
@@ -80,7 +254,47 @@ public class TrackResource {
           .append("\n")
           .append("Tracking started: ").append(timeStarted).append('\n')
           .append("Current time: ").append(Instant.now()).append('\n')
-          .append("Total targets tracked: ").append(trackService.numberOfTargets()).append('\n');
+          .append("Total targets tracked: ").append(trackService.numberOfTargets()).append('\n')
+          .append("Source filter cache: ").append(sourceFilterCache.size()).append(" expressions, ")
+          .append(sourceFilterCache.stats().hitCount()).append(" hits, ")
+          .append(sourceFilterCache.stats().missCount()).append(" misses; ")
+          .append(sourceFilterCache.sourceHitCount()).append(" remembered and ")
+          .append(sourceFilterCache.sourceMissCount()).append(" evaluated source tests").append('\n')
+          .append("Result cache: ").append(resultCache.size()).append(" results, ")
+          .append(resultCache.hitCount()).append(" hits, ")
+          .append(resultCache.missCount()).append(" misses, ")
+          .append(resultCache.coalescedCount()).append(" coalesced").append('\n');
+
+        FragmentCache fragments = trackService.getFragmentCache();
+        if (fragments != null)
+          sb.append("Fragment cache: ").append(fragments.size()).append(" targets, ")
+            .append(fragments.sizeInBytes()).append(" bytes, ")
+            .append(fragments.hitCount()).append(" hits, ")
+            .append(fragments.missCount()).append(" misses").append('\n');
+
+        IngestPipeline ingest = trackService.getIngestPipeline();
+        if (ingest != null)
+          sb.append("Ingest: ").append(ingest.receivedCount()).append(" packets received, ")
+            .append(ingest.updatedCount()).append(" applied, ")
+            .append(ingest.queued()).append(" queued; overload policy ").append(ingest.getOverloadPolicy()).append(": ")
+            .append(ingest.blockedCount()).append(" blocked, ")
+            .append(ingest.droppedCount()).append(" dropped, ")
+            .append(ingest.coalescedCount()).append(" coalesced, ")
+            .append(ingest.shedCount()).append(" shed").append('\n');
+
+        ChangeStreamClient replication = trackService.getReplication();
+        if (replication != null)
+          sb.append("Replication: ").append(replication.isSynced() ? "synced" : "catching up").append(", ")
+            .append(replication.appliedCount()).append(" changes applied, ")
+            .append(replication.getLagMillis()).append(" ms lag, ")
+            .append(replication.resyncCount()).append(" snapshots").append('\n');
+
+        ChangeStreamServer changeStream = trackService.getChangeStream();
+        if (changeStream != null)
+          sb.append("Change stream: port ").append(changeStream.getPort()).append(", ")
+            .append(changeStream.size()).append(" replicas, ")
+            .append(changeStream.publishedCount()).append(" changes published, ")
+            .append(changeStream.disconnectedCount()).append(" disconnected").append('\n');
 
         if (!isBlank(sourceFilterExpression))
           sb.append("Targets matching source filter expression: ").append(trackService.numberOfTargets(createSourceFilterPredicate(sourceFilterExpression))).append('\n');
@@ -95,17 +309,42 @@ public class TrackResource {
      * - http://localhost:8080/track/257742710?sourceFilter=s.country%20in%20(DK%2C%20NO)
      * - http://localhost:8080/track/257742710?sourceFilter=s.country%20in%20(DK)
      *
+     * - http://localhost:8080/track/257742710?fields=mmsi,pos,sog,cog,heading,shipType
+     *
+     * The target is written in the encoding selected by the Accept header; see Encoding.
+     *
+     * The lookup is executed in the point lane, and charged one cost unit; see QueryLane and QueryBudget.
+     *
      * @param sourceFilterExpression
-     * @return
+     * @param fields comma separated names of the fields to write; all if missing
      */
-    @RequestMapping(value = "/track/{mmsi}", produces = MediaType.APPLICATION_JSON_VALUE)
-    TargetInfo track(@PathVariable int mmsi, @RequestParam(value="sourceFilter", required = false) String sourceFilterExpression) {
-        TargetInfo target = trackService.target(mmsi, createSourceFilterPredicate(sourceFilterExpression));
+    @RequestMapping(value = "/track/{mmsi}", produces = {MediaType.APPLICATION_JSON_VALUE, Encoding.SMILE_VALUE, Encoding.CBOR_VALUE})
+    void track(@PathVariable int mmsi, @RequestParam(value="sourceFilter", required = false) String sourceFilterExpression,
+               @RequestParam(value="fields", required = false) String fields,
+               @RequestHeader(value="Accept", required = false) String accept,
+               @RequestHeader(value="Accept-Encoding", required = false) String acceptEncoding,
+               HttpServletRequest request, HttpServletResponse response) {
+        long start = System.nanoTime();
+        ProjectedTargetInfoSerializer projection = createProjection(fields);
+        Predicate<AisPacketSource> sourceFilter = createSourceFilterPredicate(sourceFilterExpression);
+        Encoding encoding = Encoding.of(accept);
+        QueryBudget.Admission admission = admit(clientOf(request), 1, response);
+        pointLane.execute(request, response, admission.getDelayNanos(), deadline -> {
+            try {
+                TargetInfo target = trackService.target(mmsi, sourceFilter);
 
-        if (target == null) {
-            throw new TargetNotFoundException(mmsi);
-        }
-        return target;
+                if (target == null) {
+                    throw new TargetNotFoundException(mmsi);
+                }
+
+                response.setContentType(encoding.getContentType());
+                try (JsonGenerator jg = encoding.createGenerator(body(response, acceptEncoding))) {
+                    writeTarget(jg, target, projection);
+                }
+            } finally {
+                recordLatency("track", start);
+            }
+        });
     }
 
     /**
@@ -126,18 +365,479 @@ public class TrackResource {
      *
      * - http://localhost:8080/tracks?mmsi=244820404&mmsi=345070335&area=52.0|4.0|52.5|5.0&area=20.0|100.0|21.0|110.0&sourceFilter=s.region%3D806|s.country%20in%20DK)
      *
+     * - http://localhost:8080/tracks?stream=true
+     * - http://localhost:8080/tracks?limit=1000
+     * - http://localhost:8080/tracks?limit=1000&cursor=219000000
+     * - http://localhost:8080/tracks?since=1431000000000000
+     * - http://localhost:8080/tracks?fields=mmsi,pos,sog,cog,heading,shipType
+     *
+     * The targets are written to the response one by one. With stream=true they are written as the
+     * tracker produces them, instead of after the whole result is collected.
+     *
+     * Without stream and limit, the serialized result is cached; identical queries are answered from
+     * the cache until targets have changed and the result is older than the allowed staleness. The
+     * cached result is sent gzip compressed to clients accepting that.
+     *
+     * Targets are written in the encoding selected by the Accept header: pretty-printed JSON by default,
+     * compact JSON for application/json;pretty=false, or binary Smile or CBOR. Responses are gzip
+     * compressed for clients accepting that. With fields, only the named fields of each target are
+     * written; see ProjectedTargetInfoSerializer.
+     *
+     * With a limit, the result is a page of targets in MMSI order. If more targets follow, the MMSI
+     * to use as cursor for the next page is returned in the X-Next-Cursor header.
+     *
+     * The update sequence number the result is up to date with is returned in the X-High-Water-Mark
+     * header. With since set to a high-water mark, only the changes to the result since then are
+     * returned: the targets updated, the MMSIs of targets removed or no longer matching, and a new
+     * high-water mark. If the changes are no longer known, reset is true and all matching targets
+     * are returned.
+     *
+     * Queries given nothing but MMSI numbers are executed in the point lane, others in the scan lane;
+     * a full lane answers 429, and a query exceeding the timeout of its lane is cancelled; see QueryLane.
+     *
+     * The estimated cost of the query is charged to the budget of the client; a query over budget is
+     * rejected with 429, delayed, or limited to a page as given by the budget policy; see QueryBudget.
+     * A delta is charged for the changes returned, or like the whole query if it will be reset.
+     *
      * @param sourceFilterExpression
      * @param mmsiParams mmsi numbers to include in the result
      * @param areaParams areas to include in the result
-     * @return
+     * @param stream true to write targets as they are found
+     * @param limit the maximum number of targets to return
+     * @param cursor return only targets with MMSI above this
+     * @param since return only the changes since this high-water mark
+     * @param fields comma separated names of the fields to write of each target; all if missing
+     */
+    @RequestMapping(value = "/tracks", produces = {MediaType.APPLICATION_JSON_VALUE, Encoding.SMILE_VALUE, Encoding.CBOR_VALUE})
+    void tracks(
+            @RequestParam(value="sourceFilter", required = false) String sourceFilterExpression,
+            @RequestParam(value="baseArea", required = false) List<String> baseAreaParams,
+            @RequestParam(value="area", required = false) List<String> areaParams,
+            @RequestParam(value="mmsi", required = false) List<String> mmsiParams,
+            @RequestParam(value="stream", required = false, defaultValue = "false") boolean stream,
+            @RequestParam(value="limit", required = false) Integer limit,
+            @RequestParam(value="cursor", required = false) Integer cursor,
+            @RequestParam(value="since", required = false) Long since,
+            @RequestParam(value="fields", required = false) String fields,
+            @RequestHeader(value="Accept", required = false) String accept,
+            @RequestHeader(value="Accept-Encoding", required = false) String acceptEncoding,
+            HttpServletRequest request, HttpServletResponse response) {
+
+        long start = System.nanoTime();
+        TargetQuery query = createTargetQuery(sourceFilterExpression, baseAreaParams, areaParams, mmsiParams);
+        Encoding encoding = Encoding.of(accept);
+        ProjectedTargetInfoSerializer projection = createProjection(fields);
+        if (since != null && (stream || limit != null || cursor != null))
+            throw new IllegalParameterException("since", since);
+        if (limit != null && limit <= 0)
+            throw new IllegalParameterException("limit", limit);
+
+        String client = clientOf(request);
+        QueryEstimate estimate = trackService.estimate(query);
+        ResultCache.Result cached = since == null && !stream && limit == null && cursor == null && budget != null
+            ? resultCache.getIfValid(resultKey(query, encoding, projection), trackService.getUpdateEpoch()) : null;
+        boolean reset = since != null && !trackService.isDeltaAvailable(since);
+        QueryBudget.Admission admission;
+        if (since != null && !reset)
+            admission = admit(client, 1, response);
+        else if (cached != null)
+            admission = admit(client, (cached.getBody().length + QueryPlan.BYTES_PER_COST_UNIT - 1) / QueryPlan.BYTES_PER_COST_UNIT, response);
+        else
+            admission = admit(client, estimate, limit, !stream && since == null, response);
+        Integer pageLimit = admission.getLimit();
+        if (limit == null && pageLimit != null)
+            response.setHeader(BUDGET_LIMIT_HEADER, String.valueOf(pageLimit));
+
+        laneOf(estimate).execute(request, response, admission.getDelayNanos(), deadline -> {
+            try {
+                TargetQuery limited = query.withDeadline(deadline);
+                if (since != null) {
+                    TargetDelta delta = trackService.delta(limited, since);
+                    if (budget != null && !reset)
+                        budget.charge(client, delta.getTargets().size() + delta.getRemoved().size());
+                    writeDelta(delta, encoding, projection, acceptEncoding, response);
+                } else {
+                    tracks(limited, stream, pageLimit, cursor, cached, encoding, projection, acceptEncoding, response);
+                }
+            } finally {
+                recordLatency("tracks", start);
+            }
+        });
+    }
+
+    /** @return the lane to execute a query estimated as estimate in; the point lane if it only looks up given MMSIs */
+    private QueryLane laneOf(QueryEstimate estimate) {
+        return estimate.isLookup() ? pointLane : scanLane;
+    }
+
+    /**
+     * @return the client to charge the query of request to; the name of its API key, or its address - as forwarded
+     * by a trusted proxy, if it came through one. Null without budgets
+     */
+    private String clientOf(HttpServletRequest request) {
+        if (budget == null)
+            return null;
+        String apiKey = request.getHeader(API_KEY_HEADER);
+        String name = apiKey == null ? null : apiKeyClients.get(apiKey);
+        if (name != null)
+            return name;
+        String address = request.getRemoteAddr();
+        String forwardedFor = request.getHeader(FORWARDED_FOR_HEADER);
+        if (forwardedFor != null && trustedProxies.contains(address)) {
+            List<String> addresses = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(forwardedFor);
+            if (!addresses.isEmpty())
+                return addresses.get(addresses.size() - 1);
+        }
+        return address;
+    }
+
+    /** Admit a query of client estimated as estimate; see QueryBudget.admit */
+    private QueryBudget.Admission admit(String client, QueryEstimate estimate, Integer limit, boolean pageable, HttpServletResponse response) {
+        return budget == null ? QueryBudget.Admission.unlimited(limit) : checked(client, budget.admit(client, estimate, limit, pageable), response);
+    }
+
+    /** Admit a query of client with a known cost */
+    private QueryBudget.Admission admit(String client, long cost, HttpServletResponse response) {
+        return budget == null ? QueryBudget.Admission.unlimited(null) : checked(client, budget.admit(client, cost), response);
+    }
+
+    /** @throws BudgetExceededException if admission is rejected; with the time to retry after in the Retry-After header */
+    private static QueryBudget.Admission checked(String client, QueryBudget.Admission admission, HttpServletResponse response) {
+        if (admission.isRejected()) {
+            long retryAfter = Math.max(1, (long) Math.ceil(admission.getRetryAfterNanos() / 1e9));
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+            throw new BudgetExceededException(client, admission.getCost(), retryAfter);
+        }
+        response.setHeader(QUERY_COST_HEADER, String.valueOf(admission.getCost()));
+        return admission;
+    }
+
+    private void tracks(TargetQuery query, boolean stream, Integer limit, Integer cursor, ResultCache.Result cached, Encoding encoding,
+                        ProjectedTargetInfoSerializer projection, String acceptEncoding, HttpServletResponse response) throws IOException {
+        long highWaterMark = trackService.getUpdateEpoch();
+        Iterator<TargetInfo> targets;
+        if (limit != null) {
+            TargetPage page = trackService.page(query, cursor, limit);
+            if (page.getNextCursor() != null)
+                response.setHeader(NEXT_CURSOR_HEADER, String.valueOf(page.getNextCursor()));
+            targets = page.getTargets().iterator();
+        } else if (cursor != null) {
+            throw new IllegalParameterException("cursor", cursor);
+        } else if (stream) {
+            targets = trackService.stream(query).iterator();
+        } else {
+            writeCachedTargets(query, cached, encoding, projection, acceptEncoding, response);
+            return;
+        }
+
+        response.setHeader(HIGH_WATER_MARK_HEADER, String.valueOf(highWaterMark));
+        response.setContentType(encoding.getContentType());
+        writeTargets(targets, encoding, projection, body(response, acceptEncoding));
+    }
+
+    /** @return the key of the result of query in the result cache */
+    private static String resultKey(TargetQuery query, Encoding encoding, ProjectedTargetInfoSerializer projection) {
+        return encoding.name() + ':' + (projection == null ? "" : projection) + ':' + query.toCanonicalString();
+    }
+
+    /** Write the targets matching query to response; cached if not null, else from the result cache if possible */
+    private void writeCachedTargets(TargetQuery query, ResultCache.Result cached, Encoding encoding, ProjectedTargetInfoSerializer projection,
+                                    String acceptEncoding, HttpServletResponse response) throws IOException {
+        ResultCache.Result result = cached != null ? cached : resultCache.get(resultKey(query, encoding, projection), trackService.getUpdateEpoch(), () -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                writeTargets(trackService.targets(query).iterator(), encoding, projection, bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return bytes.toByteArray();
+        });
+
+        byte[] body = result.getBody();
+        if (acceptsGzip(acceptEncoding)) {
+            body = result.getGzippedBody();
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        response.setHeader(HttpHeaders.VARY, VARY);
+        response.setHeader(HIGH_WATER_MARK_HEADER, String.valueOf(result.getEpoch()));
+        response.setContentType(encoding.getContentType());
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /** Write delta to response as an object with the changed targets and the removed MMSIs */
+    private void writeDelta(TargetDelta delta, Encoding encoding, ProjectedTargetInfoSerializer projection, String acceptEncoding, HttpServletResponse response) throws IOException {
+        response.setHeader(HIGH_WATER_MARK_HEADER, String.valueOf(delta.getHighWaterMark()));
+        response.setContentType(encoding.getContentType());
+        try (JsonGenerator jg = encoding.createGenerator(body(response, acceptEncoding))) {
+            jg.writeStartObject();
+            jg.writeNumberField("since", delta.getSince());
+            jg.writeNumberField("highWaterMark", delta.getHighWaterMark());
+            jg.writeBooleanField("reset", delta.isReset());
+            jg.writeArrayFieldStart("targets");
+            for (TargetInfo target : delta.getTargets())
+                writeTarget(jg, target, projection);
+            jg.writeEndArray();
+            jg.writeArrayFieldStart("removed");
+            for (Integer mmsi : delta.getRemoved())
+                jg.writeNumber(mmsi);
+            jg.writeEndArray();
+            jg.writeEndObject();
+        }
+        metrics.histogram("query.tracks.deltaSize").update(delta.getTargets().size() + delta.getRemoved().size());
+        if (delta.isReset())
+            metrics.meter("query.tracks.deltaResets").mark();
+    }
+
+    /** Write targets to out as an array in encoding; one target at a time, or copied from the fragment cache */
+    private void writeTargets(Iterator<TargetInfo> targets, Encoding encoding, ProjectedTargetInfoSerializer projection, OutputStream out) throws IOException {
+        FragmentCache fragments = trackService.getFragmentCache();
+        if (fragments != null && encoding.canSplice()) {
+            writeFragments(targets, encoding, projection, fragments, out);
+            return;
+        }
+
+        int count = 0;
+        try (JsonGenerator jg = encoding.createGenerator(out)) {
+            jg.writeStartArray();
+            while (targets.hasNext()) {
+                writeTarget(jg, targets.next(), projection);
+                count++;
+            }
+            jg.writeEndArray();
+        }
+        metrics.histogram("query.tracks.resultSize").update(count);
+    }
+
+    /** Write targets to out as an array of fragments; targets not in the fragment cache are serialized and added to it */
+    private void writeFragments(Iterator<TargetInfo> targets, Encoding encoding, ProjectedTargetInfoSerializer projection, FragmentCache fragments, OutputStream out) throws IOException {
+        String format = encoding.name() + ':' + (projection == null ? "" : projection);
+        int[] count = {0};
+        try {
+            encoding.writeArray(Iterators.transform(targets, target -> {
+                count[0]++;
+                byte[] fragment = fragments.get(target, format);
+                if (fragment == null) {
+                    fragment = serialize(target, encoding, projection);
+                    fragments.put(target, format, fragment);
+                }
+                return fragment;
+            }), out);
+        } finally {
+            out.close();
+        }
+        metrics.histogram("query.tracks.resultSize").update(count[0]);
+    }
+
+    private static byte[] serialize(TargetInfo target, Encoding encoding, ProjectedTargetInfoSerializer projection) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        try (JsonGenerator jg = encoding.createGenerator(bytes)) {
+            writeTarget(jg, target, projection);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Write target with the fields selected by projection; all fields if it is null */
+    static void writeTarget(JsonGenerator jg, TargetInfo target, ProjectedTargetInfoSerializer projection) throws IOException {
+        if (projection == null)
+            jg.writeObject(target);
+        else
+            projection.serialize(target, jg, null);
+    }
+
+    /** Return the stream to write the body of response to; gzip compressed if the client accepts that */
+    static OutputStream body(HttpServletResponse response, String acceptEncoding) throws IOException {
+        response.setHeader(HttpHeaders.VARY, VARY);
+        if (acceptsGzip(acceptEncoding)) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            return new GZIPOutputStream(response.getOutputStream(), 8192);
+        }
+        return response.getOutputStream();
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    /**
+     * Return the k targets nearest to a position, nearest first, as an array of objects holding the
+     * distance in metres and the target. The targets are found by a best-first search of the spatial
+     * index; see AisTrackService.nearest.
+     *
+     * URL examples:
+     * - http://localhost:8080/tracks/nearest?pos=55.7,12.6&k=5
+     * - http://localhost:8080/tracks/nearest?pos=55.7,12.6&k=5&maxDistance=20000&sourceFilter=s.country%20in%20(DK)
+     *
+     * The search is executed in the point lane if the cells within maxDistance hold few targets, else in the
+     * scan lane, as a selective sourceFilter may make it visit all of them. It is charged k cost units, and
+     * afterwards for the targets visited; see QueryLane and QueryBudget.
+     *
+     * @param pos the position to search from as lat,lon
+     * @param k the number of targets to return; at most MAX_NEAREST
+     * @param maxDistance the distance in metres the targets must be within; unlimited if missing
+     * @param fields comma separated names of the fields to write of each target; all if missing
+     */
+    @RequestMapping(value = "/tracks/nearest", produces = {MediaType.APPLICATION_JSON_VALUE, Encoding.SMILE_VALUE, Encoding.CBOR_VALUE})
+    void nearest(@RequestParam(value="pos") String pos,
+                 @RequestParam(value="k", required = false, defaultValue = "10") int k,
+                 @RequestParam(value="maxDistance", required = false) Double maxDistance,
+                 @RequestParam(value="sourceFilter", required = false) String sourceFilterExpression,
+                 @RequestParam(value="fields", required = false) String fields,
+                 @RequestHeader(value="Accept", required = false) String accept,
+                 @RequestHeader(value="Accept-Encoding", required = false) String acceptEncoding,
+                 HttpServletRequest request, HttpServletResponse response) {
+        long start = System.nanoTime();
+        Position position = parsePosition(pos);
+        if (k <= 0 || k > MAX_NEAREST)
+            throw new IllegalParameterException("k", k);
+        if (maxDistance != null && !(maxDistance >= 0.0))
+            throw new IllegalParameterException("maxDistance", maxDistance);
+        Predicate<AisPacketSource> sourceFilter = createSourceFilterPredicate(sourceFilterExpression);
+        ProjectedTargetInfoSerializer projection = createProjection(fields);
+        Encoding encoding = Encoding.of(accept);
+
+        String client = clientOf(request);
+        QueryBudget.Admission admission = admit(client, k, response);
+        double distance = maxDistance == null ? Double.POSITIVE_INFINITY : maxDistance;
+        nearestLaneOf(position, distance).execute(request, response, admission.getDelayNanos(), deadline -> {
+            try {
+                List<TargetDistance> nearest = searchNearest(client, new NearestTargets(position, k, distance), deadline.guard(sourceFilter));
+
+                response.setContentType(encoding.getContentType());
+                try (JsonGenerator jg = encoding.createGenerator(body(response, acceptEncoding))) {
+                    jg.writeStartArray();
+                    for (TargetDistance target : nearest) {
+                        jg.writeStartObject();
+                        jg.writeNumberField("distance", Math.round(target.getDistance()));
+                        jg.writeFieldName("target");
+                        writeTarget(jg, target.getTarget(), projection);
+                        jg.writeEndObject();
+                    }
+                    jg.writeEndArray();
+                }
+            } finally {
+                recordLatency("nearest", start);
+            }
+        });
+    }
+
+    /** @return the lane to search for the targets nearest to position within maxDistance metres in; by the targets it may visit */
+    QueryLane nearestLaneOf(Position position, double maxDistance) {
+        return trackService.estimateNearest(position, maxDistance).getVisits() <= nearestPointLaneMaxTargets ? pointLane : scanLane;
+    }
+
+    /** Search for the nearest targets with reports from sources matching sourceFilter; charging client for the targets visited */
+    List<TargetDistance> searchNearest(String client, NearestTargets search, Predicate<AisPacketSource> sourceFilter) {
+        long visited = trackService.nearest(search, sourceFilter);
+        if (budget != null)
+            budget.charge(client, visited / QueryPlan.VISITS_PER_COST_UNIT);
+        return search.toList();
+    }
+
+    /**
+     * Subscribe to the targets matching sourceFilter and targetFilter as a stream of server-sent events.
+     * The same parameters as for /tracks are accepted.
+     *
+     * URL example:
+     * - http://localhost:8080/tracks/subscribe?area=52.3|4.8|52.5|4.9
+     * - http://localhost:8080/tracks/subscribe?area=52.3|4.8|52.5|4.9&fields=mmsi,pos,sog,cog
+     *
+     * A "snapshot" event with the JSON array of the matching targets is sent first. Then "update"
+     * events follow with {"targets": [...], "removed": [...]}; the targets changed since the previous
+     * update and the MMSIs of targets removed or no longer matching. A target changed several times
+     * between two updates is sent once. If the tracker ends the subscription - e.g. because the client
+     * does not keep up - a "close" event with the reason is sent.
      */
-    @RequestMapping(value = "/tracks", produces = MediaType.APPLICATION_JSON_VALUE)
-    Set<TargetInfo> tracks(
+    @RequestMapping(value = "/tracks/subscribe", produces = TargetEventStream.MEDIA_TYPE)
+    void subscribe(
+            @RequestParam(value="sourceFilter", required = false) String sourceFilterExpression,
+            @RequestParam(value="baseArea", required = false) List<String> baseAreaParams,
+            @RequestParam(value="area", required = false) List<String> areaParams,
+            @RequestParam(value="mmsi", required = false) List<String> mmsiParams,
+            @RequestParam(value="fields", required = false) String fields,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            TargetQuery query = createTargetQuery(sourceFilterExpression, baseAreaParams, areaParams, mmsiParams);
+            ProjectedTargetInfoSerializer projection = createProjection(fields);
+
+            response.setContentType(TargetEventStream.MEDIA_TYPE);
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+            AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+
+            Subscription subscription = trackService.subscribe(query, new TargetEventStream(async, Encoding.COMPACT_JSON, projection));
+            async.addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) {
+                    trackService.unsubscribe(subscription);
+                }
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                    trackService.unsubscribe(subscription);
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    trackService.unsubscribe(subscription);
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+        } finally {
+            recordLatency("subscribe", start);
+        }
+    }
+
+    /**
+     * Show how a query to /tracks with the same parameters would be executed.
+     *
+     * URL example:
+     * - http://localhost:8080/tracks/explain?mmsi=244820404&mmsi=345070335
+     *
+     * @return a text description of the query plan
+     */
+    @RequestMapping(value = "/tracks/explain", produces = MediaType.TEXT_PLAIN_VALUE)
+    String explainTracks(
             @RequestParam(value="sourceFilter", required = false) String sourceFilterExpression,
             @RequestParam(value="baseArea", required = false) List<String> baseAreaParams,
             @RequestParam(value="area", required = false) List<String> areaParams,
             @RequestParam(value="mmsi", required = false) List<String> mmsiParams){
 
+        long start = System.nanoTime();
+        try {
+            return trackService.explain(createTargetQuery(sourceFilterExpression, baseAreaParams, areaParams, mmsiParams)).explain();
+        } finally {
+            recordLatency("explain", start);
+        }
+    }
+
+    /**
+     * Return ingest, tracker, query, cleanup and backup metrics as JSON.
+     *
+     * URL example:
+     * - http://localhost:8080/metrics
+     */
+    @RequestMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    Map<String, Object> showMetrics() {
+        return metrics.snapshot();
+    }
+
+    /** Record the latency of a request to endpoint started at start */
+    private void recordLatency(String endpoint, long start) {
+        metrics.histogram("query." + endpoint + ".latencyMicros").update(NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /** Create a TargetQuery out of user supplied /tracks parameters */
+    TargetQuery createTargetQuery(String sourceFilterExpression, List<String> baseAreaParams, List<String> areaParams, List<String> mmsiParams) {
         Set<Integer> mmsis = Sets.newHashSet();
         if (mmsiParams != null && mmsiParams.size() > 0) {
             mmsiParams.forEach(mmsi -> mmsis.add(Integer.valueOf(mmsi)));
@@ -146,10 +846,7 @@ public class TrackResource {
         Set<Area> areas = map2Areas(areaParams);
         Set<Area> baseAreas = map2Areas(baseAreaParams);
 
-        return trackService.targets(
-            createSourceFilterPredicate(sourceFilterExpression),
-            createTargetFilterPredicate(mmsis, baseAreas, areas)
-        );
+        return new TargetQuery(mmsis, baseAreas, areas, isBlank(sourceFilterExpression) ? null : sourceFilterExpression, createSourceFilterPredicate(sourceFilterExpression));
     }
 
     private static Set<Area> map2Areas(List<String> areaParams){
@@ -186,13 +883,40 @@ public class TrackResource {
     }
 
 
+    /** Parse a user supplied position given as lat,lon */
+    static Position parsePosition(String pos) {
+        String[] latLon = pos.split(",");
+        if (latLon.length == 2) {
+            try {
+                double lat = Double.parseDouble(latLon[0].trim());
+                double lon = Double.parseDouble(latLon[1].trim());
+                if (Position.isValid(lat, lon))
+                    return Position.create(lat, lon);
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+        }
+        throw new IllegalParameterException("pos", pos);
+    }
+
+    /** Create the serializer of the fields named in a user supplied fields parameter; null for all fields */
+    static ProjectedTargetInfoSerializer createProjection(String fields) {
+        if (isBlank(fields))
+            return null;
+        try {
+            return ProjectedTargetInfoSerializer.of(fields);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalParameterException("fields", fields);
+        }
+    }
+
     /** Create a Predicate<AisPacketSource> out of a user supplied expression string */
-    static Predicate<AisPacketSource> createSourceFilterPredicate(String sourceFilterExpression) {
+    Predicate<AisPacketSource> createSourceFilterPredicate(String sourceFilterExpression) {
         Predicate<AisPacketSource> sourceFilter;
 
         if (! isBlank(sourceFilterExpression)) {
             try {
-                sourceFilter = AisPacketSourceFilters.parseSourceFilter(sourceFilterExpression);
+                sourceFilter = sourceFilterCache.get(sourceFilterExpression);
             } catch (Exception e) {
                 throw new CannotParseFilterExpressionException(e, sourceFilterExpression);
             }
@@ -205,38 +929,7 @@ public class TrackResource {
 
     /** Create a Predicate<TargetInfo> out of user supplied mmsi and area information */
     static Predicate<TargetInfo> createTargetFilterPredicate(Set<Integer> mmsis, Set<Area> baseAreas, Set<Area> areas) {
-        Predicate<TargetInfo> mmsiPredicate = null;
-        if (mmsis != null && mmsis.size() > 0) {
-            mmsiPredicate =  targetInfo -> mmsis.contains(targetInfo.getMmsi());
-        }
-
-        Predicate<TargetInfo> baseAreaPredicate = null;
-        if (baseAreas != null && baseAreas.size() > 0) {
-            baseAreaPredicate =  targetInfo -> baseAreas.stream().anyMatch(area -> targetInfo.getPosition() != null && area.contains(targetInfo.getPosition()));
-        }
-
-        Predicate<TargetInfo> areaPredicate = null;
-        if (areas != null && areas.size() > 0) {
-            areaPredicate =  targetInfo -> areas.stream().anyMatch(area -> targetInfo.getPosition() != null && area.contains(targetInfo.getPosition()));
-        }
-
-        Predicate<TargetInfo> resultingAreaPredicate = null;
-        if(baseAreaPredicate != null && areaPredicate == null){
-            resultingAreaPredicate = baseAreaPredicate;
-        }else if (baseAreaPredicate != null && areaPredicate != null){
-            resultingAreaPredicate = baseAreaPredicate.and(areaPredicate);
-        }else{
-            resultingAreaPredicate = areaPredicate;
-        }
-
-        if (mmsiPredicate == null && resultingAreaPredicate == null)
-            return t -> true;
-        else if (mmsiPredicate != null && resultingAreaPredicate == null)
-            return mmsiPredicate;
-        else if (mmsiPredicate == null && resultingAreaPredicate != null)
-            return resultingAreaPredicate;
-        else
-            return mmsiPredicate.or(resultingAreaPredicate);
+        return TargetQuery.createTargetFilterPredicate(mmsis, baseAreas, areas);
     }
 
 }
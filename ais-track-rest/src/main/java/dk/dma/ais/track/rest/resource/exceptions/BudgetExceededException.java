@@ -0,0 +1,11 @@
+package dk.dma.ais.track.rest.resource.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.TOO_MANY_REQUESTS)
+public class BudgetExceededException extends RuntimeException {
+    public BudgetExceededException(String client, long cost, long retryAfterSeconds) {
+        super("Query cost " + cost + " exceeds the remaining budget of " + client + "; try again in " + retryAfterSeconds + " seconds");
+    }
+}
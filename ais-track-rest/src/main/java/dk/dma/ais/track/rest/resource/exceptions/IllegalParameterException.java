@@ -0,0 +1,11 @@
+package dk.dma.ais.track.rest.resource.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class IllegalParameterException extends RuntimeException {
+    public IllegalParameterException(String parameter, Object value) {
+        super("Illegal value of parameter " + parameter + ": " + value);
+    }
+}
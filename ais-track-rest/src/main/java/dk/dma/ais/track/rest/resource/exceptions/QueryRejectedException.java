@@ -0,0 +1,11 @@
+package dk.dma.ais.track.rest.resource.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.TOO_MANY_REQUESTS)
+public class QueryRejectedException extends RuntimeException {
+    public QueryRejectedException(String lane) {
+        super("Too many " + lane + " queries waiting; try again later");
+    }
+}
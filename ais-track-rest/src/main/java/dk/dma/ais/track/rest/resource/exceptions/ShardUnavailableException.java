@@ -0,0 +1,13 @@
+package dk.dma.ais.track.rest.resource.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.util.Collection;
+
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class ShardUnavailableException extends RuntimeException {
+    public ShardUnavailableException(Collection<Integer> shards) {
+        super("No response from shards " + shards);
+    }
+}
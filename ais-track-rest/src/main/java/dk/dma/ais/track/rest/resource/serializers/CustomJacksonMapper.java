@@ -1,7 +1,9 @@
 package dk.dma.ais.track.rest.resource.serializers;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import dk.dma.ais.packet.AisPacketSource;
 import dk.dma.ais.tracker.targetTracker.TargetInfo;
@@ -16,7 +18,19 @@ import java.util.Date;
 @Qualifier(value = "objectMapper")
 public class CustomJacksonMapper extends ObjectMapper {
 
+    /** Create a mapper writing pretty-printed JSON */
     public CustomJacksonMapper() {
+        this(null, true);
+    }
+
+    /**
+     * Create a mapper writing the format of factory.
+     * @param factory the factory of the generators to write with; null for JSON
+     * @param indent true to pretty-print the output; only meaningful for JSON
+     */
+    public CustomJacksonMapper(JsonFactory factory, boolean indent) {
+        super(factory);
+        configure(SerializationFeature.INDENT_OUTPUT, indent);
         setSerializationInclusion(JsonInclude.Include.NON_NULL);
 
         SimpleModule module = new SimpleModule();
@@ -0,0 +1,125 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.resource.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The encodings targets can be written in, selected by the Accept header of a request. All are
+ * written by a CustomJacksonMapper, so the same serializers are used for every encoding.
+ */
+public enum Encoding {
+
+    /** Pretty-printed JSON; the default */
+    JSON(MediaType.APPLICATION_JSON, new CustomJacksonMapper(), new byte[][] {{'['}, {','}, {']'}}),
+
+    /** JSON without whitespace; selected by application/json;pretty=false */
+    COMPACT_JSON(MediaType.APPLICATION_JSON, new CustomJacksonMapper(null, false), new byte[][] {{'['}, {','}, {']'}}),
+
+    /** Binary JSON in the Smile format; values cannot be spliced, as they refer back to names written earlier in the document */
+    SMILE(MediaType.valueOf(Encoding.SMILE_VALUE), new CustomJacksonMapper(new SmileFactory(), false), null),
+
+    /** Binary JSON in the CBOR format (RFC 7049) */
+    CBOR(MediaType.valueOf(Encoding.CBOR_VALUE), new CustomJacksonMapper(new CBORFactory(), false), new byte[][] {{(byte) 0x9f}, {}, {(byte) 0xff}});
+
+    public static final String SMILE_VALUE = "application/x-jackson-smile";
+    public static final String CBOR_VALUE = "application/cbor";
+
+    private final MediaType mediaType;
+    private final ObjectMapper mapper;
+
+    /** The bytes opening an array, separating its values and closing it; null if values cannot be spliced */
+    private final byte[][] array;
+
+    Encoding(MediaType mediaType, ObjectMapper mapper, byte[][] array) {
+        this.mediaType = mediaType;
+        this.mapper = mapper;
+        this.array = array;
+    }
+
+    /** @return the content type of responses in this encoding */
+    public String getContentType() {
+        return mediaType.toString();
+    }
+
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    /** Create a generator writing to out in this encoding */
+    public JsonGenerator createGenerator(OutputStream out) throws IOException {
+        JsonGenerator jg = mapper.getFactory().createGenerator(out);
+        if (this == JSON)
+            jg.useDefaultPrettyPrinter();
+        return jg;
+    }
+
+    /** @return true if values serialized one at a time with createGenerator can be written as an array with writeArray */
+    public boolean canSplice() {
+        return array != null;
+    }
+
+    /** Write values, each serialized on its own with createGenerator, to out as an array; if canSplice() */
+    public void writeArray(Iterator<byte[]> values, OutputStream out) throws IOException {
+        if (array == null)
+            throw new UnsupportedOperationException(name() + " values cannot be spliced");
+        out.write(array[0]);
+        if (values.hasNext()) {
+            out.write(values.next());
+            while (values.hasNext()) {
+                out.write(array[1]);
+                out.write(values.next());
+            }
+        }
+        out.write(array[2]);
+    }
+
+    /**
+     * Select the encoding preferred by an Accept header; JSON if it accepts none of the others or is
+     * missing or malformed.
+     */
+    public static Encoding of(String accept) {
+        if (accept == null || accept.isEmpty())
+            return JSON;
+
+        List<MediaType> accepted;
+        try {
+            accepted = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return JSON;
+        }
+        MediaType.sortBySpecificityAndQuality(accepted);
+        for (MediaType mediaType : accepted) {
+            if (mediaType.includes(MediaType.APPLICATION_JSON))
+                return "false".equals(mediaType.getParameter("pretty")) ? COMPACT_JSON : JSON;
+            if (mediaType.includes(SMILE.mediaType))
+                return SMILE;
+            if (mediaType.includes(CBOR.mediaType))
+                return CBOR;
+        }
+        return JSON;
+    }
+
+}
@@ -0,0 +1,146 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.resource.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.enav.model.geometry.Position;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Writes the selected fields of a TargetInfo as a flat object. The fields are read straight from
+ * the TargetInfo, so the reports are not decoded into an AisTarget unless the "target" field is
+ * selected. Fields without a valid value are left out.
+ */
+public class ProjectedTargetInfoSerializer extends JsonSerializer<TargetInfo> {
+
+    /** The fields which can be selected */
+    public enum Field {
+        MMSI("mmsi"),
+        TARGET_TYPE("targetType"),
+        COUNTRY("country"),
+        SOURCE("source"),
+        POS("pos"),
+        SOG("sog"),
+        COG("cog"),
+        HEADING("heading"),
+        NAV_STATUS("navStatus"),
+        LAST_POSITION_REPORT("lastPositionReport"),
+        SHIP_TYPE("shipType"),
+        LAST_STATIC_REPORT("lastStaticReport"),
+        TARGET("target");
+
+        private final String name;
+
+        Field(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        static Field of(String name) {
+            for (Field field : values()) {
+                if (field.name.equals(name))
+                    return field;
+            }
+            throw new IllegalArgumentException("Unknown field: " + name);
+        }
+    }
+
+    private static final AisPacketSourceSerializer SOURCE_SERIALIZER = new AisPacketSourceSerializer();
+    private static final PositionSerializer POSITION_SERIALIZER = new PositionSerializer();
+
+    private final Set<Field> fields;
+
+    public ProjectedTargetInfoSerializer(Set<Field> fields) {
+        this.fields = EnumSet.copyOf(fields);
+    }
+
+    /**
+     * Create a serializer of a comma separated list of field names; e.g. "mmsi,pos,sog,cog,heading,shipType".
+     * @throws IllegalArgumentException if a field is unknown or none are given
+     */
+    public static ProjectedTargetInfoSerializer of(String fields) {
+        Set<Field> selected = EnumSet.noneOf(Field.class);
+        for (String name : fields.split(",")) {
+            if (!name.trim().isEmpty())
+                selected.add(Field.of(name.trim()));
+        }
+        if (selected.isEmpty())
+            throw new IllegalArgumentException("No fields selected");
+        return new ProjectedTargetInfoSerializer(selected);
+    }
+
+    @Override
+    public void serialize(TargetInfo targetInfo, JsonGenerator jg, SerializerProvider serializerProvider) throws IOException {
+        jg.writeStartObject();
+        if (fields.contains(Field.MMSI))
+            jg.writeNumberField(Field.MMSI.name, targetInfo.getMmsi());
+        if (fields.contains(Field.TARGET_TYPE) && targetInfo.getTargetType() != null)
+            jg.writeStringField(Field.TARGET_TYPE.name, targetInfo.getTargetType().toString());
+        if (fields.contains(Field.COUNTRY) && targetInfo.getCountry() != null)
+            jg.writeStringField(Field.COUNTRY.name, targetInfo.getCountry().getTwoLetter());
+        if (fields.contains(Field.SOURCE)) {
+            jg.writeFieldName(Field.SOURCE.name);
+            SOURCE_SERIALIZER.serialize(targetInfo.getPacketSource(), jg, serializerProvider);
+        }
+
+        if (targetInfo.hasPositionInfo()) {
+            Position position = targetInfo.getPosition();
+            if (fields.contains(Field.POS) && position != null) {
+                jg.writeFieldName(Field.POS.name);
+                POSITION_SERIALIZER.serialize(position, jg, serializerProvider);
+            }
+            // Raw AIS values; converted and validated like AisVesselPosition does
+            if (fields.contains(Field.SOG) && targetInfo.getSog() < 1023)
+                jg.writeNumberField(Field.SOG.name, targetInfo.getSog() / 10.0);
+            if (fields.contains(Field.COG) && targetInfo.getCog() < 3600)
+                jg.writeNumberField(Field.COG.name, targetInfo.getCog() / 10.0);
+            if (fields.contains(Field.HEADING) && targetInfo.getHeading() < 360)
+                jg.writeNumberField(Field.HEADING.name, targetInfo.getHeading());
+            if (fields.contains(Field.NAV_STATUS))
+                jg.writeNumberField(Field.NAV_STATUS.name, targetInfo.getNavStatus());
+            if (fields.contains(Field.LAST_POSITION_REPORT))
+                jg.writeStringField(Field.LAST_POSITION_REPORT.name, String.valueOf(Instant.ofEpochMilli(targetInfo.getPositionTimestamp())));
+        }
+
+        if (targetInfo.hasStaticInfo()) {
+            if (fields.contains(Field.SHIP_TYPE))
+                jg.writeNumberField(Field.SHIP_TYPE.name, targetInfo.getStaticShipType());
+            if (fields.contains(Field.LAST_STATIC_REPORT))
+                jg.writeStringField(Field.LAST_STATIC_REPORT.name, String.valueOf(Instant.ofEpochMilli(targetInfo.getStaticTimestamp())));
+        }
+
+        if (fields.contains(Field.TARGET))
+            jg.writeObjectField(Field.TARGET.name, targetInfo.getAisTarget());
+        jg.writeEndObject();
+    }
+
+    /** @return the selected field names in a canonical order; e.g. for use in cache keys */
+    @Override
+    public String toString() {
+        return fields.stream().map(Field::getName).collect(Collectors.joining(","));
+    }
+
+}
@@ -13,8 +13,6 @@ public class TargetInfoSerializer extends JsonSerializer<TargetInfo> {
 
     @Override
     public void serialize(TargetInfo targetInfo, com.fasterxml.jackson.core.JsonGenerator jg, com.fasterxml.jackson.databind.SerializerProvider serializerProvider) throws IOException, com.fasterxml.jackson.core.JsonProcessingException {
-        jg.useDefaultPrettyPrinter();
-
         jg.writeStartObject();
         jg.writeObjectField("source", targetInfo.getPacketSource());
         jg.writeObjectField("target", targetInfo.getAisTarget());
@@ -0,0 +1,138 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.coordinator;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the shards as local HTTP servers; one answering at once, one not answering before the test ends.
+ */
+public class ShardClientTest {
+
+    private HttpServer server;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ShardClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fast/tracks", exchange -> {
+            byte[] body = ("[{\"accept\":\"" + exchange.getRequestHeaders().getFirst("Accept") + "\"}]").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/fast/track", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.createContext("/fast/tracks/nearest", exchange -> {
+            exchange.sendResponseHeaders(429, -1);
+            exchange.close();
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        String base = "http://localhost:" + server.getAddress().getPort();
+        client = new ShardClient(Arrays.asList(base + "/fast", base + "/slow"), Duration.ofMillis(300));
+    }
+
+    @After
+    public void tearDown() {
+        done.countDown();
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testResponse() {
+        List<ShardResponse> responses = client.get(Arrays.asList(0), "/tracks?mmsi=219000000", "application/json;pretty=false");
+        assertEquals(1, responses.size());
+        ShardResponse response = responses.get(0);
+        assertTrue(response.isOk());
+        assertEquals("application/json", response.getContentType());
+        assertArrayEquals("[{\"accept\":\"application/json;pretty=false\"}]".getBytes(StandardCharsets.UTF_8), response.getBody());
+    }
+
+    @Test
+    public void testErrorStatus() {
+        ShardResponse response = client.get(Arrays.asList(0), "/track/219000000", "application/json").get(0);
+        assertFalse(response.isFailed());
+        assertEquals(404, response.getStatus());
+        assertTrue(response.isClientError());
+    }
+
+    @Test
+    public void testBusyShardIsNoClientError() {
+        ShardResponse response = client.get(Arrays.asList(0), "/tracks/nearest", "application/json").get(0);
+        assertEquals(429, response.getStatus());
+        assertFalse(response.isOk());
+        assertFalse(response.isClientError());
+    }
+
+    @Test
+    public void testSlowShardFailsAfterTimeout() {
+        long start = System.nanoTime();
+        List<ShardResponse> responses = client.get(Arrays.asList(0, 1), "/tracks", "application/json");
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("Waited " + millis + " ms", millis >= 300 && millis < 2000);
+        assertEquals(0, responses.get(0).getShard());
+        assertTrue(responses.get(0).isOk());
+        assertEquals(1, responses.get(1).getShard());
+        assertTrue(responses.get(1).isFailed());
+        assertEquals(0, responses.get(1).getStatus());
+    }
+
+    @Test
+    public void testUnreachableShardFails() throws IOException {
+        HttpServer stopped = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        int port = stopped.getAddress().getPort();
+        stopped.stop(0);
+
+        try (ShardClient unreachable = new ShardClient(Arrays.asList("http://localhost:" + port + "/ais-track"), Duration.ofMillis(300))) {
+            assertTrue(unreachable.get(Arrays.asList(0), "/tracks", "application/json").get(0).isFailed());
+        }
+    }
+
+}
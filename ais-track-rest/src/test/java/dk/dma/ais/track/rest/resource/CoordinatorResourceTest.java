@@ -0,0 +1,88 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.resource;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import dk.dma.ais.track.MmsiPartition;
+import dk.dma.ais.track.rest.resource.exceptions.IllegalParameterException;
+import dk.dma.ais.track.rest.resource.serializers.Encoding;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CoordinatorResourceTest {
+
+    @Test
+    public void testShardsForMmsis() {
+        assertEquals(Collections.singleton(MmsiPartition.indexOf(219000001, 4)), CoordinatorResource.shardsFor(Arrays.asList("219000001", "219000005"), null, null, 4));
+    }
+
+    @Test
+    public void testShardsForAreasAreAll() {
+        assertEquals(4, CoordinatorResource.shardsFor(Arrays.asList("219000001"), null, Arrays.asList("52.3|4.8|52.5|4.9"), 4).size());
+        assertEquals(4, CoordinatorResource.shardsFor(null, null, null, 4).size());
+    }
+
+    @Test
+    public void testShardsForBaseAreasAreAll() {
+        assertEquals(4, CoordinatorResource.shardsFor(Arrays.asList("219000001"), Arrays.asList("52.3|4.8|52.5|4.9"), null, 4).size());
+    }
+
+    @Test(expected = IllegalParameterException.class)
+    public void testShardsForIllegalMmsi() {
+        CoordinatorResource.shardsFor(Arrays.asList("x"), null, null, 4);
+    }
+
+    @Test
+    public void testClientIsForwardedToShards() {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("10.0.0.2");
+        assertEquals(Collections.singletonMap("X-Forwarded-For", "10.0.0.2"), CoordinatorResource.forwardedHeaders(request));
+
+        when(request.getHeader("X-API-Key")).thenReturn("3f9a0c");
+        when(request.getHeader("X-Forwarded-For")).thenReturn("10.0.0.1");
+        Map<String, String> headers = CoordinatorResource.forwardedHeaders(request);
+        assertEquals("3f9a0c", headers.get("X-API-Key"));
+        assertEquals("10.0.0.1, 10.0.0.2", headers.get("X-Forwarded-For"));
+    }
+
+    @Test
+    public void testCopyElementsMergesArrays() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator jg = Encoding.CBOR.createGenerator(out)) {
+            jg.writeStartArray();
+            assertEquals(2, CoordinatorResource.copyElements("[{\"mmsi\":1,\"sog\":1.5},{\"mmsi\":2}]".getBytes(StandardCharsets.UTF_8), jg));
+            assertEquals(0, CoordinatorResource.copyElements("[]".getBytes(StandardCharsets.UTF_8), jg));
+            assertEquals(1, CoordinatorResource.copyElements("[{\"mmsi\":3}]".getBytes(StandardCharsets.UTF_8), jg));
+            jg.writeEndArray();
+        }
+
+        JsonNode merged = Encoding.CBOR.getMapper().readTree(out.toByteArray());
+        assertEquals(3, merged.size());
+        assertEquals(1.5, merged.get(0).get("sog").asDouble(), 0.0);
+        assertEquals(3, merged.get(2).get("mmsi").asInt());
+    }
+
+}
@@ -0,0 +1,134 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.resource;
+
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.QueryCancelledException;
+import dk.dma.ais.track.rest.resource.exceptions.QueryRejectedException;
+import dk.dma.ais.track.rest.resource.exceptions.TargetNotFoundException;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class QueryLaneTest {
+
+    private final Metrics metrics = new Metrics();
+    private QueryLane lane;
+
+    @After
+    public void tearDown() {
+        lane.shutdown();
+    }
+
+    @Test
+    public void testQueryIsRejectedWhenLaneIsFull() throws Exception {
+        lane = new QueryLane("test", 1, 1, Duration.ofMinutes(1), metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncContext async = mock(AsyncContext.class);
+        QueryLane.Query blocking = deadline -> await(release);
+
+        lane.execute(request(async), mock(HttpServletResponse.class), blocking);
+        lane.execute(request(async), mock(HttpServletResponse.class), blocking);
+        try {
+            lane.execute(request(async), mock(HttpServletResponse.class), blocking);
+            fail();
+        } catch (QueryRejectedException expected) {
+        }
+        assertEquals(1L, metrics.meter("lanes.test.rejected").getCount());
+
+        release.countDown();
+        verify(async, timeout(5000).times(2)).complete();
+        lane.execute(request(async), mock(HttpServletResponse.class), deadline -> {});
+        verify(async, timeout(5000).times(3)).complete();
+    }
+
+    @Test
+    public void testDelayedQueryDoesNotHoldPlaceInLane() throws Exception {
+        lane = new QueryLane("test", 1, 0, Duration.ofMinutes(1), metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletResponse delayedResponse = mock(HttpServletResponse.class);
+
+        lane.execute(request(async), delayedResponse, TimeUnit.MILLISECONDS.toNanos(50), deadline -> {});
+        lane.execute(request(async), mock(HttpServletResponse.class), deadline -> await(release));
+
+        verify(delayedResponse, timeout(5000)).sendError(eq(429), anyString());
+        verify(async, timeout(5000)).complete();
+        release.countDown();
+        verify(async, timeout(5000).times(2)).complete();
+        assertEquals(1L, metrics.meter("lanes.test.rejected").getCount());
+    }
+
+    @Test
+    public void testQueryPastDeadlineIsAnsweredWithServiceUnavailable() throws Exception {
+        lane = new QueryLane("test", 1, 1, Duration.ofMillis(10), metrics);
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        lane.execute(request(async), response, deadline -> {
+            while (true)
+                deadline.checkPeriodically();
+        });
+
+        verify(async, timeout(5000)).complete();
+        verify(response).sendError(eq(503), anyString());
+        assertEquals(1L, metrics.meter("lanes.test.timedOut").getCount());
+    }
+
+    @Test
+    public void testExceptionIsAnsweredWithItsResponseStatus() throws Exception {
+        lane = new QueryLane("test", 1, 1, Duration.ofMinutes(1), metrics);
+        AsyncContext async = mock(AsyncContext.class);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        lane.execute(request(async), response, deadline -> {
+            throw new TargetNotFoundException(219000001);
+        });
+
+        verify(async, timeout(5000)).complete();
+        verify(response).sendError(eq(404), anyString());
+    }
+
+    private static HttpServletRequest request(AsyncContext async) {
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.startAsync()).thenReturn(async);
+        return request;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new QueryCancelledException("Interrupted");
+        }
+    }
+
+}
@@ -1,6 +1,13 @@
 package dk.dma.ais.track.rest.resource;
 
 import com.google.common.collect.Sets;
+import dk.dma.ais.track.AisTrackService;
+import dk.dma.ais.track.metrics.Metrics;
+import dk.dma.ais.track.query.BudgetPolicy;
+import dk.dma.ais.track.query.NearestTargets;
+import dk.dma.ais.track.query.QueryBudget;
+import dk.dma.ais.track.query.QueryEstimate;
+import dk.dma.ais.track.rest.resource.exceptions.IllegalParameterException;
 import dk.dma.ais.tracker.targetTracker.TargetInfo;
 import dk.dma.enav.model.geometry.BoundingBox;
 import dk.dma.enav.model.geometry.CoordinateSystem;
@@ -8,10 +15,16 @@ import dk.dma.enav.model.geometry.Position;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.time.Duration;
+import java.util.Map;
 import java.util.function.Predicate;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
 
 public class TrackResourceTest {
@@ -114,4 +127,54 @@ public class TrackResourceTest {
         when(targetInfo.getPosition()).thenReturn(Position.create(55.9, 10.9));
         assertTrue(predicate.test(targetInfo));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParsePosition() {
+        assertEquals(Position.create(55.7, 12.6), TrackResource.parsePosition("55.7, 12.6"));
+        for (String illegal : new String[] {"55.7", "55.7,12.6,1", "north,east", "91.0,12.6"}) {
+            try {
+                TrackResource.parsePosition(illegal);
+                fail(illegal);
+            } catch (IllegalParameterException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testNearestIsRoutedByTargetsItMayVisit() {
+        TrackResource resource = resource();
+        Position position = Position.create(55.7, 12.6);
+        when(resource.trackService.estimateNearest(position, 20000.0)).thenReturn(new QueryEstimate(50, false));
+        when(resource.trackService.estimateNearest(position, 1e9)).thenReturn(QueryEstimate.fullScan(100000));
+        when(resource.trackService.estimateNearest(position, Double.POSITIVE_INFINITY)).thenReturn(QueryEstimate.fullScan(100000));
+        try {
+            assertSame(resource.pointLane, resource.nearestLaneOf(position, 20000.0));
+            assertSame(resource.scanLane, resource.nearestLaneOf(position, 1e9));
+            assertSame(resource.scanLane, resource.nearestLaneOf(position, Double.POSITIVE_INFINITY));
+        } finally {
+            resource.close();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testNearestIsChargedForTargetsVisited() {
+        TrackResource resource = resource();
+        resource.budget = new QueryBudget(BudgetPolicy.REJECT, 1, 100000, Duration.ZERO, 100, 10);
+        when(resource.trackService.nearest(any(NearestTargets.class), any(Predicate.class))).thenReturn(5000L);
+        try {
+            resource.searchNearest("10.0.0.1", new NearestTargets(Position.create(55.7, 12.6), 10, Double.POSITIVE_INFINITY), src -> true);
+            assertEquals(500L, ((Map<String, Object>) resource.budget.snapshot().get("10.0.0.1")).get("cost"));
+        } finally {
+            resource.close();
+        }
+    }
+
+    private static TrackResource resource() {
+        TrackResource resource = new TrackResource();
+        resource.trackService = Mockito.mock(AisTrackService.class);
+        resource.metrics = new Metrics();
+        resource.init();
+        return resource;
+    }
+}
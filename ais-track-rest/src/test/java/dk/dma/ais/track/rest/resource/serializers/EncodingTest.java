@@ -0,0 +1,142 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.resource.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.Country;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncodingTest {
+
+    @Test
+    public void testEncodingIsSelectedByAcceptHeader() {
+        assertEquals(Encoding.JSON, Encoding.of(null));
+        assertEquals(Encoding.JSON, Encoding.of("*/*"));
+        assertEquals(Encoding.JSON, Encoding.of("text/html,application/xhtml+xml,*/*;q=0.8"));
+        assertEquals(Encoding.JSON, Encoding.of("application/json"));
+        assertEquals(Encoding.COMPACT_JSON, Encoding.of("application/json;pretty=false"));
+        assertEquals(Encoding.SMILE, Encoding.of("application/x-jackson-smile, application/json;q=0.5"));
+        assertEquals(Encoding.CBOR, Encoding.of("application/json;q=0.5, application/cbor"));
+        assertEquals(Encoding.JSON, Encoding.of("not a media type"));
+    }
+
+    @Test
+    public void testAllEncodingsWriteTheSameTree() throws Exception {
+        TargetTracker tracker = new TargetTracker();
+        tracker.update(positionReport(219000001, 55.7, 12.6));
+        TargetInfo target = tracker.get(219000001, src -> true);
+
+        JsonNode json = Encoding.JSON.getMapper().readTree(write(Encoding.JSON, target));
+        for (Encoding encoding : Encoding.values())
+            assertSameTree(encoding.name(), json, encoding.getMapper().readTree(write(encoding, target)));
+
+        int pretty = write(Encoding.JSON, target).length;
+        assertTrue(write(Encoding.COMPACT_JSON, target).length < pretty);
+        assertTrue(write(Encoding.SMILE, target).length < pretty);
+        assertTrue(write(Encoding.CBOR, target).length < pretty);
+    }
+
+    @Test
+    public void testSplicedArrayEqualsWrittenArray() throws Exception {
+        TargetTracker tracker = new TargetTracker();
+        tracker.update(positionReport(219000001, 55.7, 12.6));
+        tracker.update(positionReport(219000002, 56.1, 11.2));
+        List<TargetInfo> targets = Arrays.asList(tracker.get(219000001, src -> true), tracker.get(219000002, src -> true));
+
+        for (Encoding encoding : Encoding.values()) {
+            if (!encoding.canSplice())
+                continue;
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            try (JsonGenerator jg = encoding.createGenerator(written)) {
+                jg.writeStartArray();
+                for (TargetInfo target : targets)
+                    jg.writeObject(target);
+                jg.writeEndArray();
+            }
+            ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+            encoding.writeArray(Arrays.asList(write(encoding, targets.get(0)), write(encoding, targets.get(1))).iterator(), spliced);
+
+            ObjectMapper mapper = encoding.getMapper();
+            assertEquals(encoding.name(), mapper.readTree(written.toByteArray()), mapper.readTree(spliced.toByteArray()));
+        }
+        assertFalse(Encoding.SMILE.canSplice());
+    }
+
+    /** Compare trees; numbers are compared as floats, as the binary encodings keep float fields as such */
+    private static void assertSameTree(String path, JsonNode expected, JsonNode actual) {
+        if (expected.isNumber()) {
+            assertEquals(path, (float) expected.asDouble(), (float) actual.asDouble(), 0.0f);
+        } else if (expected.isContainerNode()) {
+            assertEquals(path, expected.size(), actual.size());
+            expected.fieldNames().forEachRemaining(name -> assertSameTree(path + "/" + name, expected.get(name), actual.get(name)));
+            for (int i = 0; expected.isArray() && i < expected.size(); i++)
+                assertSameTree(path + "/" + i, expected.get(i), actual.get(i));
+        } else {
+            assertEquals(path, expected, actual);
+        }
+    }
+
+    private static AisPacket positionReport(int mmsi, double lat, double lon) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(lat, lon)));
+        message.setSog(100);
+        message.setCog(1800);
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date());
+        tags.setSourceBs(2190047);
+        tags.setSourceCountry(Country.getByCode("DK"));
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] write(Encoding encoding, TargetInfo target) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator jg = encoding.createGenerator(out)) {
+            jg.writeObject(target);
+        }
+        return out.toByteArray();
+    }
+
+}
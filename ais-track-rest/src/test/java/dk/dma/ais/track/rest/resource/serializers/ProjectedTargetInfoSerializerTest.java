@@ -0,0 +1,122 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.track.rest.resource.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.dma.ais.binary.SixbitException;
+import dk.dma.ais.message.AisMessage1;
+import dk.dma.ais.message.AisPosition;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.packet.AisPacketTags;
+import dk.dma.ais.sentence.Vdm;
+import dk.dma.ais.tracker.targetTracker.TargetInfo;
+import dk.dma.ais.tracker.targetTracker.TargetTracker;
+import dk.dma.enav.model.geometry.Position;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectedTargetInfoSerializerTest {
+
+    private final ObjectMapper mapper = new CustomJacksonMapper(null, false);
+    private TargetInfo target;
+
+    @Before
+    public void setUp() {
+        TargetTracker tracker = new TargetTracker();
+        tracker.update(positionReport(219000001, 55.7, 12.6));
+        target = tracker.get(219000001, src -> true);
+    }
+
+    @Test
+    public void testOnlySelectedFieldsAreWritten() throws Exception {
+        JsonNode node = write(ProjectedTargetInfoSerializer.of("mmsi, pos,sog,cog,heading,shipType"));
+
+        assertEquals(219000001, node.get("mmsi").asInt());
+        assertEquals(55.7, node.get("pos").get("lat").asDouble(), 0.0001);
+        assertEquals(12.6, node.get("pos").get("lon").asDouble(), 0.0001);
+        assertEquals(10.0, node.get("sog").asDouble(), 0.0);
+        assertEquals(180.0, node.get("cog").asDouble(), 0.0);
+        assertFalse("Heading not available", node.has("heading"));
+        assertFalse("No static report", node.has("shipType"));
+        assertEquals(4, node.size());
+    }
+
+    @Test
+    public void testTargetFieldIsTheFullTarget() throws Exception {
+        JsonNode full = mapper.readTree(mapper.writeValueAsBytes(target));
+        JsonNode node = write(ProjectedTargetInfoSerializer.of("source,target"));
+
+        assertEquals(full.get("source"), node.get("source"));
+        assertEquals(full.get("target"), node.get("target"));
+    }
+
+    @Test
+    public void testFieldsAreCanonical() {
+        assertEquals("mmsi,pos,sog", ProjectedTargetInfoSerializer.of("sog,pos,mmsi,pos").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFieldIsRejected() {
+        ProjectedTargetInfoSerializer.of("mmsi,name");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoFieldsAreRejected() {
+        ProjectedTargetInfoSerializer.of(" , ");
+    }
+
+    private JsonNode write(ProjectedTargetInfoSerializer serializer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator jg = mapper.getFactory().createGenerator(out)) {
+            serializer.serialize(target, jg, null);
+        }
+        JsonNode node = mapper.readTree(out.toByteArray());
+        assertTrue(node.isObject());
+        return node;
+    }
+
+    private static AisPacket positionReport(int mmsi, double lat, double lon) {
+        AisMessage1 message = new AisMessage1();
+        message.setUserId(mmsi);
+        message.setPos(new AisPosition(Position.create(lat, lon)));
+        message.setSog(100);
+        message.setCog(1800);
+        message.setTrueHeading(511);
+
+        AisPacketTags tags = new AisPacketTags();
+        tags.setTimestamp(new Date());
+        tags.setSourceBs(2190047);
+
+        try {
+            StringBuilder sb = new StringBuilder(tags.getCommentBlock().encode());
+            for (String sentence : Vdm.createSentences(message, 0))
+                sb.append(sentence).append("\r\n");
+            return AisPacket.from(sb.toString().trim());
+        } catch (SixbitException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}